@@ -0,0 +1,56 @@
+package org.parandroid.encoding;
+
+import java.io.IOException;
+
+/**
+ * Compression of message text before it is encrypted.
+ *
+ * The type of a codec is sent in the encrypted message frame (older messages have it
+ * in the message header), so the type and the output of an existing codec must never
+ * change. Types must fit in a byte. Add a new codec
+ * with a new type instead.
+ */
+public abstract class CompressionCodec {
+
+	public static final int TYPE_NONE		= 0;
+	public static final int TYPE_DEFLATE	= 1;
+
+	/**
+	 * Upper limit for decompressed data, to stop corrupted or malicious messages
+	 */
+	protected static final int MAX_DECOMPRESSED_LENGTH = 64 * 1024;
+
+	private static final CompressionCodec[] CODECS = new CompressionCodec[] {
+		new NullCodec(),
+		new DeflateCodec()
+	};
+
+	public abstract int getType();
+
+	public abstract byte[] compress(byte[] data);
+
+	public abstract byte[] decompress(byte[] data) throws IOException;
+
+	/**
+	 * All codecs, the null codec first
+	 */
+	public static CompressionCodec[] getCodecs(){
+		return CODECS;
+	}
+
+	/**
+	 * Get the codec for a compression type, as found in a message header
+	 *
+	 * @param type
+	 * @return codec
+	 * @throws IOException if the type is unknown
+	 */
+	public static CompressionCodec getCodec(int type) throws IOException {
+		for(CompressionCodec codec : CODECS){
+			if(codec.getType() == type)
+				return codec;
+		}
+
+		throw new IOException("Unknown compression type: " + type);
+	}
+}
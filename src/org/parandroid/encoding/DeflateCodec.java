@@ -0,0 +1,87 @@
+package org.parandroid.encoding;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw DEFLATE, without the zlib header and checksum, with a preset dictionary of
+ * words and phrases that are common in short chat messages. Short messages hardly
+ * compress on their own; the dictionary gives them something to refer to.
+ *
+ * The dictionary is part of the protocol: never change it, add a new codec instead.
+ */
+public class DeflateCodec extends CompressionCodec {
+
+	// Most common strings last, they get the shortest distances
+	private static final byte[] DICTIONARY = (
+			"http://www. .com .nl .org " +
+			"hoe gaat het met je? ik ben er zo. tot straks! dank je wel " +
+			"Thanks! Thank you, Happy birthday! Good morning Good night " +
+			"please call me when you get this message, " +
+			"can you pick up some tomorrow tonight today this weekend " +
+			"What time are we meeting? Where are you? I'm on my way, " +
+			"be there in 5 minutes. See you later! Sorry, I'll be late. " +
+			"I love you. Let me know if you want to do something. " +
+			"OK, sounds good. Yes, no problem. Don't forget to " +
+			"How are you doing? I don't know what I have to " +
+			"about the that and with for have you are it's is in the "
+			).getBytes();
+
+	@Override
+	public int getType(){
+		return TYPE_DEFLATE;
+	}
+
+	@Override
+	public byte[] compress(byte[] data){
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		try{
+			deflater.setDictionary(DICTIONARY);
+			deflater.setInput(data);
+			deflater.finish();
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 16);
+			byte[] buffer = new byte[256];
+			while(!deflater.finished()){
+				int length = deflater.deflate(buffer);
+				out.write(buffer, 0, length);
+			}
+			return out.toByteArray();
+		}finally{
+			deflater.end();
+		}
+	}
+
+	@Override
+	public byte[] decompress(byte[] data) throws IOException {
+		Inflater inflater = new Inflater(true);
+		try{
+			inflater.setDictionary(DICTIONARY);
+
+			// zlib needs an extra dummy byte when there is no header
+			byte[] input = new byte[data.length + 1];
+			System.arraycopy(data, 0, input, 0, data.length);
+			inflater.setInput(input);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+			byte[] buffer = new byte[256];
+			while(!inflater.finished()){
+				int length = inflater.inflate(buffer);
+				if(length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("Truncated compressed data");
+
+				out.write(buffer, 0, length);
+				if(out.size() > MAX_DECOMPRESSED_LENGTH)
+					throw new IOException("Decompressed data too long");
+			}
+			return out.toByteArray();
+		}catch(DataFormatException e){
+			throw new IOException("Corrupted compressed data: " + e.getMessage());
+		}finally{
+			inflater.end();
+		}
+	}
+}
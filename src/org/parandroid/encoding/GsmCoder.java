@@ -0,0 +1,123 @@
+package org.parandroid.encoding;
+
+/**
+ * Encodes binary data as text that only uses characters of the GSM 03.38 basic
+ * character set, so a text message containing it is sent in the 7-bit encoding.
+ *
+ * The data is treated as one big number and written in base ALPHABET.length, which
+ * holds about 6.8 bits per character where Base64 holds 6. Leading zero bytes are
+ * written as one zero digit each, so they survive the conversion.
+ *
+ * The alphabet leaves out '@' (septet 0), '$' (the Parandroid header separator),
+ * the space, line breaks, the escape character and the Greek letters, which some
+ * networks replace with latin look-alikes.
+ */
+public class GsmCoder {
+
+	private static final char[] ALPHABET = (
+			"0123456789" +
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZ" +
+			"abcdefghijklmnopqrstuvwxyz" +
+			"!\"#%&'()*+,-./:;<=>?_" +
+			"\u00a1\u00a3\u00a4\u00a5\u00a7\u00bf" +
+			"\u00c4\u00c5\u00c6\u00c7\u00c9\u00d1\u00d6\u00d8\u00dc" +
+			"\u00df\u00e0\u00e4\u00e5\u00e6\u00e8\u00e9\u00ec\u00f1" +
+			"\u00f2\u00f6\u00f8\u00f9\u00fc"
+			).toCharArray();
+
+	private static final int BASE = ALPHABET.length;
+
+	private static final int[] INDEXES = new int[256];
+	static {
+		for(int i = 0; i < INDEXES.length; i++)
+			INDEXES[i] = -1;
+		for(int i = 0; i < ALPHABET.length; i++)
+			INDEXES[ALPHABET[i]] = i;
+	}
+
+	private GsmCoder(){
+	}
+
+	/**
+	 * Encode binary data
+	 *
+	 * @param data
+	 * @return text with characters of the GSM basic character set only
+	 */
+	public static String encode(byte[] data){
+		int zeros = 0;
+		while(zeros < data.length && data[zeros] == 0)
+			zeros++;
+
+		// Base 256 to base BASE, most significant digit first
+		byte[] number = new byte[data.length];
+		System.arraycopy(data, 0, number, 0, data.length);
+
+		char[] digits = new char[data.length * 2];
+		int digitsStart = digits.length;
+
+		int start = zeros;
+		while(start < number.length){
+			int remainder = 0;
+			for(int i = start; i < number.length; i++){
+				int value = (remainder << 8) | (number[i] & 0xff);
+				number[i] = (byte) (value / BASE);
+				remainder = value % BASE;
+			}
+			digits[--digitsStart] = ALPHABET[remainder];
+
+			while(start < number.length && number[start] == 0)
+				start++;
+		}
+
+		while(zeros-- > 0)
+			digits[--digitsStart] = ALPHABET[0];
+
+		return new String(digits, digitsStart, digits.length - digitsStart);
+	}
+
+	/**
+	 * Decode text created by encode()
+	 *
+	 * @param text
+	 * @return data
+	 * @throws IllegalArgumentException if the text contains characters outside of the alphabet
+	 */
+	public static byte[] decode(String text){
+		int[] number = new int[text.length()];
+		for(int i = 0; i < number.length; i++){
+			char c = text.charAt(i);
+			int digit = c < INDEXES.length ? INDEXES[c] : -1;
+			if(digit == -1)
+				throw new IllegalArgumentException("Illegal character in GSM encoded data: " + c);
+
+			number[i] = digit;
+		}
+
+		int zeros = 0;
+		while(zeros < number.length && number[zeros] == 0)
+			zeros++;
+
+		// Base BASE to base 256, least significant byte last
+		byte[] bytes = new byte[number.length];
+		int bytesStart = bytes.length;
+
+		int start = zeros;
+		while(start < number.length){
+			int remainder = 0;
+			for(int i = start; i < number.length; i++){
+				int value = remainder * BASE + number[i];
+				number[i] = value >> 8;
+				remainder = value & 0xff;
+			}
+			bytes[--bytesStart] = (byte) remainder;
+
+			while(start < number.length && number[start] == 0)
+				start++;
+		}
+
+		byte[] data = new byte[zeros + bytes.length - bytesStart];
+		System.arraycopy(bytes, bytesStart, data, zeros, bytes.length - bytesStart);
+		return data;
+	}
+}
@@ -0,0 +1,22 @@
+package org.parandroid.encoding;
+
+/**
+ * Leaves the data as it is
+ */
+public class NullCodec extends CompressionCodec {
+
+	@Override
+	public int getType(){
+		return TYPE_NONE;
+	}
+
+	@Override
+	public byte[] compress(byte[] data){
+		return data;
+	}
+
+	@Override
+	public byte[] decompress(byte[] data){
+		return data;
+	}
+}
@@ -0,0 +1,139 @@
+package org.parandroid.encryption;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Process wide access to the keyring database. The database is opened once and the
+ * connection is shared by everyone, so callers should never close it.
+ *
+ * Point lookups by id use statements that are compiled once per process.
+ */
+final class KeyringStore extends SQLiteOpenHelper {
+
+	private static final String TAG = "Parandroid KeyringStore";
+
+	/**
+	 * Version 0: the original table
+	 * Version 1: added the min_match column with the normalized number and its index
+	 */
+	private static final int DATABASE_VERSION = 1;
+
+	private static KeyringStore sInstance = null;
+
+	private SQLiteStatement mNumberStatement = null;
+	private SQLiteStatement mPublicKeyStatement = null;
+
+	private KeyringStore(Context context){
+		super(context, MessageEncryptionFactory.PUBLIC_KEY_DATABASE, null, DATABASE_VERSION);
+	}
+
+	static synchronized KeyringStore getInstance(Context context){
+		if(sInstance == null)
+			sInstance = new KeyringStore(context.getApplicationContext());
+
+		return sInstance;
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db){
+		// Keyrings created before they were versioned already have the table
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + MessageEncryptionFactory.PUBLIC_KEY_TABLE +
+				" (_ID INTEGER PRIMARY KEY, " +
+				"number VARCHAR, " +
+				"publicKey VARCHAR, " +
+				"accepted BOOLEAN, " +
+				"received TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+
+		onUpgrade(db, 0, DATABASE_VERSION);
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion){
+		Log.i(TAG, "Upgrading keyring from version " + oldVersion + " to " + newVersion);
+
+		if(oldVersion < 1){
+			db.execSQL("ALTER TABLE " + MessageEncryptionFactory.PUBLIC_KEY_TABLE + " ADD COLUMN min_match VARCHAR");
+
+			Cursor c = db.query(MessageEncryptionFactory.PUBLIC_KEY_TABLE, new String[] { "_ID", "number" }, null, null, null, null, null);
+			try{
+				while(c.moveToNext()){
+					ContentValues cv = new ContentValues();
+					cv.put("min_match", MessageEncryptionFactory.normalizeNumber(c.getString(1)));
+					db.update(MessageEncryptionFactory.PUBLIC_KEY_TABLE, cv, "_ID=" + c.getInt(0), null);
+				}
+			}finally{
+				c.close();
+			}
+
+			db.execSQL("CREATE INDEX IF NOT EXISTS " + MessageEncryptionFactory.PUBLIC_KEY_TABLE + "_min_match_index ON " +
+					MessageEncryptionFactory.PUBLIC_KEY_TABLE + " (min_match, accepted)");
+		}
+	}
+
+	/**
+	 * Get the number a public key belongs to
+	 *
+	 * @param id
+	 * @return number, or null if the key doesn't exist
+	 */
+	synchronized String getNumber(int id){
+		if(mNumberStatement == null)
+			mNumberStatement = getWritableDatabase().compileStatement(
+					"SELECT number FROM " + MessageEncryptionFactory.PUBLIC_KEY_TABLE + " WHERE _ID=?");
+
+		return queryForString(mNumberStatement, id);
+	}
+
+	/**
+	 * Get the Base64 encoded public key
+	 *
+	 * @param id
+	 * @return public key, or null if the key doesn't exist
+	 */
+	synchronized String getPublicKey(int id){
+		if(mPublicKeyStatement == null)
+			mPublicKeyStatement = getWritableDatabase().compileStatement(
+					"SELECT publicKey FROM " + MessageEncryptionFactory.PUBLIC_KEY_TABLE + " WHERE _ID=?");
+
+		return queryForString(mPublicKeyStatement, id);
+	}
+
+	long insert(String number, String publicKey, boolean accepted){
+		ContentValues cv = new ContentValues();
+		cv.put("number", number);
+		cv.put("min_match", MessageEncryptionFactory.normalizeNumber(number));
+		cv.put("publicKey", publicKey);
+		cv.put("accepted", accepted);
+
+		return getWritableDatabase().insert(MessageEncryptionFactory.PUBLIC_KEY_TABLE, "", cv);
+	}
+
+	int accept(int id){
+		ContentValues cv = new ContentValues();
+		cv.put("accepted", true);
+
+		return getWritableDatabase().update(MessageEncryptionFactory.PUBLIC_KEY_TABLE, cv, "_ID=" + id, null);
+	}
+
+	int delete(int id){
+		return getWritableDatabase().delete(MessageEncryptionFactory.PUBLIC_KEY_TABLE, "_ID=" + id, null);
+	}
+
+	private static String queryForString(SQLiteStatement statement, int id){
+		statement.bindLong(1, id);
+		try{
+			return statement.simpleQueryForString();
+		}catch(SQLiteDoneException e){
+			return null;
+		}finally{
+			statement.clearBindings();
+		}
+	}
+}
@@ -2,15 +2,19 @@ package org.parandroid.encryption;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.security.KeyFactory;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.spec.X509EncodedKeySpec;
+import java.security.SecureRandom;
 
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import org.bouncycastle.util.encoders.Base64;
+import org.parandroid.encoding.CompressionCodec;
+import org.parandroid.encoding.GsmCoder;
 import org.parandroid.sms.R;
 
 import android.content.Context;
@@ -18,11 +22,37 @@ import android.util.Log;
 
 /**
  * Wrapper class to encrypt and decrypt messages, using the underlying factory
+ * 
+ * Messages are encrypted into a frame, protocol version 1:
+ * - frame version (1 byte)
+ * - compression type (1 byte), see CompressionCodec
+ * - random nonce (8 bytes), the first half of the AES-CTR counter block
+ * - AES-CTR encrypted text, as long as the text itself
+ * - HMAC-SHA256 over all of the above, truncated to 8 bytes
+ * 
+ * The compression type is authenticated with the text, so a modified message can't
+ * select another decompressor. Frames of version 1 don't have the compression type,
+ * it is read from the message header for them.
+ * 
+ * The cipher and MAC keys are derived from the shared secret with HMAC-SHA256.
+ * Version 0 messages, plain AES in ECB mode, can still be decrypted.
  */
 public abstract class MessageEncryption {
 	
 	private static final String TAG = "Parandroid MessageEncryption";
 	
+	public static final byte FRAME_VERSION = 2;
+	private static final byte LEGACY_FRAME_VERSION = 1;
+	
+	private static final String FRAME_CIPHER = "AES/CTR/NoPadding";
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	
+	private static final int NONCE_LENGTH = 8;
+	private static final int TAG_LENGTH = 8;
+	private static final int CIPHER_KEY_LENGTH = 16;
+	
+	private static final SecureRandom random = new SecureRandom();
+	
 	/**
 	 * Encrypt a message using AES with a secrey key, generated by the Diffie-Hillman algorithm
 	 * with our private key and the receiver's public key. The keys need to be stored locally.
@@ -35,34 +65,78 @@ public abstract class MessageEncryption {
 	 * @throws IOException - Key(s) missing
 	 */
 	public static byte[] encrypt(Context context, String number, String text) throws Exception {
-		PrivateKey privateKey = MessageEncryptionFactory.getPrivateKey(context);
-		PublicKey publicKey  = MessageEncryptionFactory.getPublicKey(context, number);
-		SecretKey secretKey = MessageEncryptionFactory.generateSecretKey(privateKey, publicKey);
+		SecretKeySpec secretKeySpec = MessageEncryptionFactory.getSecretKeySpec(context, number);
+		if(secretKeySpec == null)
+			throw new GeneralSecurityException("Missing private or public key");
 		
-		Cipher cipher = Cipher.getInstance(MessageEncryptionFactory.ENCRYPTION_ALGORITHM);
-		SecretKeySpec secreyKeySpec = new SecretKeySpec(secretKey.getEncoded(), 0, MessageEncryptionFactory.SECRET_KEY_LENGTH, MessageEncryptionFactory.ENCRYPTION_ALGORITHM);
-		cipher.init(Cipher.ENCRYPT_MODE, secreyKeySpec);
-        
-        byte[] cipherText = cipher.doFinal(text.getBytes());
-		
-		return cipherText;
+		return encrypt(secretKeySpec, text);
 	}
 	
-	public static byte[] encrypt(Context context, byte[] keyBytes, String text) throws Exception {
-		X509EncodedKeySpec x509KeySpec = new X509EncodedKeySpec(keyBytes);
-        KeyFactory keyFact = KeyFactory.getInstance(MessageEncryptionFactory.KEY_EXCHANGE_PROTOCOL);
-        PublicKey publicKey = keyFact.generatePublic(x509KeySpec);
+	/**
+	 * Encrypt a message with an already computed shared secret
+	 * 
+	 * @param secretKeySpec
+	 * @param text
+	 * @return encrypted message frame
+	 * @throws GeneralSecurityException
+	 */
+	public static byte[] encrypt(SecretKeySpec secretKeySpec, String text) throws Exception {
+		return encrypt(secretKeySpec, text.getBytes());
+	}
+	
+	/**
+	 * Encrypt uncompressed data with an already computed shared secret
+	 * 
+	 * @param secretKeySpec
+	 * @param clearText
+	 * @return encrypted message frame
+	 * @throws GeneralSecurityException
+	 */
+	public static byte[] encrypt(SecretKeySpec secretKeySpec, byte[] clearText) throws Exception {
+		return encrypt(secretKeySpec, CompressionCodec.TYPE_NONE, clearText);
+	}
+	
+	/**
+	 * Encrypt compressed text with an already computed shared secret
+	 * 
+	 * @param secretKeySpec
+	 * @param compressionType type of the codec the text was compressed with
+	 * @param clearText
+	 * @return encrypted message frame
+	 * @throws GeneralSecurityException
+	 */
+	public static byte[] encrypt(SecretKeySpec secretKeySpec, int compressionType, byte[] clearText) throws Exception {
+		if(compressionType < 0 || compressionType > 0xFF)
+			throw new IllegalArgumentException("Invalid compression type: " + compressionType);
 		
-		PrivateKey privateKey = MessageEncryptionFactory.getPrivateKey(context);
-		SecretKey secretKey = MessageEncryptionFactory.generateSecretKey(privateKey, publicKey);
+		int headerLength = getFrameHeaderLength(FRAME_VERSION);
+		byte[] frame = new byte[headerLength + clearText.length + TAG_LENGTH];
 		
-		Cipher cipher = Cipher.getInstance(MessageEncryptionFactory.ENCRYPTION_ALGORITHM);
-		SecretKeySpec secreyKeySpec = new SecretKeySpec(secretKey.getEncoded(), 0, MessageEncryptionFactory.SECRET_KEY_LENGTH, MessageEncryptionFactory.ENCRYPTION_ALGORITHM);
-		cipher.init(Cipher.ENCRYPT_MODE, secreyKeySpec);
-
-        byte[] cipherText = cipher.doFinal(text.getBytes());
+		frame[0] = FRAME_VERSION;
+		frame[1] = (byte) compressionType;
+		synchronized(random){
+			byte[] nonce = new byte[NONCE_LENGTH];
+			random.nextBytes(nonce);
+			System.arraycopy(nonce, 0, frame, headerLength - NONCE_LENGTH, NONCE_LENGTH);
+		}
+		
+		Cipher cipher = Cipher.getInstance(FRAME_CIPHER);
+		cipher.init(Cipher.ENCRYPT_MODE, getCipherKey(secretKeySpec), getCounter(frame));
+		cipher.doFinal(clearText, 0, clearText.length, frame, headerLength);
 		
-		return cipherText;
+		Mac mac = Mac.getInstance(MAC_ALGORITHM);
+		mac.init(getMacKey(secretKeySpec));
+		mac.update(frame, 0, frame.length - TAG_LENGTH);
+		System.arraycopy(mac.doFinal(), 0, frame, frame.length - TAG_LENGTH, TAG_LENGTH);
+		
+		return frame;
+	}
+	
+	/**
+	 * Encrypt a message for a public key that isn't accepted yet
+	 */
+	public static byte[] encrypt(Context context, byte[] keyBytes, String text) throws Exception {
+		return encrypt(MessageEncryptionFactory.getSecretKeySpec(context, keyBytes), text);
 	}
 	
 	/**
@@ -71,17 +145,25 @@ public abstract class MessageEncryption {
 	 * 
 	 * @param context
 	 * @param number
-	 * @param cipherText
+	 * @param body message body, as stored
 	 * @return decrypted message
 	 * @throws GeneralSecurityException
 	 * @throws IOException - Key(s) missing
 	 */
-	public static String decrypt(Context context, String number, byte[] cipherText) throws Exception {
-		PrivateKey privateKey = MessageEncryptionFactory.getPrivateKey(context);
-		return decrypt(context, privateKey, number, cipherText);
+	public static String decrypt(Context context, String number, String body) throws Exception {
+		SecretKeySpec secretKeySpec = MessageEncryptionFactory.getSecretKeySpec(context, number);
+		if(secretKeySpec == null){
+			return context.getString(R.string.parandroid_snippet);
+		}
+		
+		return decrypt(secretKeySpec, body);
 	}
 	
-	public static String decrypt(Context context, PrivateKey privateKey, String number, byte[] cipherText) throws Exception {	
+	/**
+	 * Decrypt a message with an explicit private key, e.g. the previous one when re-encrypting
+	 * messages for a new keypair. The shared secret is not cached.
+	 */
+	public static String decrypt(Context context, PrivateKey privateKey, String number, String body) throws Exception {	
 		PublicKey publicKey  = MessageEncryptionFactory.getPublicKey(context, number);
 		
 		if(privateKey == null || publicKey == null){
@@ -89,12 +171,117 @@ public abstract class MessageEncryption {
 		}
 		
 		SecretKey secretKey = MessageEncryptionFactory.generateSecretKey(privateKey, publicKey);
+		return decrypt(MessageEncryptionFactory.getSecretKeySpec(secretKey), body);
+	}
+	
+	/**
+	 * Decrypt a message with an already computed shared secret. The protocol version in
+	 * the header of the body decides how the message is decoded and decrypted, and the
+	 * compression type in the frame how the decrypted text is decompressed.
+	 * 
+	 * @param secretKeySpec
+	 * @param body message body, as stored
+	 * @return decrypted message
+	 * @throws GeneralSecurityException
+	 */
+	public static String decrypt(SecretKeySpec secretKeySpec, String body) throws Exception {
+		int protocolVersion = MessageEncryptionFactory.getProcolVersion(body);
+		String payload = MessageEncryptionFactory.stripHeader(body);
+		
+		byte[] text;
+		int compressionType;
+		switch(protocolVersion){
+		case -1: // Sent messages used to be stored without metadata
+		case 0:
+			text = decryptVersion0(secretKeySpec, Base64.decode(payload));
+			compressionType = MessageEncryptionFactory.getCompressionType(body);
+			break;
+		case 1:
+			byte[] frame = GsmCoder.decode(payload);
+			text = decryptFrame(secretKeySpec, frame);
+			compressionType = frame[0] == LEGACY_FRAME_VERSION ?
+					MessageEncryptionFactory.getCompressionType(body) : frame[1] & 0xFF;
+			break;
+		default:
+			throw new GeneralSecurityException("Unsupported protocol version: " + protocolVersion);
+		}
+		
+		return new String(CompressionCodec.getCodec(compressionType).decompress(text));
+	}
+	
+	/**
+	 * Authenticate and decrypt a frame. The compression type of the frame, if it has
+	 * one, is authenticated too and must be of a known codec.
+	 */
+	private static byte[] decryptFrame(SecretKeySpec secretKeySpec, byte[] frame) throws Exception {
+		if(frame.length < 1 || (frame[0] != FRAME_VERSION && frame[0] != LEGACY_FRAME_VERSION))
+			throw new GeneralSecurityException("Corrupted message frame");
+		
+		int headerLength = getFrameHeaderLength(frame[0]);
+		if(frame.length < headerLength + TAG_LENGTH)
+			throw new GeneralSecurityException("Corrupted message frame");
+		
+		Mac mac = Mac.getInstance(MAC_ALGORITHM);
+		mac.init(getMacKey(secretKeySpec));
+		mac.update(frame, 0, frame.length - TAG_LENGTH);
+		byte[] tag = mac.doFinal();
+		
+		int difference = 0;
+		for(int i = 0; i < TAG_LENGTH; i++)
+			difference |= tag[i] ^ frame[frame.length - TAG_LENGTH + i];
+		if(difference != 0)
+			throw new GeneralSecurityException("Message authentication failed");
+		
+		if(frame[0] == FRAME_VERSION){
+			try{
+				CompressionCodec.getCodec(frame[1] & 0xFF);
+			}catch(IOException e){
+				throw new GeneralSecurityException(e.getMessage());
+			}
+		}
+		
+		Cipher cipher = Cipher.getInstance(FRAME_CIPHER);
+		cipher.init(Cipher.DECRYPT_MODE, getCipherKey(secretKeySpec), getCounter(frame));
+		return cipher.doFinal(frame, headerLength, frame.length - headerLength - TAG_LENGTH);
+	}
+	
+	/**
+	 * The length of the version, the compression type if the frame has one, and the nonce
+	 */
+	private static int getFrameHeaderLength(byte version){
+		return (version == LEGACY_FRAME_VERSION ? 1 : 2) + NONCE_LENGTH;
+	}
+	
+	private static byte[] decryptVersion0(SecretKeySpec secretKeySpec, byte[] cipherText) throws Exception {
 		Cipher cipher = Cipher.getInstance(MessageEncryptionFactory.ENCRYPTION_ALGORITHM);
-		SecretKeySpec secreyKeySpec = new SecretKeySpec(secretKey.getEncoded(), 0, MessageEncryptionFactory.SECRET_KEY_LENGTH, MessageEncryptionFactory.ENCRYPTION_ALGORITHM);
-		cipher.init(Cipher.DECRYPT_MODE, secreyKeySpec);
+		cipher.init(Cipher.DECRYPT_MODE, secretKeySpec);
                 
-        byte[] text = cipher.doFinal(cipherText);
-
-		return new String(text);
+		return cipher.doFinal(cipherText);
+	}
+	
+	private static SecretKeySpec getCipherKey(SecretKeySpec secretKeySpec) throws Exception {
+		return new SecretKeySpec(deriveKey(secretKeySpec, "enc"), 0, CIPHER_KEY_LENGTH, MessageEncryptionFactory.ENCRYPTION_ALGORITHM);
+	}
+	
+	private static SecretKeySpec getMacKey(SecretKeySpec secretKeySpec) throws Exception {
+		return new SecretKeySpec(deriveKey(secretKeySpec, "mac"), MAC_ALGORITHM);
+	}
+	
+	/**
+	 * Derive a key for a single purpose from the shared secret
+	 */
+	private static byte[] deriveKey(SecretKeySpec secretKeySpec, String purpose) throws Exception {
+		Mac mac = Mac.getInstance(MAC_ALGORITHM);
+		mac.init(new SecretKeySpec(secretKeySpec.getEncoded(), MAC_ALGORITHM));
+		return mac.doFinal(purpose.getBytes());
+	}
+	
+	/**
+	 * The initial counter block: the nonce followed by a zero block counter
+	 */
+	private static IvParameterSpec getCounter(byte[] frame){
+		byte[] counter = new byte[16];
+		System.arraycopy(frame, getFrameHeaderLength(frame[0]) - NONCE_LENGTH, counter, 0, NONCE_LENGTH);
+		return new IvParameterSpec(counter);
 	}
 }
@@ -2,6 +2,7 @@ package org.parandroid.encryption;
 
 import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -31,8 +32,8 @@ import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.DHParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.PBEParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
-import org.bouncycastle.util.encoders.Base64;
 import org.parandroid.sms.R;
 import org.parandroid.sms.transaction.MultipartDataMessage;
 
@@ -40,6 +41,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
 import android.util.Log;
 
 public abstract class MessageEncryptionFactory {
@@ -51,6 +53,7 @@ public abstract class MessageEncryptionFactory {
 
 	protected static final String PUBLIC_KEY_FILENAME = "self.pub";
 	protected static final String PRIVATE_KEY_FILENAME = "self.priv";
+	protected static final String PREVIOUS_PRIVATE_KEY_FILENAME = "self.priv.previous";
 	
 	protected static final String KEY_EXCHANGE_PROTOCOL = "DH";
 	protected static final String ENCRYPTION_ALGORITHM = "AES";
@@ -67,7 +70,7 @@ public abstract class MessageEncryptionFactory {
     };
 	
 	
-	public static String password = null;
+	public static volatile String password = null;
 	private static boolean isAuthenticating = false;
 	
 	/**
@@ -98,10 +101,7 @@ public abstract class MessageEncryptionFactory {
 	*/
     public static KeyPair generateKeyPair(Context context) throws Exception {  	
     	
-    	KeyPairGenerator keyGen = KeyPairGenerator.getInstance(KEY_EXCHANGE_PROTOCOL);
-        DHParameterSpec dhSpec = new DHParameterSpec(P, G);
-        keyGen.initialize(dhSpec);
-        KeyPair keyPair = keyGen.generateKeyPair();
+        KeyPair keyPair = createKeyPair();
 
         // save the keys in the file system
 		FileOutputStream pubOut = context.openFileOutput(PUBLIC_KEY_FILENAME, Context.MODE_PRIVATE);
@@ -116,10 +116,28 @@ public abstract class MessageEncryptionFactory {
 		pubOut.close();
         privOut.close();
         
+        // Shared secrets computed with the old private key are useless now
+        PrivateKeySession.replace(keyPair.getPrivate());
+        SecretKeyCache.clear();
+        
 	    return keyPair;
     }
     
     
+    /**
+     * Generate a keypair with the Parandroid Diffie-Hellman parameters, without storing it
+     * 
+     * @return keypair
+     * @throws Exception
+     */
+    public static KeyPair createKeyPair() throws Exception {
+    	KeyPairGenerator keyGen = KeyPairGenerator.getInstance(KEY_EXCHANGE_PROTOCOL);
+        DHParameterSpec dhSpec = new DHParameterSpec(P, G);
+        keyGen.initialize(dhSpec);
+        return keyGen.generateKeyPair();
+    }
+    
+    
     /**
      * Compute a shared secret for the ENCRYPTION_ALGORITHM. This should always be computed, and may never be stored.
      * 
@@ -147,6 +165,78 @@ public abstract class MessageEncryptionFactory {
     }
     
     
+    /**
+     * Get the key spec of the shared secret with the given number. The shared secret is computed
+     * once per authenticated session and then kept in memory, until the password is forgotten or
+     * the public key of the number changes.
+     * 
+     * @param context
+     * @param number
+     * @return secret key spec, or null if the private or public key is not available
+     * @throws Exception
+     */
+    public static SecretKeySpec getSecretKeySpec(Context context, String number) throws Exception {
+    	int generation = PrivateKeySession.getGeneration();
+    	if(!isAuthenticated()) return null;
+    	
+    	PublicKeyIndex.Entry entry = PublicKeyIndex.get(context, number);
+    	if(entry == null) return null;
+    	
+    	SecretKeySpec secretKeySpec = SecretKeyCache.get(entry.id);
+    	if(secretKeySpec != null) return secretKeySpec;
+    	
+    	PrivateKey privateKey = getPrivateKey(context);
+    	if(privateKey == null) return null;
+    	
+    	secretKeySpec = getSecretKeySpec(generateSecretKey(privateKey, decodePublicKey(entry.publicKey)));
+    	SecretKeyCache.put(entry.id, entry.number, secretKeySpec, generation);
+    	
+    	return secretKeySpec;
+    }
+    
+    
+    /**
+     * Compute the key spec of the shared secret with the given number for an explicit private key,
+     * e.g. the previous one when re-encrypting messages. The shared secret is not cached.
+     * 
+     * @param context
+     * @param privateKey
+     * @param number
+     * @return secret key spec, or null if the public key is not available
+     * @throws Exception
+     */
+    public static SecretKeySpec getSecretKeySpec(Context context, PrivateKey privateKey, String number) throws Exception {
+    	PublicKeyIndex.Entry entry = PublicKeyIndex.get(context, number);
+    	if(entry == null || privateKey == null) return null;
+    	
+    	return getSecretKeySpec(generateSecretKey(privateKey, decodePublicKey(entry.publicKey)));
+    }
+    
+    /**
+     * Compute the key spec of the shared secret for a public key that isn't accepted (yet).
+     * The shared secret is not cached.
+     * 
+     * @param context
+     * @param publicKey X.509 encoded public key
+     * @return secret key spec
+     * @throws Exception
+     */
+    public static SecretKeySpec getSecretKeySpec(Context context, byte[] publicKey) throws Exception {
+    	return getSecretKeySpec(generateSecretKey(getPrivateKey(context), decodePublicKey(publicKey)));
+    }
+    
+    
+    /**
+     * Truncate a shared secret to a key spec usable by the ENCRYPTION_ALGORITHM
+     * 
+     * @param secretKey
+     * @return secret key spec
+     */
+    public static SecretKeySpec getSecretKeySpec(SecretKey secretKey){
+    	return new SecretKeySpec(secretKey.getEncoded(), 0, SECRET_KEY_LENGTH, ENCRYPTION_ALGORITHM);
+    }
+    
+    
     /**
      * Get a list of the currently stored public keys, excluding your own. Hashmap with number and description
      * 
@@ -167,7 +257,6 @@ public abstract class MessageEncryptionFactory {
     	}
     	
     	c.close();
-    	keyRing.close();
     	
     	return publicKeys;
     }
@@ -189,7 +278,6 @@ public abstract class MessageEncryptionFactory {
     	}
     	
     	c.close();
-    	keyRing.close();
     	
     	return publicKeys;
     }
@@ -203,14 +291,76 @@ public abstract class MessageEncryptionFactory {
      * @return Boolean successful
      */
     public static boolean deletePublicKey(Context context, int id){
-        SQLiteDatabase keyRing = openKeyring(context);
-        int num = keyRing.delete(PUBLIC_KEY_TABLE, "_ID=" + id, null);
+        int num = KeyringStore.getInstance(context).delete(id);
+        
+        PublicKeyIndex.invalidate();
+        SecretKeyCache.remove(id);
         
-        keyRing.close();
         return num > 0;
     }
     
     
+    /**
+     * Accept a pending public key
+     * 
+     * @param context
+     * @param id
+     * @return Boolean successful
+     */
+    public static boolean acceptPublicKey(Context context, int id){
+    	KeyringStore keyRing = KeyringStore.getInstance(context);
+    	
+    	String number = keyRing.getNumber(id);
+    	int num = keyRing.accept(id);
+    	
+    	PublicKeyIndex.invalidate();
+    	if(number != null)
+    		SecretKeyCache.remove(number);
+    	
+    	// Messages that couldn't be decrypted without this key may be cached as such
+    	PlaintextCache.clear();
+    	
+    	return num > 0;
+    }
+    
+    
+    /**
+     * Save a received public key, which has to be accepted before it is used
+     * 
+     * @param context
+     * @param number
+     * @param publicKey Base64 encoded public key
+     * @return id of the public key
+     */
+    public static long savePendingPublicKey(Context context, String number, String publicKey){
+    	return KeyringStore.getInstance(context).insert(number, publicKey, false);
+    }
+    
+    
+    /**
+     * Get the number a stored public key belongs to
+     * 
+     * @param context
+     * @param id
+     * @return number, or null if the public key doesn't exist
+     */
+    public static String getPublicKeyNumber(Context context, int id){
+    	return KeyringStore.getInstance(context).getNumber(id);
+    }
+    
+    
+    /**
+     * Get a stored public key, accepted or not
+     * 
+     * @param context
+     * @param id
+     * @return Base64 encoded public key, or null if the public key doesn't exist
+     */
+    public static String getPublicKeyString(Context context, int id){
+    	return KeyringStore.getInstance(context).getPublicKey(id);
+    }
+    
+    
     /**
      * Get the local filename of a stored public key.
      * Trailing country-codes will be omitted
@@ -219,12 +369,10 @@ public abstract class MessageEncryptionFactory {
      * @return filename
      */
     public static String getPublicKeyFilename(Context context, String number){
-    	ArrayList<String> publicKeys = getPublicKeys(context);
-    	for(String publicKey : publicKeys){
-    		if(PhoneNumberUtils.compare(number, publicKey)){
-    			Log.v(TAG, "Public key exists for number '" + number + "'; '" + publicKey + "'");
-    			return publicKey;
-    		}
+    	PublicKeyIndex.Entry entry = PublicKeyIndex.get(context, number);
+    	if(entry != null){
+    		Log.v(TAG, "Public key exists for number '" + number + "'; '" + entry.number + "'");
+    		return entry.number;
     	}
 
 		Log.v(TAG, "No public key for '" + number + "'");
@@ -234,6 +382,7 @@ public abstract class MessageEncryptionFactory {
     
     /**
      * Get a stored private key in PKCS8 format (Used to carry private certificate keypairs (encrypted or unencrypted)
+     * The key is only decrypted once per authenticated session, after that it is taken from memory.
      * @see http://en.wikipedia.org/wiki/PKCS
      * @see http://tools.ietf.org/html/rfc5208
      * 
@@ -249,17 +398,24 @@ public abstract class MessageEncryptionFactory {
      * @throws InvalidKeyException 
      */
     public static PrivateKey getPrivateKey(Context context) throws Exception {
-    	
-    	if(!isAuthenticated()) return null;
-    	
-		byte[] keyBytes = getKeyFileBytes(context, PRIVATE_KEY_FILENAME);
-    	byte[] pk = decryptPrivateKey(keyBytes);
-		
-    	PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(pk);
-		KeyFactory kf = KeyFactory.getInstance(KEY_EXCHANGE_PROTOCOL);
-		PrivateKey privateKey = kf.generatePrivate(spec);
-    	
-    	return privateKey;
+    	while(true){
+    		// The generation is read before the password, which is changed before the
+    		// session is wiped, so a key unlocked with an old password is never kept
+    		int generation = PrivateKeySession.getGeneration();
+    		String password = MessageEncryptionFactory.password;
+    		if(password == null) return null;
+    		
+    		PrivateKey privateKey = PrivateKeySession.get();
+    		if(privateKey != null) return privateKey;
+    		
+    		byte[] keyBytes = getKeyFileBytes(context, PRIVATE_KEY_FILENAME);
+    		privateKey = unlockPrivateKey(keyBytes, password);
+    		
+    		// Keep the key unlocked for the rest of the authenticated session, unless the
+    		// password was forgotten or changed in the meantime
+    		if(PrivateKeySession.set(privateKey, generation))
+    			return privateKey;
+    	}
     }
     
     
@@ -270,6 +426,54 @@ public abstract class MessageEncryptionFactory {
 		
 		privOut.flush();
         privOut.close();
+        
+        PrivateKeySession.replace(pk);
+        SecretKeyCache.clear();
+    }
+    
+    
+    /**
+     * Store the private key that was replaced by a new keypair, encrypted with the current password,
+     * until all messages are re-encrypted with the new keypair.
+     * 
+     * @param context
+     * @param pk
+     * @throws Exception
+     */
+    public static void writePreviousPrivateKey(Context context, PrivateKey pk) throws Exception {
+    	FileOutputStream out = context.openFileOutput(PREVIOUS_PRIVATE_KEY_FILENAME, Context.MODE_PRIVATE);
+    	
+    	out.write(encryptPrivateKey(pk));
+    	
+    	out.flush();
+    	out.close();
+    }
+    
+    
+    /**
+     * Get the private key that was replaced by a new keypair
+     * 
+     * @param context
+     * @return previous private key, or null if there is none or the user is not authenticated
+     * @throws Exception
+     */
+    public static PrivateKey getPreviousPrivateKey(Context context) throws Exception {
+    	String password = MessageEncryptionFactory.password;
+    	if(password == null) return null;
+    	
+    	byte[] keyBytes;
+    	try{
+    		keyBytes = getKeyFileBytes(context, PREVIOUS_PRIVATE_KEY_FILENAME);
+    	}catch(FileNotFoundException e){
+    		return null;
+    	}
+    	
+    	return unlockPrivateKey(keyBytes, password);
+    }
+    
+    
+    public static void deletePreviousPrivateKey(Context context){
+    	context.deleteFile(PREVIOUS_PRIVATE_KEY_FILENAME);
     }
     
     
@@ -285,48 +489,23 @@ public abstract class MessageEncryptionFactory {
      * @throws InvalidKeySpecException
      */
     public static PublicKey getPublicKey(Context context, String number) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException{
-    	byte[] keyBytes = null;
-    	
-    	SQLiteDatabase keyRing = openKeyring(context);
-    	Cursor c = keyRing.query(PUBLIC_KEY_TABLE, null, "accepted=1", null, null, null, null);
+    	PublicKeyIndex.Entry entry = PublicKeyIndex.get(context, number);
+    	if(entry == null) return null;
     	
-    	while(c.moveToNext()){
-    		String n = c.getString(c.getColumnIndex("number"));
-    		if(PhoneNumberUtils.compare(number, n)){
-    			String publicKey = c.getString(c.getColumnIndex("publicKey"));
-    			keyBytes = Base64.decode(publicKey);
-    			break;
-    		}
-    	}
-    	
-    	c.close();
-    	keyRing.close();
-    	
-    	if(keyBytes == null) return null;
-    	
-        X509EncodedKeySpec x509KeySpec = new X509EncodedKeySpec(keyBytes);
-        KeyFactory keyFact = KeyFactory.getInstance(KEY_EXCHANGE_PROTOCOL);
-        PublicKey publicKey = keyFact.generatePublic(x509KeySpec);
-    	
-    	return publicKey;
+    	return decodePublicKey(entry.publicKey);
     }
     
     
     public static int getPublicKeyId(Context context, String number) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException{    	
-    	SQLiteDatabase keyRing = openKeyring(context);
-    	Cursor c = keyRing.query(PUBLIC_KEY_TABLE, null, "accepted=1", null, null, null, null);
-    	
-    	while(c.moveToNext()){
-    		String n = c.getString(c.getColumnIndex("number"));
-    		if(PhoneNumberUtils.compare(number, n)){
-    	    	int id = c.getInt(c.getColumnIndex("_ID"));
-    			c.close();
-    	    	keyRing.close();
-    			return id;
-    		}
-    	}
-    	
-    	return -1;
+    	PublicKeyIndex.Entry entry = PublicKeyIndex.get(context, number);
+    	return entry == null ? -1 : entry.id;
+    }
+    
+    
+    private static PublicKey decodePublicKey(byte[] keyBytes) throws NoSuchAlgorithmException, InvalidKeySpecException{
+        X509EncodedKeySpec x509KeySpec = new X509EncodedKeySpec(keyBytes);
+        KeyFactory keyFact = KeyFactory.getInstance(KEY_EXCHANGE_PROTOCOL);
+        return keyFact.generatePublic(x509KeySpec);
     }
     
     
@@ -367,12 +546,10 @@ public abstract class MessageEncryptionFactory {
      * @return boolean
      */
     public static boolean hasPublicKey(Context context, String number){
-    	ArrayList<String> publicKeys = getPublicKeys(context);
-    	for(String publicKey : publicKeys){
-    		if(PhoneNumberUtils.compare(number, publicKey)){
-    			Log.v(TAG, "Public key exists for number '" + number + "'; '" + publicKey + "'");
-    			return true;
-    		}
+    	PublicKeyIndex.Entry entry = PublicKeyIndex.get(context, number);
+    	if(entry != null){
+    		Log.v(TAG, "Public key exists for number '" + number + "'; '" + entry.number + "'");
+    		return true;
     	}
 
 		Log.v(TAG, "No public key for number '" + number + "'");
@@ -410,8 +587,11 @@ public abstract class MessageEncryptionFactory {
      * Disables the password, forcing the user to insert it again when trying
      * to read encrypted messages.
      */
-    public static void forgetPassword(){
+    public static synchronized void forgetPassword(){
     	password = null;
+    	PrivateKeySession.wipe();
+    	SecretKeyCache.clear();
+    	PlaintextCache.clear();
     	Log.i(TAG, "Disabled the password");
     }
     
@@ -419,8 +599,18 @@ public abstract class MessageEncryptionFactory {
     	return password != null;
     }
     
-    public static void setPassword(String password){
+    public static synchronized void setPassword(String password){
+    	boolean changed = password == null || !password.equals(MessageEncryptionFactory.password);
+    	
+    	// The password is changed before the session is wiped, see getPrivateKey()
     	MessageEncryptionFactory.password = password;
+    	
+    	if(changed){
+    		// The unlocked key must be verified against the new password again
+    		PrivateKeySession.wipe();
+    		SecretKeyCache.clear();
+    		PlaintextCache.clear();
+    	}
     }
     
     public static String getPassword(){
@@ -456,9 +646,7 @@ public abstract class MessageEncryptionFactory {
 		return keyBytes;
     }
     
-    private static Cipher getCipher(int mode) throws Exception {
-    	if(!isAuthenticated()) return null;
-
+    private static Cipher getCipher(int mode, String password) throws Exception {
     	char[] passwordChars = new char[password.length()];
     	password.getChars(0, password.length(), passwordChars, 0);
     	
@@ -475,25 +663,64 @@ public abstract class MessageEncryptionFactory {
     }
     
     private static byte[] encryptPrivateKey(PrivateKey pk) throws Exception {
-    	Cipher cipher = getCipher(Cipher.ENCRYPT_MODE);
+    	String password = MessageEncryptionFactory.password;
+    	if(password == null)
+    		throw new GeneralSecurityException("Not authenticated");
+    	
+    	return lockPrivateKey(pk, password);
+    }
+    
+    /**
+     * Encrypt a private key with a password, as it is stored
+     * 
+     * @param pk
+     * @param password
+     * @return encrypted private key
+     * @throws Exception
+     */
+    public static byte[] lockPrivateKey(PrivateKey pk, String password) throws Exception {
+    	Cipher cipher = getCipher(Cipher.ENCRYPT_MODE, password);
         return cipher.doFinal(pk.getEncoded());
     }
     
-    private static byte[] decryptPrivateKey(byte[] cipherText) throws Exception {
-    	Cipher cipher = getCipher(Cipher.DECRYPT_MODE);
-        return cipher.doFinal(cipherText);
+    /**
+     * Decrypt a stored private key with a password
+     * 
+     * @param cipherText
+     * @param password
+     * @return private key
+     * @throws Exception
+     */
+    public static PrivateKey unlockPrivateKey(byte[] cipherText, String password) throws Exception {
+    	Cipher cipher = getCipher(Cipher.DECRYPT_MODE, password);
+    	
+    	PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(cipher.doFinal(cipherText));
+		KeyFactory kf = KeyFactory.getInstance(KEY_EXCHANGE_PROTOCOL);
+		return kf.generatePrivate(spec);
     }
     
+    /**
+     * Get the keyring database. The connection is shared by the whole process and may not be closed.
+     * 
+     * @param context
+     * @return keyring
+     */
     public static SQLiteDatabase openKeyring(Context context){
-    	SQLiteDatabase keyRing = context.openOrCreateDatabase(PUBLIC_KEY_DATABASE, Context.MODE_PRIVATE, null);
-    	keyRing.execSQL("CREATE TABLE IF NOT EXISTS " + PUBLIC_KEY_TABLE + 
-    			" (_ID INTEGER PRIMARY KEY, " +
-    			"number VARCHAR, " +
-    			"publicKey VARCHAR, " +
-    			"accepted BOOLEAN, " +
-    			"received TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+    	return KeyringStore.getInstance(context).getWritableDatabase();
+    }
+    
+    /**
+     * Normalize a number to the form used to index the keyring. Different notations of the
+     * same number (with or without country code, separators) have the same normalized form.
+     * 
+     * @param number
+     * @return normalized number
+     */
+    public static String normalizeNumber(String number){
+    	if(number == null) return "";
     	
-    	return keyRing;
+    	String minMatch = PhoneNumberUtils.toCallerIDMinMatch(number);
+    	return TextUtils.isEmpty(minMatch) ? number : minMatch;
     }
     
     public static String stripHeader(String message){
@@ -509,6 +736,35 @@ public abstract class MessageEncryptionFactory {
     	return message.substring(lastSeparator + 1);
     }
     
+    /**
+     * Get the compression type from the metadata of an encrypted message. Only messages
+     * with a version 1 frame have it there, newer frames carry it themselves.
+     * 
+     * @param message
+     * @return compression type, 0 if there is none, or -1 if the compression field is corrupted
+     */
+    public static int getCompressionType(String message){
+    	// Sent messages used to be stored without metadata, they aren't compressed
+    	if(!message.startsWith(MultipartDataMessage.MESSAGE_HEADER))
+    		return 0;
+    	
+    	int metadataStart = MultipartDataMessage.MESSAGE_HEADER.length();
+    	int metadataEnd = message.indexOf(MultipartDataMessage.HEADER_SEPERATOR, metadataStart);
+    	if(metadataEnd == -1)
+    		return 0;
+    	
+    	String[] metadata = message.substring(metadataStart, metadataEnd).split(MultipartDataMessage.PROTOCOL_SEPERATOR);
+    	if(metadata.length < 2)
+    		return 0;
+    	
+    	try{
+    		return Integer.parseInt(metadata[1]);
+    	}catch(NumberFormatException e){
+    		Log.e(TAG, "Corrupted message, invalid compression type: " + message);
+    		return -1;
+    	}
+    }
+    
     public static int getProcolVersion(String message){
     	if(!message.startsWith(MultipartDataMessage.MESSAGE_HEADER) && !message.startsWith(MultipartDataMessage.PUBLIC_KEY_HEADER))
     		return -1;
@@ -0,0 +1,82 @@
+package org.parandroid.encryption;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.util.Log;
+
+/**
+ * Cache of decrypted message bodies, so messages don't have to be decrypted again
+ * every time a message list is refreshed.
+ *
+ * Entries are keyed by the message type, the message id and a hash of the encrypted
+ * body, so a message that was re-encrypted or replaced is never served stale. The cache
+ * is bounded by the number of characters it holds and is wiped when the password is
+ * forgotten.
+ */
+public final class PlaintextCache {
+
+	private static final String TAG = "Parandroid PlaintextCache";
+
+	/**
+	 * Maximum number of characters of plain text held by the cache
+	 */
+	private static final int MAX_CHARS = 256 * 1024;
+
+	private static int sChars = 0;
+
+	private static final LinkedHashMap<String, String> sCache = new LinkedHashMap<String, String>(64, 0.75f, true);
+
+	private PlaintextCache(){
+	}
+
+	private static String getKey(String type, long msgId, String cipherText){
+		return type + "/" + msgId + "/" + cipherText.hashCode();
+	}
+
+	/**
+	 * Get the decrypted body of a message
+	 *
+	 * @param type message type, e.g. "sms"
+	 * @param msgId
+	 * @param cipherText the encrypted body, as stored
+	 * @return plain text, or null if it isn't cached
+	 */
+	public static String get(String type, long msgId, String cipherText){
+		if(!MessageEncryptionFactory.isAuthenticated() || cipherText == null) return null;
+
+		synchronized(sCache){
+			return sCache.get(getKey(type, msgId, cipherText));
+		}
+	}
+
+	public static void put(String type, long msgId, String cipherText, String plainText){
+		if(cipherText == null || plainText == null) return;
+		if(plainText.length() > MAX_CHARS) return;
+
+		synchronized(sCache){
+			// Checked under the lock: the password is forgotten before the cache is cleared,
+			// so a message decrypted meanwhile is either cleared or not cached at all
+			if(!MessageEncryptionFactory.isAuthenticated()) return;
+
+			String old = sCache.put(getKey(type, msgId, cipherText), plainText);
+			if(old != null)
+				sChars -= old.length();
+			sChars += plainText.length();
+
+			Iterator<String> it = sCache.values().iterator();
+			while(sChars > MAX_CHARS && it.hasNext()){
+				sChars -= it.next().length();
+				it.remove();
+			}
+		}
+	}
+
+	static void clear(){
+		synchronized(sCache){
+			sCache.clear();
+			sChars = 0;
+		}
+		Log.v(TAG, "Cleared the decrypted messages");
+	}
+}
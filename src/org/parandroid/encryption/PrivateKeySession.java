@@ -0,0 +1,64 @@
+package org.parandroid.encryption;
+
+import java.security.PrivateKey;
+
+import android.util.Log;
+
+/**
+ * Holds the unlocked private key while the user is authenticated, so the key file
+ * doesn't have to be read and decrypted with the password for every message.
+ *
+ * The key is wiped as soon as the password is forgotten or changed. Every wipe starts a
+ * new generation of the session. Whatever was derived from the key or the password in an
+ * older generation, e.g. a key unlocked by a thread that was busy while the password was
+ * forgotten, must not be published anymore, see {@link #set(PrivateKey, int)}.
+ */
+final class PrivateKeySession {
+
+	private static final String TAG = "Parandroid PrivateKeySession";
+
+	private static PrivateKey sPrivateKey = null;
+
+	// Only written with the lock held, read without it
+	private static volatile int sGeneration = 0;
+
+	private PrivateKeySession(){
+	}
+
+	static synchronized PrivateKey get(){
+		return sPrivateKey;
+	}
+
+	static int getGeneration(){
+		return sGeneration;
+	}
+
+	/**
+	 * Keep a key that was unlocked in the given generation of the session
+	 *
+	 * @return false if the session was wiped since, the key is not kept then
+	 */
+	static synchronized boolean set(PrivateKey privateKey, int generation){
+		if(generation != sGeneration) return false;
+
+		sPrivateKey = privateKey;
+		return true;
+	}
+
+	/**
+	 * Replace the key by a new one, e.g. of a new keypair. This starts a new generation,
+	 * since nothing derived from the old key is valid anymore.
+	 */
+	static synchronized void replace(PrivateKey privateKey){
+		sGeneration++;
+		sPrivateKey = privateKey;
+	}
+
+	static synchronized void wipe(){
+		sGeneration++;
+		if(sPrivateKey == null) return;
+
+		sPrivateKey = null;
+		Log.v(TAG, "Wiped the unlocked private key");
+	}
+}
@@ -0,0 +1,103 @@
+package org.parandroid.encryption;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bouncycastle.util.encoders.Base64;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.telephony.PhoneNumberUtils;
+import android.util.Log;
+
+/**
+ * In-memory index of the accepted public keys, keyed by the normalized number
+ * as stored in the min_match column of the keyring.
+ *
+ * A lookup that misses queries the keyring for the accepted keys with the same
+ * min_match, which the (min_match, accepted) index serves, and keeps them as a
+ * bucket, also when there are none. The keys in a bucket are only compared with
+ * PhoneNumberUtils.compare. The buckets are bounded with LRU eviction and
+ * dropped whenever the keyring is written.
+ */
+final class PublicKeyIndex {
+
+	private static final String TAG = "Parandroid PublicKeyIndex";
+
+	private static final String[] PROJECTION = new String[] { "_ID", "number", "publicKey" };
+
+	private static final int CACHE_SIZE = 64;
+
+	private static final LinkedHashMap<String, ArrayList<Entry>> sIndex = new LinkedHashMap<String, ArrayList<Entry>>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ArrayList<Entry>> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	static class Entry {
+		final int id;
+		final String number;
+		final byte[] publicKey;
+
+		Entry(int id, String number, byte[] publicKey){
+			this.id = id;
+			this.number = number;
+			this.publicKey = publicKey;
+		}
+	}
+
+	private PublicKeyIndex(){
+	}
+
+	/**
+	 * Get the accepted public key for the given number
+	 *
+	 * @param context
+	 * @param number
+	 * @return entry, or null if there is no accepted key for the number
+	 */
+	static synchronized Entry get(Context context, String number){
+		if(number == null) return null;
+
+		String minMatch = MessageEncryptionFactory.normalizeNumber(number);
+		ArrayList<Entry> bucket = sIndex.get(minMatch);
+		if(bucket == null){
+			bucket = load(context, minMatch);
+			sIndex.put(minMatch, bucket);
+		}
+
+		for(Entry entry : bucket){
+			if(PhoneNumberUtils.compare(number, entry.number))
+				return entry;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Drop the index, the buckets will be queried again with the next lookups
+	 */
+	static synchronized void invalidate(){
+		sIndex.clear();
+	}
+
+	private static ArrayList<Entry> load(Context context, String minMatch){
+		ArrayList<Entry> bucket = new ArrayList<Entry>(1);
+
+		SQLiteDatabase keyRing = MessageEncryptionFactory.openKeyring(context);
+		Cursor c = keyRing.query(MessageEncryptionFactory.PUBLIC_KEY_TABLE, PROJECTION, "min_match=? AND accepted=1", new String[] { minMatch }, null, null, "_ID DESC");
+
+		try{
+			while(c.moveToNext())
+				bucket.add(new Entry(c.getInt(0), c.getString(1), Base64.decode(c.getString(2))));
+		}finally{
+			c.close();
+		}
+
+		Log.v(TAG, "Loaded " + bucket.size() + " public keys for " + minMatch);
+		return bucket;
+	}
+}
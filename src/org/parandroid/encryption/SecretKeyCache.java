@@ -0,0 +1,102 @@
+package org.parandroid.encryption;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import android.telephony.PhoneNumberUtils;
+import android.util.Log;
+
+/**
+ * In-memory cache of the shared secrets computed with the Diffie-Hellman key agreement.
+ *
+ * Entries are keyed by the id of the peer's public key in the keyring and remember the
+ * number of the peer, so they can be dropped when that key is deleted or replaced. The
+ * cache only lives as long as the password is known and is bounded with LRU eviction.
+ */
+final class SecretKeyCache {
+
+	private static final String TAG = "Parandroid SecretKeyCache";
+
+	private static final int CACHE_SIZE = 32;
+
+	private static final LinkedHashMap<Integer, Entry> sCache = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private static class Entry {
+		final String number;
+		final SecretKeySpec secretKeySpec;
+
+		Entry(String number, SecretKeySpec secretKeySpec){
+			this.number = number;
+			this.secretKeySpec = secretKeySpec;
+		}
+	}
+
+	private SecretKeyCache(){
+	}
+
+	static SecretKeySpec get(int publicKeyId){
+		synchronized(sCache){
+			Entry entry = sCache.get(publicKeyId);
+			return entry == null ? null : entry.secretKeySpec;
+		}
+	}
+
+	/**
+	 * Cache a shared secret computed in the given generation of the PrivateKeySession.
+	 * The session is wiped before the cache is cleared, so checking the generation under
+	 * the lock of the cache makes sure a secret is never kept after a clear() it raced with.
+	 *
+	 * @param publicKeyId
+	 * @param number
+	 * @param secretKeySpec
+	 * @param generation
+	 */
+	static void put(int publicKeyId, String number, SecretKeySpec secretKeySpec, int generation){
+		synchronized(sCache){
+			if(generation != PrivateKeySession.getGeneration()) return;
+
+			sCache.put(publicKeyId, new Entry(number, secretKeySpec));
+		}
+	}
+
+	/**
+	 * Remove the shared secrets for a peer, e.g. when a new public key was accepted
+	 *
+	 * @param number
+	 */
+	static void remove(String number){
+		synchronized(sCache){
+			Iterator<Entry> it = sCache.values().iterator();
+			while(it.hasNext()){
+				if(PhoneNumberUtils.compare(number, it.next().number))
+					it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Remove the shared secret computed with the given public key
+	 *
+	 * @param publicKeyId
+	 */
+	static void remove(int publicKeyId){
+		synchronized(sCache){
+			sCache.remove(publicKeyId);
+		}
+	}
+
+	static void clear(){
+		synchronized(sCache){
+			sCache.clear();
+		}
+		Log.v(TAG, "Cleared the shared secrets");
+	}
+}
@@ -74,6 +74,13 @@ public class MmsConfig {
     private static int mAliasRuleMinChars = 2;
     private static int mAliasRuleMaxChars = 48;
 
+    // Memory budgets of the contact info cache, in bytes
+    private static int mContactCacheSize = 256 * 1024;         // default value
+    private static int mAvatarCacheSize = 1024 * 1024;          // default value
+
+    // Number of queued SMS handed to the radio at a time when the queue is sent
+    private static int mQueuedSmsWindow = 4;                    // default value
+
     public static void init(Context context) {
         if (LOCAL_LOGV) {
             Log.v(TAG, "MmsConfig.init()");
@@ -187,6 +194,18 @@ public class MmsConfig {
         return mAllowAttachAudio;
     }
 
+    public static int getContactCacheSize() {
+        return mContactCacheSize;
+    }
+
+    public static int getAvatarCacheSize() {
+        return mAvatarCacheSize;
+    }
+
+    public static int getQueuedSmsWindow() {
+        return mQueuedSmsWindow;
+    }
+
     private static void loadMmsSettings(Context context) {
         XmlResourceParser parser = context.getResources().getXml(R.xml.mms_config);
 
@@ -256,6 +275,12 @@ public class MmsConfig {
                             mAliasRuleMinChars = Integer.parseInt(text);
                         } else if ("aliasMaxChars".equalsIgnoreCase(value)) {
                             mAliasRuleMaxChars = Integer.parseInt(text);
+                        } else if ("contactCacheSize".equalsIgnoreCase(value)) {
+                            mContactCacheSize = Integer.parseInt(text);
+                        } else if ("avatarCacheSize".equalsIgnoreCase(value)) {
+                            mAvatarCacheSize = Integer.parseInt(text);
+                        } else if ("queuedSmsWindow".equalsIgnoreCase(value)) {
+                            mQueuedSmsWindow = Integer.parseInt(text);
                         }
                     } else if ("string".equals(tag)) {
                         // string config tags go here
@@ -71,6 +71,12 @@ public class ParandroidSmsApp extends Application {
         DrmUtils.cleanupStorage(this);
     }
 
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        ContactInfoCache.getInstance().onLowMemory();
+    }
+
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
         LayoutManager.getInstance().onConfigurationChanged(newConfig);
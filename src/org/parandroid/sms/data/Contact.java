@@ -1,8 +1,13 @@
 package org.parandroid.sms.data;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.content.ContentUris;
 import android.content.Context;
@@ -20,14 +25,26 @@ import android.util.Log;
 
 import org.parandroid.sms.ui.MessageUtils;
 import org.parandroid.sms.util.ContactInfoCache;
-import org.parandroid.sms.util.TaskStack;
 import org.parandroid.sms.LogTag;
 
 public class Contact {
     private static final String TAG = "Contact";
     private static final boolean V = false;
 
-    private static final TaskStack sTaskStack = new TaskStack();
+    // Delay before a batch of contact updates is looked up, to let more contacts join it
+    private static final int BATCH_DELAY_MS = 50;
+    // Maximum number of contacts updated at once
+    private static final int MAX_BATCH_SIZE = 50;
+
+    private static final ScheduledThreadPoolExecutor sBatchLoader =
+            new ScheduledThreadPoolExecutor(1);
+
+    // Contacts waiting to be updated, the most recently requested last.
+    private static final LinkedHashSet<Contact> sPendingUpdates = new LinkedHashSet<Contact>();
+    // Contacts being updated right now. Guarded by sPendingUpdates.
+    private static final HashSet<Contact> sUpdating = new HashSet<Contact>();
+    // True if sUpdateBatches is scheduled or running. Guarded by sPendingUpdates.
+    private static boolean sBatchScheduled;
 
 //    private static final ContentObserver sContactsObserver = new ContentObserver(new Handler()) {
 //        @Override
@@ -61,7 +78,7 @@ public class Contact {
     private long mPersonId;
     private int mPresenceResId;      // TODO: make this a state instead of a res ID
     private String mPresenceText;
-    private BitmapDrawable mAvatar;
+    private boolean mHasAvatar;
     private boolean mIsStale;
 
     @Override
@@ -114,10 +131,13 @@ public class Contact {
             throw new IllegalArgumentException("Contact.get called with null or empty number");
         }
 
-        Contact contact = Cache.get(number);
-        if (contact == null) {
-            contact = new Contact(number);
-            Cache.put(contact);
+        Contact contact;
+        synchronized (Cache.getInstance()) {
+            contact = Cache.get(number);
+            if (contact == null) {
+                contact = new Contact(number);
+                Cache.put(contact);
+            }
         }
         if (contact.mIsStale) {
             asyncUpdateContact(contact, canBlock);
@@ -125,6 +145,43 @@ public class Contact {
         return contact;
     }
 
+    /**
+     * Caches a contact with a name that was saved earlier, e.g. in the ConversationSnapshot,
+     * to be shown until the contact is looked up. The contact stays stale, so the next
+     * get() looks it up. Contacts that are cached already are left alone.
+     */
+    static void prime(String number, String name) {
+        if (TextUtils.isEmpty(number) || TextUtils.isEmpty(name)) {
+            return;
+        }
+
+        synchronized (Cache.getInstance()) {
+            if (Cache.get(number) != null) {
+                return;
+            }
+
+            Contact contact = new Contact(number);
+            contact.mName = name;
+            contact.updateNameAndNumber();
+            Cache.put(contact);
+        }
+    }
+
+    /**
+     * Returns the name of a cached contact without looking it up, or null if the contact
+     * isn't cached or has no name.
+     */
+    static String getCachedName(String number) {
+        Contact contact = Cache.get(number);
+        if (contact == null) {
+            return null;
+        }
+
+        synchronized (contact) {
+            return TextUtils.isEmpty(contact.mName) ? null : contact.mName;
+        }
+    }
+
     public static void invalidateCache() {
         if (Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
             log("invalidateCache");
@@ -205,16 +262,78 @@ public class Contact {
                 " isStale: " + c.mIsStale);
         }
 
-        Runnable r = new Runnable() {
-            public void run() {
-                updateContact(c);
+        if (canBlock) {
+            updateContact(c);
+            return;
+        }
+
+        synchronized (sPendingUpdates) {
+            if (sUpdating.contains(c)) {
+                // Already being looked up
+                return;
             }
-        };
 
-        if (canBlock) {
-            r.run();
-        } else {
-            sTaskStack.push(r);
+            // Move it to the end, so the contacts requested last are looked up first
+            sPendingUpdates.remove(c);
+            sPendingUpdates.add(c);
+
+            if (!sBatchScheduled) {
+                sBatchScheduled = true;
+                sBatchLoader.schedule(sUpdateBatches, BATCH_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Updates the pending contacts in batches, the most recently requested ones first,
+     * until none are left. Each batch costs one contacts query instead of one per number.
+     */
+    private static final Runnable sUpdateBatches = new Runnable() {
+        public void run() {
+            while (true) {
+                ArrayList<Contact> batch = new ArrayList<Contact>(MAX_BATCH_SIZE);
+                synchronized (sPendingUpdates) {
+                    sUpdating.clear();
+                    if (sPendingUpdates.isEmpty()) {
+                        sBatchScheduled = false;
+                        return;
+                    }
+
+                    int skip = Math.max(0, sPendingUpdates.size() - MAX_BATCH_SIZE);
+                    Iterator<Contact> it = sPendingUpdates.iterator();
+                    while (it.hasNext()) {
+                        Contact c = it.next();
+                        if (skip > 0) {
+                            skip--;
+                            continue;
+                        }
+                        batch.add(c);
+                        it.remove();
+                    }
+                    sUpdating.addAll(batch);
+                }
+
+                updateContacts(batch);
+            }
+        }
+    };
+
+    private static void updateContacts(List<Contact> contacts) {
+        ArrayList<Contact> lookups = new ArrayList<Contact>(contacts.size());
+        ArrayList<String> numbers = new ArrayList<String>(contacts.size());
+        for (Contact c : contacts) {
+            // Check to see if this is the local ("me") number.
+            if (!handleLocalNumber(c)) {
+                lookups.add(c);
+                numbers.add(c.getNumber());
+            }
+        }
+
+        HashMap<String, ContactInfoCache.CacheEntry> entries =
+                ContactInfoCache.getInstance().getContactInfo(numbers);
+
+        for (int i = 0; i < lookups.size(); i++) {
+            updateContact(lookups.get(i), entries.get(numbers.get(i)));
         }
     }
 
@@ -229,8 +348,12 @@ public class Contact {
         }
 
         ContactInfoCache cache = ContactInfoCache.getInstance();
-        ContactInfoCache.CacheEntry entry = cache.getContactInfo(c.mNumber);
+        updateContact(c, cache.getContactInfo(c.mNumber));
+    }
+
+    private static void updateContact(Contact c, ContactInfoCache.CacheEntry entry) {
         synchronized (Cache.getInstance()) {
+            c.mHasAvatar = entry.hasAvatar();
             if (contactChanged(c, entry)) {
                 if (Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
                     log("updateContact: contact changed for " + entry.name);
@@ -243,7 +366,6 @@ public class Contact {
                 c.mPersonId = entry.person_id;
                 c.mPresenceResId = entry.presenceResId;
                 c.mPresenceText = entry.presenceText;
-                c.mAvatar = entry.mAvatar;
                 c.mIsStale = false;
                 for (UpdateListener l : c.mListeners) {
                     if (V) Log.d(TAG, "updating " + l);
@@ -276,10 +398,18 @@ public class Contact {
         return mNumber;
     }
 
-    public synchronized void setNumber(String number) {
-        mNumber = number;
-        updateNameAndNumber();
-        mNumberIsModified = true;
+    public void setNumber(String number) {
+        String oldNumber;
+        synchronized (this) {
+            oldNumber = mNumber;
+            mNumber = number;
+            updateNameAndNumber();
+            mNumberIsModified = true;
+        }
+
+        if (oldNumber != null && !oldNumber.equals(number)) {
+            Cache.renumber(this, oldNumber);
+        }
     }
 
     public boolean isNumberModified() {
@@ -361,7 +491,13 @@ public class Contact {
     }
 
     public Drawable getAvatar(Drawable defaultValue) {
-        return mAvatar != null ? mAvatar : defaultValue;
+        if (!mHasAvatar) {
+            return defaultValue;
+        }
+
+        // Not kept by the contact, so the cache can evict it
+        BitmapDrawable avatar = ContactInfoCache.getInstance().getAvatar(mPersonId);
+        return avatar != null ? avatar : defaultValue;
     }
 
     public static void init(final Context context) {
@@ -391,13 +527,24 @@ public class Contact {
         Cache.getContext().getContentResolver().unregisterContentObserver(sPresenceObserver);
     }
 
+    /**
+     * Cache of all contacts, so there is only one Contact per number.
+     *
+     * Phone numbers are indexed by their caller ID min match, the last digits of the
+     * number. Numbers with the same min match share a bucket and are only compared in
+     * full within it. Email addresses are indexed case-insensitively.
+     */
     private static class Cache {
         private static Cache sInstance;
         static Cache getInstance() { return sInstance; }
         private final List<Contact> mCache;
+        private final HashMap<String, ArrayList<Contact>> mNumbers;
+        private final HashMap<String, Contact> mEmails;
         private final Context mContext;
         private Cache(Context context) {
             mCache = new ArrayList<Contact>();
+            mNumbers = new HashMap<String, ArrayList<Contact>>();
+            mEmails = new HashMap<String, Contact>();
             mContext = context;
         }
 
@@ -418,14 +565,14 @@ public class Contact {
             }
         }
 
+        private static String getNumberKey(String number) {
+            String minMatch = PhoneNumberUtils.toCallerIDMinMatch(number);
+            return TextUtils.isEmpty(minMatch) ? number : minMatch;
+        }
+
         private static Contact getEmail(String number) {
             synchronized (sInstance) {
-                for (Contact c : sInstance.mCache) {
-                    if (number.equalsIgnoreCase(c.mNumber)) {
-                        return c;
-                    }
-                }
-                return null;
+                return sInstance.mEmails.get(number.toLowerCase());
             }
         }
 
@@ -434,7 +581,11 @@ public class Contact {
                 return getEmail(number);
 
             synchronized (sInstance) {
-                for (Contact c : sInstance.mCache) {
+                ArrayList<Contact> bucket = sInstance.mNumbers.get(getNumberKey(number));
+                if (bucket == null) {
+                    return null;
+                }
+                for (Contact c : bucket) {
 
                     // if the numbers are an exact match (i.e. Google SMS), or if the phone
                     // number comparison returns a match, return the contact.
@@ -454,7 +605,70 @@ public class Contact {
                     throw new IllegalStateException("cache already contains " + c);
                 }
                 sInstance.mCache.add(c);
+                sInstance.index(c, c.mNumber);
+            }
+        }
+
+        /**
+         * Index a cached contact under its new number
+         */
+        static void renumber(Contact c, String oldNumber) {
+            if (sInstance == null) {
+                return;
+            }
+            synchronized (sInstance) {
+                if (sInstance.unindex(c, oldNumber)) {
+                    sInstance.index(c, c.getNumber());
+                }
+            }
+        }
+
+        private void index(Contact c, String number) {
+            if (Mms.isEmailAddress(number)) {
+                String key = number.toLowerCase();
+                if (!mEmails.containsKey(key)) {
+                    mEmails.put(key, c);
+                }
+                return;
+            }
+
+            String key = getNumberKey(number);
+            ArrayList<Contact> bucket = mNumbers.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<Contact>(1);
+                mNumbers.put(key, bucket);
+            }
+            bucket.add(c);
+        }
+
+        /**
+         * @return true if the contact was indexed under the number
+         */
+        private boolean unindex(Contact c, String number) {
+            if (Mms.isEmailAddress(number)) {
+                String key = number.toLowerCase();
+                if (mEmails.get(key) == c) {
+                    mEmails.remove(key);
+                    return true;
+                }
+                return false;
+            }
+
+            String key = getNumberKey(number);
+            ArrayList<Contact> bucket = mNumbers.get(key);
+            if (bucket == null) {
+                return false;
+            }
+            for (int i = 0; i < bucket.size(); i++) {
+                if (bucket.get(i) == c) {
+                    bucket.remove(i);
+                    if (bucket.isEmpty()) {
+                        mNumbers.remove(key);
+                    }
+                    return true;
+                }
             }
+            return false;
         }
 
         static String[] getNumbers() {
@@ -1,7 +1,10 @@
 package org.parandroid.sms.data;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
 import java.util.Set;
 
 import android.content.AsyncQueryHandler;
@@ -35,20 +38,21 @@ public class Conversation {
     private static final Uri sAllThreadsUri =
         Threads.CONTENT_URI.buildUpon().appendQueryParameter("simple", "true").build();
 
-    private static final String[] ALL_THREADS_PROJECTION = {
+    // Also the columns of ConversationSnapshot
+    static final String[] ALL_THREADS_PROJECTION = {
         Threads._ID, Threads.DATE, Threads.MESSAGE_COUNT, Threads.RECIPIENT_IDS,
         Threads.SNIPPET, Threads.SNIPPET_CHARSET, Threads.READ, Threads.ERROR,
         Threads.HAS_ATTACHMENT
     };
-    private static final int ID             = 0;
-    private static final int DATE           = 1;
-    private static final int MESSAGE_COUNT  = 2;
-    private static final int RECIPIENT_IDS  = 3;
-    private static final int SNIPPET        = 4;
-    private static final int SNIPPET_CS     = 5;
-    private static final int READ           = 6;
-    private static final int ERROR          = 7;
-    private static final int HAS_ATTACHMENT = 8;
+    static final int ID             = 0;
+    static final int DATE           = 1;
+    static final int MESSAGE_COUNT  = 2;
+    static final int RECIPIENT_IDS  = 3;
+    static final int SNIPPET        = 4;
+    static final int SNIPPET_CS     = 5;
+    static final int READ           = 6;
+    static final int ERROR          = 7;
+    static final int HAS_ATTACHMENT = 8;
 
 
     private final Context mContext;
@@ -224,6 +228,7 @@ public class Conversation {
         // If we have no Uri to mark (as in the case of a conversation that
         // has not yet made its way to disk), there's nothing to do.
         final Uri threadUri = getUri();
+        final long threadId = mThreadId;
 
         new Thread(new Runnable() {
             public void run() {
@@ -234,7 +239,8 @@ public class Conversation {
                     mHasUnreadMessages = false;
                 }
                 // Always update notifications regardless of the read state.
-                MessagingNotification.updateAllNotifications(mContext);
+                MessagingNotification.notifyThreadRead(mContext,
+                        threadUri != null ? threadId : 0);
             }
         }).start();
     }
@@ -274,28 +280,41 @@ public class Conversation {
      *
      * @return The thread ID of this conversation in the database
      */
-    public synchronized long ensureThreadId() {
-        if (DEBUG) {
-            LogTag.debug("ensureThreadId before: " + mThreadId);
-        }
-        if (mThreadId <= 0) {
+    public long ensureThreadId() {
+        long threadId;
+        synchronized (this) {
+            if (DEBUG) {
+                LogTag.debug("ensureThreadId before: " + mThreadId);
+            }
+            if (mThreadId > 0) {
+                return mThreadId;
+            }
             mThreadId = getOrCreateThreadId(mContext, mRecipients);
-        }
-        if (DEBUG) {
-            LogTag.debug("ensureThreadId after: " + mThreadId);
+            if (DEBUG) {
+                LogTag.debug("ensureThreadId after: " + mThreadId);
+            }
+            threadId = mThreadId;
         }
 
-        return mThreadId;
+        Cache.update(this);
+        return threadId;
     }
 
-    public synchronized void clearThreadId() {
+    public void clearThreadId() {
+        long threadId;
+        synchronized (this) {
+            threadId = mThreadId;
+        }
+
         // remove ourself from the cache
         if (Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
-            LogTag.debug("clearThreadId old threadId was: " + mThreadId + " now zero");
+            LogTag.debug("clearThreadId old threadId was: " + threadId + " now zero");
         }
-        Cache.remove(mThreadId);
+        Cache.remove(threadId);
 
-        mThreadId = 0;
+        synchronized (this) {
+            mThreadId = 0;
+        }
     }
 
     /**
@@ -304,11 +323,15 @@ public class Conversation {
      * operation that depends on this conversation existing in the
      * database (e.g. storing a draft message to it).
      */
-    public synchronized void setRecipients(ContactList list) {
-        mRecipients = list;
+    public void setRecipients(ContactList list) {
+        synchronized (this) {
+            mRecipients = list;
 
-        // Invalidate thread ID because the recipient set has changed.
-        mThreadId = 0;
+            // Invalidate thread ID because the recipient set has changed.
+            mThreadId = 0;
+        }
+
+        Cache.update(this);
     }
 
     /**
@@ -528,17 +551,48 @@ public class Conversation {
         synchronized (conv) {
             conv.mRecipients = recipients;
         }
+
+        Cache.update(conv);
     }
 
     /**
      * Private cache for the use of the various forms of Conversation.get.
+     *
+     * Conversations are indexed by thread ID and by a key of their recipient set, so
+     * lookups don't have to walk the whole cache. Both indexes are only changed under
+     * the cache lock. Conversations change their thread ID and recipients in place, so
+     * they call {@link #update} afterwards to be indexed under the new values. That
+     * must not be done while holding the lock of the conversation itself, because the
+     * cache locks conversations while it holds its own lock.
      */
     private static class Cache {
         private static Cache sInstance = new Cache();
         static Cache getInstance() { return sInstance; }
-        private final HashSet<Conversation> mCache;
+
+        // The keys each cached conversation is currently indexed by.
+        private final IdentityHashMap<Conversation, Keys> mCache;
+        // Conversations that exist in the database.
+        private final HashMap<Long, Conversation> mByThreadId;
+        // Conversations without a thread ID yet, usually none or very few.
+        private final ArrayList<Conversation> mWithoutThreadId;
+        // All conversations, by recipientKey(). Equal keys are compared in full.
+        private final HashMap<String, ArrayList<Conversation>> mByRecipients;
+
+        private static class Keys {
+            final long threadId;
+            final String recipients;
+
+            Keys(long threadId, String recipients) {
+                this.threadId = threadId;
+                this.recipients = recipients;
+            }
+        }
+
         private Cache() {
-            mCache = new HashSet<Conversation>(10);
+            mCache = new IdentityHashMap<Conversation, Keys>();
+            mByThreadId = new HashMap<Long, Conversation>();
+            mWithoutThreadId = new ArrayList<Conversation>();
+            mByRecipients = new HashMap<String, ArrayList<Conversation>>();
         }
 
         /**
@@ -549,19 +603,14 @@ public class Conversation {
             synchronized (sInstance) {
                 if (DEBUG) {
                     LogTag.debug("Conversation get with threadId: " + threadId);
+                    dumpCache();
                 }
-                dumpCache();
-                for (Conversation c : sInstance.mCache) {
-                    if (DEBUG) {
-                        LogTag.debug("Conversation get() threadId: " + threadId +
-                                " c.getThreadId(): " + c.getThreadId());
-                    }
-                    if (c.getThreadId() == threadId) {
-                        return c;
-                    }
+                if (threadId <= 0) {
+                    return sInstance.mWithoutThreadId.isEmpty() ?
+                            null : sInstance.mWithoutThreadId.get(0);
                 }
+                return sInstance.mByThreadId.get(threadId);
             }
-            return null;
         }
 
         /**
@@ -574,9 +623,12 @@ public class Conversation {
                     LogTag.debug("Conversation get with ContactList: " + list);
                     dumpCache();
                 }
-                for (Conversation c : sInstance.mCache) {
-                    if (c.getRecipients().equals(list)) {
-                        return c;
+                ArrayList<Conversation> bucket = sInstance.mByRecipients.get(recipientKey(list));
+                if (bucket != null) {
+                    for (Conversation c : bucket) {
+                        if (c.getRecipients().equals(list)) {
+                            return c;
+                        }
                     }
                 }
             }
@@ -598,24 +650,40 @@ public class Conversation {
                     dumpCache();
                 }
 
-                if (sInstance.mCache.contains(c)) {
+                ContactList recipients = c.getRecipients();
+                if (sInstance.mCache.containsKey(c) || get(recipients) != null) {
                     throw new IllegalStateException("cache already contains " + c +
                             " threadId: " + c.mThreadId);
                 }
-                sInstance.mCache.add(c);
+                sInstance.index(c, c.getThreadId(), recipients);
             }
         }
 
         static void remove(long threadId) {
-            if (DEBUG) {
-                LogTag.debug("remove threadid: " + threadId);
-                dumpCache();
+            synchronized (sInstance) {
+                if (DEBUG) {
+                    LogTag.debug("remove threadid: " + threadId);
+                    dumpCache();
+                }
+                Conversation c = get(threadId);
+                if (c != null) {
+                    sInstance.unindex(c);
+                }
             }
-            for (Conversation c : sInstance.mCache) {
-                if (c.getThreadId() == threadId) {
-                    sInstance.mCache.remove(c);
+        }
+
+        /**
+         * Index a cached conversation again after its thread ID or
+         * recipients changed. Does nothing for conversations that
+         * aren't cached.
+         */
+        static void update(Conversation c) {
+            synchronized (sInstance) {
+                if (!sInstance.mCache.containsKey(c)) {
                     return;
                 }
+                sInstance.unindex(c);
+                sInstance.index(c, c.getThreadId(), c.getRecipients());
             }
         }
 
@@ -623,7 +691,7 @@ public class Conversation {
             if (DEBUG) {
                 synchronized (sInstance) {
                     LogTag.debug("Conversation dumpCache: ");
-                    for (Conversation c : sInstance.mCache) {
+                    for (Conversation c : sInstance.mCache.keySet()) {
                         LogTag.debug("   c: " + c + " c.getThreadId(): " + c.getThreadId() +
                                 " hash: " + c.hashCode());
                     }
@@ -637,15 +705,92 @@ public class Conversation {
          */
         static void keepOnly(Set<Long> threads) {
             synchronized (sInstance) {
-                Iterator<Conversation> iter = sInstance.mCache.iterator();
-                while (iter.hasNext()) {
-                    Conversation c = iter.next();
-                    if (!threads.contains(c.getThreadId())) {
-                        iter.remove();
-                    }
+                HashSet<Long> removed = new HashSet<Long>(sInstance.mByThreadId.keySet());
+                removed.removeAll(threads);
+                for (Long threadId : removed) {
+                    sInstance.unindex(sInstance.mByThreadId.get(threadId));
+                }
+
+                // Conversations without a thread ID are never on disk.
+                while (!sInstance.mWithoutThreadId.isEmpty()) {
+                    sInstance.unindex(sInstance.mWithoutThreadId.get(0));
+                }
+            }
+        }
+
+        private void index(Conversation c, long threadId, ContactList recipients) {
+            Keys keys = new Keys(threadId, recipientKey(recipients));
+            mCache.put(c, keys);
+
+            if (threadId > 0) {
+                Conversation previous = mByThreadId.put(threadId, c);
+                if (previous != null && previous != c) {
+                    // Two conversations ended up with the same thread; keep the newest.
+                    unindex(previous);
+                    mByThreadId.put(threadId, c);
+                }
+            } else {
+                mWithoutThreadId.add(c);
+            }
+
+            ArrayList<Conversation> bucket = mByRecipients.get(keys.recipients);
+            if (bucket == null) {
+                bucket = new ArrayList<Conversation>(1);
+                mByRecipients.put(keys.recipients, bucket);
+            }
+            bucket.add(c);
+        }
+
+        private void unindex(Conversation c) {
+            Keys keys = mCache.remove(c);
+            if (keys == null) {
+                return;
+            }
+
+            if (keys.threadId > 0) {
+                if (mByThreadId.get(keys.threadId) == c) {
+                    mByThreadId.remove(keys.threadId);
+                }
+            } else {
+                removeIdentical(mWithoutThreadId, c);
+            }
+
+            ArrayList<Conversation> bucket = mByRecipients.get(keys.recipients);
+            if (bucket != null) {
+                removeIdentical(bucket, c);
+                if (bucket.isEmpty()) {
+                    mByRecipients.remove(keys.recipients);
+                }
+            }
+        }
+
+        private static void removeIdentical(ArrayList<Conversation> list, Conversation c) {
+            for (int i = 0; i < list.size(); i++) {
+                if (list.get(i) == c) {
+                    list.remove(i);
+                    return;
                 }
             }
         }
+
+        /**
+         * Canonical key of a recipient set. Recipient sets are equal when they
+         * hold the same Contact instances in any order, so the key is made of
+         * their sorted identity hash codes.
+         */
+        private static String recipientKey(ContactList list) {
+            int[] ids = new int[list.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = System.identityHashCode(list.get(i));
+            }
+            Arrays.sort(ids);
+
+            StringBuilder key = new StringBuilder(ids.length * 11);
+            for (int id : ids) {
+                key.append(id).append(',');
+            }
+            return key.toString();
+        }
     }
 
     /**
@@ -684,7 +829,8 @@ public class Conversation {
        // can discard anything removed from the cache.
        HashSet<Long> threadsOnDisk = new HashSet<Long>();
 
-       // Query for all conversations.
+       // Query for all conversations. Their recipients aren't looked up one by one here,
+       // Contact batches those lookups in the background and notifies its listeners.
        Cursor c = context.getContentResolver().query(sAllThreadsUri,
                ALL_THREADS_PROJECTION, null, null, null);
        try {
@@ -702,7 +848,7 @@ public class Conversation {
                    if (conv == null) {
                        // Make a new Conversation and put it in
                        // the cache if necessary.
-                       conv = new Conversation(context, c, true);
+                       conv = new Conversation(context, c, false);
                        try {
                            synchronized (Cache.getInstance()) {
                                Cache.put(conv);
@@ -713,7 +859,7 @@ public class Conversation {
                    } else {
                        // Or update in place so people with references
                        // to conversations get updated too.
-                       fillFromCursor(context, conv, c, true);
+                       fillFromCursor(context, conv, c, false);
                    }
                }
            }
@@ -0,0 +1,311 @@
+package org.parandroid.sms.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.android.mms.pdu.CharacterSets;
+import org.parandroid.sms.ui.MessageUtils;
+
+/**
+ * A copy of the top of the conversation list on disk, so the list can be shown
+ * right away at startup instead of after all threads were queried.
+ *
+ * The snapshot is saved from the list cursor when the list is left, together with the
+ * recipient numbers and the contact names known at that time. At startup it is
+ * memory-mapped and served as a cursor with the columns of
+ * {@link Conversation#startQueryForAll} until that query completes and replaces it.
+ * Loading it also seeds RecipientIdCache and the contact cache with its numbers and
+ * names; the contacts stay stale, so they are looked up again in the background.
+ */
+public class ConversationSnapshot {
+    private static final String TAG = "Mms/snapshot";
+
+    private static final String FILE_NAME = "conversations.snapshot";
+
+    private static final int MAGIC = 0x50434c53;
+    private static final int VERSION = 1;
+
+    // Number of conversations saved, enough for the first screens of the list
+    private static final int MAX_ROWS = 200;
+
+    private static final int FLAG_READ = 1;
+    private static final int FLAG_ERROR = 2;
+    private static final int FLAG_HAS_ATTACHMENT = 4;
+
+    private static class Recipient {
+        long id;
+        String number;
+        String name;
+    }
+
+    private static class Row {
+        long threadId;
+        long date;
+        int messageCount;
+        int flags;
+        String snippet;
+        String recipientIds;
+        ArrayList<Recipient> recipients;
+    }
+
+    /**
+     * A cursor that holds a snapshot, as opposed to the result of a query.
+     */
+    private static class SnapshotCursor extends MatrixCursor {
+        SnapshotCursor(int rows) {
+            super(Conversation.ALL_THREADS_PROJECTION, rows);
+        }
+    }
+
+    private ConversationSnapshot() {
+    }
+
+    /**
+     * Returns true if the cursor was returned by {@link #load}.
+     */
+    public static boolean isSnapshot(Cursor cursor) {
+        return cursor instanceof SnapshotCursor;
+    }
+
+    /**
+     * Reads the snapshot.
+     *
+     * @return a cursor over the saved conversations, or null if there is no usable snapshot.
+     */
+    public static Cursor load(Context context) {
+        File file = context.getFileStreamPath(FILE_NAME);
+        if (!file.exists()) {
+            return null;
+        }
+
+        ArrayList<Row> rows;
+        try {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = in.getChannel();
+                rows = read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read the conversation snapshot", e);
+            return null;
+        } catch (BufferUnderflowException e) {
+            rows = null;
+        }
+
+        if (rows == null) {
+            Log.w(TAG, "Discarding a corrupt conversation snapshot");
+            file.delete();
+            return null;
+        }
+
+        SnapshotCursor cursor = new SnapshotCursor(rows.size());
+        for (Row row : rows) {
+            for (Recipient recipient : row.recipients) {
+                RecipientIdCache.prime(recipient.id, recipient.number);
+                Contact.prime(recipient.number, recipient.name);
+            }
+
+            cursor.addRow(new Object[] {
+                row.threadId,
+                row.date,
+                row.messageCount,
+                row.recipientIds,
+                row.snippet,
+                CharacterSets.ANY_CHARSET,
+                (row.flags & FLAG_READ) != 0 ? 1 : 0,
+                (row.flags & FLAG_ERROR) != 0 ? 1 : 0,
+                (row.flags & FLAG_HAS_ATTACHMENT) != 0 ? 1 : 0
+            });
+        }
+        return cursor;
+    }
+
+    /**
+     * Saves the first rows of a cursor returned by {@link Conversation#startQueryForAll}.
+     * The rows are copied on the calling thread, the snapshot is written in the background.
+     */
+    public static void save(final Context context, Cursor cursor) {
+        if (cursor == null || cursor.isClosed() || isSnapshot(cursor)) {
+            return;
+        }
+
+        final ArrayList<Row> rows = new ArrayList<Row>(Math.min(cursor.getCount(), MAX_ROWS));
+        int position = cursor.getPosition();
+        cursor.moveToPosition(-1);
+        while (rows.size() < MAX_ROWS && cursor.moveToNext()) {
+            Row row = new Row();
+            row.threadId = cursor.getLong(Conversation.ID);
+            row.date = cursor.getLong(Conversation.DATE);
+            row.messageCount = cursor.getInt(Conversation.MESSAGE_COUNT);
+            row.recipientIds = cursor.getString(Conversation.RECIPIENT_IDS);
+            row.snippet = MessageUtils.extractEncStrFromCursor(cursor,
+                    Conversation.SNIPPET, Conversation.SNIPPET_CS);
+            if (cursor.getInt(Conversation.READ) != 0) {
+                row.flags |= FLAG_READ;
+            }
+            if (cursor.getInt(Conversation.ERROR) != 0) {
+                row.flags |= FLAG_ERROR;
+            }
+            if (cursor.getInt(Conversation.HAS_ATTACHMENT) != 0) {
+                row.flags |= FLAG_HAS_ATTACHMENT;
+            }
+            rows.add(row);
+        }
+        cursor.moveToPosition(position);
+
+        new Thread(new Runnable() {
+            public void run() {
+                write(context, rows);
+            }
+        }).start();
+    }
+
+    /**
+     * Deletes the snapshot, e.g. because conversations were deleted.
+     */
+    public static void delete(Context context) {
+        context.deleteFile(FILE_NAME);
+    }
+
+    private static void write(Context context, List<Row> rows) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(rows.size() * 128);
+        DataOutputStream out = new DataOutputStream(buffer);
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(rows.size());
+            for (Row row : rows) {
+                List<RecipientIdCache.Entry> recipients = TextUtils.isEmpty(row.recipientIds)
+                        ? new ArrayList<RecipientIdCache.Entry>()
+                        : RecipientIdCache.getAddresses(row.recipientIds);
+
+                out.writeLong(row.threadId);
+                out.writeLong(row.date);
+                out.writeInt(row.messageCount);
+                out.writeByte(row.flags);
+                writeString(out, row.snippet);
+                out.writeShort(recipients.size());
+                for (RecipientIdCache.Entry recipient : recipients) {
+                    out.writeLong(recipient.id);
+                    writeString(out, recipient.number);
+                    writeString(out, Contact.getCachedName(recipient.number));
+                }
+            }
+            out.close();
+
+            // Write a new file and rename it, so a reader never sees half a snapshot
+            File tmp = context.getFileStreamPath(FILE_NAME + ".tmp");
+            FileOutputStream file = new FileOutputStream(tmp);
+            try {
+                buffer.writeTo(file);
+            } finally {
+                file.close();
+            }
+            if (!tmp.renameTo(context.getFileStreamPath(FILE_NAME))) {
+                Log.w(TAG, "Can't replace the conversation snapshot");
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't write the conversation snapshot", e);
+        }
+    }
+
+    /**
+     * @return the rows, or null if the snapshot is not valid
+     */
+    private static ArrayList<Row> read(ByteBuffer in) {
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            return null;
+        }
+
+        int count = in.getInt();
+        if (count < 0 || count > MAX_ROWS) {
+            return null;
+        }
+
+        ArrayList<Row> rows = new ArrayList<Row>(count);
+        for (int i = 0; i < count; i++) {
+            Row row = new Row();
+            row.threadId = in.getLong();
+            row.date = in.getLong();
+            row.messageCount = in.getInt();
+            row.flags = in.get();
+            row.snippet = readString(in);
+
+            int recipients = in.getShort();
+            if (recipients < 0) {
+                return null;
+            }
+
+            row.recipients = new ArrayList<Recipient>(recipients);
+            StringBuilder ids = new StringBuilder();
+            for (int j = 0; j < recipients; j++) {
+                Recipient recipient = new Recipient();
+                recipient.id = in.getLong();
+                recipient.number = readString(in);
+                recipient.name = readString(in);
+                if (TextUtils.isEmpty(recipient.number)) {
+                    return null;
+                }
+                row.recipients.add(recipient);
+
+                if (j > 0) {
+                    ids.append(' ');
+                }
+                ids.append(recipient.id);
+            }
+            row.recipientIds = ids.toString();
+
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (IOException e) {
+            // UTF-8 is always supported
+            return null;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.parandroid.sms.data;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -17,6 +18,14 @@ import android.provider.Telephony;
 import com.google.android.mms.util.SqliteWrapper;
 import org.parandroid.sms.LogTag;
 
+/**
+ * Cache of the canonical_addresses table, which maps recipient ids to numbers.
+ *
+ * The table only grows, so after the first load only the rows that are missing are
+ * queried: the ids above the highest one loaded so far, plus any requested ids below
+ * it that aren't cached. Queries are made without holding the cache lock, so lookups
+ * of cached ids never wait for the provider.
+ */
 public class RecipientIdCache {
     private static final String TAG = "Mms/cache";
 
@@ -26,10 +35,19 @@ public class RecipientIdCache {
     private static Uri sSingleCanonicalAddressUri =
             Uri.parse("content://mms-sms/canonical-address");
 
+    private static final String[] PROJECTION = new String[] {
+        Telephony.CanonicalAddressesColumns._ID,
+        Telephony.CanonicalAddressesColumns.ADDRESS
+    };
+
     private static RecipientIdCache sInstance;
     static RecipientIdCache getInstance() { return sInstance; }
     private final Map<Long, String> mCache;
     private final Context mContext;
+    // Highest id loaded from the table. Guarded by the instance, like mCache.
+    private long mMaxId;
+    // Serializes the queries, so concurrent misses don't load the same rows twice.
+    private final Object mRefreshLock = new Object();
 
     public static class Entry {
         public long id;
@@ -55,55 +73,120 @@ public class RecipientIdCache {
         mContext = context;
     }
 
+    /**
+     * Loads the rows that were added since the last load, all of them the first time.
+     */
     public static void fill() {
-        Context context = sInstance.mContext;
-        Cursor c = SqliteWrapper.query(context, context.getContentResolver(),
-                sAllCanonical, null, null, null, null);
+        refresh(null);
+    }
 
-        try {
+    /**
+     * Loads the rows with an id above the highest one loaded so far, and the rows of
+     * the given ids if they are still missing.
+     */
+    private static void refresh(Collection<Long> ids) {
+        synchronized (sInstance.mRefreshLock) {
+            StringBuilder selection = new StringBuilder();
             synchronized (sInstance) {
-                // Technically we don't have to clear this because the stupid
-                // canonical_addresses table is never GC'ed.
-                sInstance.mCache.clear();
+                selection.append(Telephony.CanonicalAddressesColumns._ID)
+                        .append('>').append(sInstance.mMaxId);
+
+                if (ids != null) {
+                    boolean missing = false;
+                    StringBuilder in = new StringBuilder();
+                    for (long id : ids) {
+                        if (sInstance.mCache.containsKey(id)) {
+                            continue;
+                        }
+                        missing = true;
+                        if (id <= sInstance.mMaxId) {
+                            in.append(in.length() == 0 ? "" : ",").append(id);
+                        }
+                    }
+                    if (!missing) {
+                        // Loaded while we were waiting for the refresh lock
+                        return;
+                    }
+                    if (in.length() > 0) {
+                        selection.append(" OR ").append(Telephony.CanonicalAddressesColumns._ID)
+                                .append(" IN (").append(in).append(')');
+                    }
+                }
+            }
+
+            Context context = sInstance.mContext;
+            Cursor c = SqliteWrapper.query(context, context.getContentResolver(),
+                    sAllCanonical, PROJECTION, selection.toString(), null, null);
+            if (c == null) {
+                return;
+            }
+
+            HashMap<Long, String> rows = new HashMap<Long, String>(c.getCount());
+            long maxId = 0;
+            try {
                 while (c.moveToNext()) {
-                    // TODO: don't hardcode the column indices
                     long id = c.getLong(0);
-                    String number = c.getString(1);
-                    sInstance.mCache.put(id, number);
+                    rows.put(id, c.getString(1));
+                    maxId = Math.max(maxId, id);
                 }
+            } finally {
+                c.close();
+            }
+
+            synchronized (sInstance) {
+                sInstance.mCache.putAll(rows);
+                sInstance.mMaxId = Math.max(sInstance.mMaxId, maxId);
             }
-        } finally {
-            c.close();
         }
     }
 
-    public static List<Entry> getAddresses(String spaceSepIds) {
+    /**
+     * Caches the number of a recipient id that was saved earlier, unless it is cached
+     * already. Used by ConversationSnapshot, so its recipients don't need a reload.
+     */
+    static void prime(long id, String number) {
         synchronized (sInstance) {
-            List<Entry> numbers = new ArrayList<Entry>();
-            String[] ids = spaceSepIds.split(" ");
-            for (String id : ids) {
-                long longId;
-
-                try {
-                    longId = Long.parseLong(id);
-                } catch (NumberFormatException ex) {
-                    // skip this id
-                    continue;
-                }
+            if (!sInstance.mCache.containsKey(id)) {
+                sInstance.mCache.put(id, number);
+            }
+        }
+    }
 
-                String number = sInstance.mCache.get(longId);
+    public static List<Entry> getAddresses(String spaceSepIds) {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        for (String id : spaceSepIds.split(" ")) {
+            try {
+                ids.add(Long.parseLong(id));
+            } catch (NumberFormatException ex) {
+                // skip this id
+            }
+        }
 
-                if (number == null) {
-                    Log.w(TAG, "RecipientId " + longId + " not in cache!");
-                    dump();
-                    fill();
-                    number = sInstance.mCache.get(longId);
+        boolean missing = false;
+        synchronized (sInstance) {
+            for (long id : ids) {
+                if (!sInstance.mCache.containsKey(id)) {
+                    Log.w(TAG, "RecipientId " + id + " not in cache!");
+                    missing = true;
                 }
+            }
+        }
+        if (missing) {
+            if (Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
+                dump();
+            }
+            refresh(ids);
+        }
+
+        synchronized (sInstance) {
+            List<Entry> numbers = new ArrayList<Entry>(ids.size());
+            for (long id : ids) {
+                String number = sInstance.mCache.get(id);
 
                 if (TextUtils.isEmpty(number)) {
-                    Log.w(TAG, "RecipientId " + longId + " has empty number!");
+                    Log.w(TAG, "RecipientId " + id + " has empty number!");
                 } else {
-                    numbers.add(new Entry(longId, number));
+                    numbers.add(new Entry(id, number));
                 }
             }
             return numbers;
@@ -127,7 +210,10 @@ public class RecipientIdCache {
             }
 
             String number1 = contact.getNumber();
-            String number2 = sInstance.mCache.get(recipientId);
+            String number2;
+            synchronized (sInstance) {
+                number2 = sInstance.mCache.get(recipientId);
+            }
 
             if (Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
                 Log.d(TAG, "[RecipientIdCache] updateNumbers: comparing " + number1 +
@@ -137,7 +223,9 @@ public class RecipientIdCache {
             // if the numbers don't match, let's update the RecipientIdCache's number
             // with the new number in the contact.
             if (!number1.equalsIgnoreCase(number2)) {
-                sInstance.mCache.put(recipientId, number1);
+                synchronized (sInstance) {
+                    sInstance.mCache.put(recipientId, number1);
+                }
                 sInstance.updateCanonicalAddressInDb(recipientId, number1);
             }
         }
@@ -1,7 +1,5 @@
 package org.parandroid.sms.transaction;
 
-import java.util.HashMap;
-
 import org.parandroid.encryption.MessageEncryptionFactory;
 import org.parandroid.sms.R;
 import org.parandroid.sms.ui.EncryptedMessageNotificationActivity;
@@ -12,11 +10,9 @@ import org.parandroid.sms.ui.MessagingPreferenceActivity;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.content.BroadcastReceiver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.preference.PreferenceManager;
 import android.provider.Telephony.Threads;
@@ -29,31 +25,28 @@ public class EncryptedMessageReceiver extends BroadcastReceiver {
 
 	private static final String TAG = "Parandroid EncryptedMessageReceiver";
 
-	private static HashMap<String, HashMap<Integer, HashMap<Integer, byte[]>>> messageMap = new HashMap<String, HashMap<Integer, HashMap<Integer, byte[]>>>();
-	
 	@Override
 	public void onReceive(Context context, Intent intent) {
-		SmsMessage[] messages = Intents.getMessagesFromIntent(intent);        
-        SmsMessage message = messages[0];
-        if(message.getMessageBody().startsWith(MultipartDataMessage.MESSAGE_HEADER)){
-        	handleMessage(context, messages);
-        }else if(message.getMessageBody().startsWith(MultipartDataMessage.PUBLIC_KEY_HEADER)){
-        	handlePublicKey(context, messages);
-        }else{
-        	Log.i(TAG, "Got message, but not with a Parandroid header. Skipping.");
-        	return;
-        }
+		SmsMessage[] messages = Intents.getMessagesFromIntent(intent);
+		for(SmsMessage message : messages){
+			// The parts of a frame may arrive in any order, and not necessarily in one broadcast
+			String body = FrameAssembler.add(message);
+			if(body == null)
+				continue;
+			
+			String sender = message.getOriginatingAddress();
+			if(body.startsWith(MultipartDataMessage.MESSAGE_HEADER)){
+				handleMessage(context, sender, body);
+			}else if(body.startsWith(MultipartDataMessage.PUBLIC_KEY_HEADER)){
+				handlePublicKey(context, sender, body);
+			}else{
+				Log.i(TAG, "Got message, but not with a Parandroid header. Skipping.");
+			}
+		}
 	}
 	
 	
-	public void handleMessage(Context context, SmsMessage[] messages){
-		SmsMessage message = messages[0];
-		String sender = message.getOriginatingAddress();
-		
-		String body = message.getMessageBody();
-		for(int i = 1; i < messages.length; i++)
-			body += messages[i].getMessageBody();
-
+	public void handleMessage(Context context, String sender, String body){
 		int protocolVersion = MessageEncryptionFactory.getProcolVersion(body);
         
         Log.i(TAG, "Received message with protocol version: " + protocolVersion);
@@ -100,14 +93,7 @@ public class EncryptedMessageReceiver extends BroadcastReceiver {
 		mNotificationManager.notify(notificationId, n);
 	}
 	
-	public void handlePublicKey(Context context, SmsMessage[] messages){
-		SmsMessage message = messages[0];
-		String sender = message.getOriginatingAddress();
-		
-		String body = message.getMessageBody();
-		for(int i = 1; i < messages.length; i++)
-			body += messages[i].getMessageBody();
-		
+	public void handlePublicKey(Context context, String sender, String body){
 		int protocolVersion = MessageEncryptionFactory.getProcolVersion(body);
         
         Log.i(TAG, "Received message with protocol version: " + protocolVersion);
@@ -116,7 +102,7 @@ public class EncryptedMessageReceiver extends BroadcastReceiver {
         String notificationTitle = context.getString(R.string.received_public_key);
         if(protocolVersion == -1){
         	notificationString = context.getString(R.string.corrupted_message);
-		}else if(protocolVersion > MultipartDataMessage.PROTOCOL_VERSION){
+		}else if(protocolVersion > MultipartDataMessage.PUBLIC_KEY_PROTOCOL_VERSION){
         	// Protocol version too high, user might need to update
         	notificationString = context.getString(R.string.protocol_too_high);
         }else{
@@ -126,15 +112,7 @@ public class EncryptedMessageReceiver extends BroadcastReceiver {
         String publicKey = MessageEncryptionFactory.stripHeader(body);
         Log.i(TAG, "Inserting public key (length: " + publicKey.length() + "): " + publicKey);
         
-		SQLiteDatabase keyRing = MessageEncryptionFactory.openKeyring(context);
-		
-		ContentValues cv = new ContentValues();
-		cv.put("number", sender);
-		cv.put("publickey", publicKey);
-		cv.put("accepted", false);
-		
-		long id = keyRing.insert(MessageEncryptionFactory.PUBLIC_KEY_TABLE, "", cv);
-		keyRing.close();
+		long id = MessageEncryptionFactory.savePendingPublicKey(context, sender, publicKey);
 		
 		Log.i(TAG, "Inserted public key at id: " + id);
 		
@@ -0,0 +1,212 @@
+package org.parandroid.sms.transaction;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import com.android.internal.telephony.SmsHeader;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.telephony.SmsMessage;
+import android.util.Log;
+
+/**
+ * Reassembles Parandroid frames from the parts of concatenated text messages.
+ *
+ * Frames are keyed by the sender and the reference in the concatenation header of
+ * every part, and the sequence number in that header puts a part in its place, so
+ * parts may arrive in any order and spread over several broadcasts. The text of a frame is collected in a buffer that is
+ * allocated once for all its parts. Frames that aren't completed within EXPIRY are
+ * dropped.
+ *
+ * A completed frame is returned once. Its part hashes are kept for EXPIRY as well, so
+ * parts that are delivered again don't produce the frame a second time. Frames whose
+ * first part doesn't start with a Parandroid header are not buffered any further.
+ *
+ * All methods are called on the main thread, from EncryptedMessageReceiver.
+ */
+public class FrameAssembler {
+
+	private static final String TAG = "Parandroid FrameAssembler";
+
+	/**
+	 * Time after the last part of a frame was received before it is forgotten
+	 */
+	private static final long EXPIRY = 10 * 60 * 1000;
+
+	/**
+	 * Maximum number of characters in one part of a text message
+	 */
+	private static final int MAX_PART_LENGTH = 160;
+
+	/**
+	 * Maximum number of frames held at once, the least recently updated are dropped
+	 */
+	private static final int MAX_FRAMES = 16;
+
+	private static class Frame {
+		final int count;
+		final int[] lengths;
+		final int[] hashes;
+		char[] buffer;
+		int received;
+		long updated;
+		boolean complete;
+		boolean foreign;
+
+		Frame(int count){
+			this.count = count;
+			lengths = new int[count];
+			hashes = new int[count];
+			buffer = new char[count * MAX_PART_LENGTH];
+			for(int i = 0; i < count; i++)
+				lengths[i] = -1;
+		}
+
+		boolean isDuplicate(int index, String part){
+			return lengths[index] == part.length() && hashes[index] == part.hashCode();
+		}
+
+		void add(int index, String part){
+			part.getChars(0, part.length(), buffer, index * MAX_PART_LENGTH);
+			lengths[index] = part.length();
+			hashes[index] = part.hashCode();
+			received++;
+		}
+
+		String assemble(){
+			int length = 0;
+			for(int i = 0; i < count; i++){
+				if(length != i * MAX_PART_LENGTH)
+					System.arraycopy(buffer, i * MAX_PART_LENGTH, buffer, length, lengths[i]);
+				length += lengths[i];
+			}
+			String frame = new String(buffer, 0, length);
+			buffer = null;
+			complete = true;
+			return frame;
+		}
+	}
+
+	private static final LinkedHashMap<String, Frame> sFrames = new LinkedHashMap<String, Frame>(MAX_FRAMES, 0.75f, true);
+
+	private static Handler sHandler;
+	private static boolean sExpiryScheduled = false;
+
+	private static final Runnable sExpire = new Runnable(){
+		public void run(){
+			expire();
+		}
+	};
+
+	private FrameAssembler(){
+	}
+
+	/**
+	 * Add a received part
+	 *
+	 * @param message
+	 * @return the body of the frame if this part completed it, otherwise null
+	 */
+	public static synchronized String add(SmsMessage message){
+		String body = message.getMessageBody();
+		if(body == null)
+			return null;
+
+		SmsHeader header = message.mWrappedSmsMessage.getUserDataHeader();
+		if(header == null || header.concatRef == null || header.concatRef.msgCount <= 1)
+			return body;
+
+		SmsHeader.ConcatRef ref = header.concatRef;
+		int index = ref.seqNumber - 1;
+		if(index < 0 || index >= ref.msgCount || body.length() > MAX_PART_LENGTH){
+			Log.w(TAG, "Dropping invalid part " + ref.seqNumber + " of " + ref.msgCount);
+			return null;
+		}
+
+		String key = message.getOriginatingAddress() + "/" + ref.refNumber;
+		Frame frame = sFrames.get(key);
+		if(frame != null){
+			// A part that was delivered again
+			if(frame.count == ref.msgCount && frame.lengths[index] != -1 && frame.isDuplicate(index, body))
+				return null;
+
+			// Otherwise the reference was reused for another frame
+			if(frame.count != ref.msgCount || frame.complete || frame.lengths[index] != -1)
+				frame = null;
+		}
+
+		if(frame == null){
+			frame = new Frame(ref.msgCount);
+			sFrames.put(key, frame);
+			trim();
+		}
+		frame.updated = SystemClock.elapsedRealtime();
+
+		if(index == 0 && !isParandroidFrame(body))
+			frame.foreign = true;
+
+		if(frame.foreign){
+			// Remember the frame to recognize its other parts, but don't buffer them
+			frame.buffer = null;
+			frame.lengths[index] = body.length();
+			frame.hashes[index] = body.hashCode();
+			scheduleExpiry();
+			return null;
+		}
+
+		frame.add(index, body);
+		if(frame.received < frame.count){
+			scheduleExpiry();
+			return null;
+		}
+
+		Log.v(TAG, "Reassembled frame of " + frame.count + " parts from " + key);
+		scheduleExpiry();
+		return frame.assemble();
+	}
+
+	private static boolean isParandroidFrame(String body){
+		return body.startsWith(MultipartDataMessage.MESSAGE_HEADER) || body.startsWith(MultipartDataMessage.PUBLIC_KEY_HEADER);
+	}
+
+	private static void trim(){
+		Iterator<Frame> it = sFrames.values().iterator();
+		while(sFrames.size() > MAX_FRAMES && it.hasNext()){
+			it.next();
+			it.remove();
+		}
+	}
+
+	private static void scheduleExpiry(){
+		if(sExpiryScheduled)
+			return;
+
+		if(sHandler == null)
+			sHandler = new Handler(Looper.getMainLooper());
+		sHandler.postDelayed(sExpire, EXPIRY);
+		sExpiryScheduled = true;
+	}
+
+	private static synchronized void expire(){
+		long now = SystemClock.elapsedRealtime();
+		long next = Long.MAX_VALUE;
+		Iterator<Frame> it = sFrames.values().iterator();
+		while(it.hasNext()){
+			Frame frame = it.next();
+			if(now - frame.updated < EXPIRY){
+				next = Math.min(next, frame.updated + EXPIRY);
+				continue;
+			}
+
+			if(!frame.complete && !frame.foreign)
+				Log.i(TAG, "Dropping incomplete frame, " + frame.received + " of " + frame.count + " parts received");
+			it.remove();
+		}
+
+		sExpiryScheduled = next != Long.MAX_VALUE;
+		if(sExpiryScheduled)
+			sHandler.postDelayed(sExpire, next - now);
+	}
+}
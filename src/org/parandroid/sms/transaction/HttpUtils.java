@@ -17,20 +17,26 @@
 
 package org.parandroid.sms.transaction;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
-import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.params.ConnRouteParams;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
 
 import org.parandroid.sms.MmsConfig;
 import org.parandroid.sms.LogTag;
+import com.google.android.mms.pdu.GenericPdu;
 
 import android.content.Context;
 import android.net.http.AndroidHttpClient;
@@ -41,11 +47,21 @@ import android.util.Log;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Locale;
 
+/**
+ * HTTP transport of the MMS transactions.
+ *
+ * All transactions share one client, whose connection pool keeps a connection per
+ * route (MMSC and proxy) alive from one transaction to the next. The pool is closed
+ * by {@link #closeConnections} when the TransactionService ends MMS connectivity, so
+ * connections live as long as the MMS APN is used for a batch of transactions.
+ */
 public class HttpUtils {
     private static final String TAG = LogTag.TRANSACTION;
 
@@ -68,10 +84,17 @@ public class HttpUtils {
     // Definition for necessary HTTP headers.
     private static final String HDR_KEY_ACCEPT = "Accept";
     private static final String HDR_KEY_ACCEPT_LANGUAGE = "Accept-Language";
+    private static final String HDR_KEY_RANGE = "Range";
+    private static final String HDR_KEY_IF_RANGE = "If-Range";
+    private static final String HDR_KEY_CONTENT_RANGE = "Content-Range";
+    private static final String HDR_KEY_ETAG = "ETag";
+    private static final String HDR_KEY_LAST_MODIFIED = "Last-Modified";
 
     private static final String HDR_VALUE_ACCEPT =
         "*/*, application/vnd.wap.mms-message, application/vnd.wap.sic";
 
+    private static AndroidHttpClient sClient;
+
     private HttpUtils() {
         // To forbidden instantiate this class.
     }
@@ -84,14 +107,15 @@ public class HttpUtils {
      *         HTTP_POST_METHOD.
      * @param pdu The data to be POST. Null when the method is HTTP_GET_METHOD.
      * @param method HTTP_POST_METHOD or HTTP_GET_METHOD.
+     * @param settings The proxy and the headers to use.
      * @return A byte array which contains the response data.
      *         If an HTTP error code is returned, an IOException will be thrown.
      * @throws IOException if any error occurred on network interface or
      *         an HTTP error code(&gt;=400) returned from the server.
      */
     protected static byte[] httpConnection(Context context, long token,
-            String url, byte[] pdu, int method, boolean isProxySet,
-            String proxyHost, int proxyPort) throws IOException {
+            String url, byte[] pdu, int method, TransactionSettings settings)
+            throws IOException {
         if (url == null) {
             throw new IllegalArgumentException("URL must not be null.");
         }
@@ -103,101 +127,65 @@ public class HttpUtils {
             Log.v(TAG, "\tmethod\t\t= "
                     + ((method == HTTP_POST_METHOD) ? "POST"
                             : ((method == HTTP_GET_METHOD) ? "GET" : "UNKNOWN")));
-            Log.v(TAG, "\tisProxySet\t= " + isProxySet);
-            Log.v(TAG, "\tproxyHost\t= " + proxyHost);
-            Log.v(TAG, "\tproxyPort\t= " + proxyPort);
+            Log.v(TAG, "\tisProxySet\t= " + settings.isProxySet());
+            Log.v(TAG, "\tproxyHost\t= " + settings.getProxyAddress());
+            Log.v(TAG, "\tproxyPort\t= " + settings.getProxyPort());
             // TODO Print out binary data more readable.
             //Log.v(TAG, "\tpdu\t\t= " + Arrays.toString(pdu));
         }
 
-        AndroidHttpClient client = null;
+        HttpRequestBase req;
+        switch(method) {
+            case HTTP_POST_METHOD:
+                ProgressCallbackEntity entity = new ProgressCallbackEntity(
+                                                    context, token, pdu);
+                // Set request content type.
+                entity.setContentType("application/vnd.wap.mms-message");
+
+                HttpPost post = new HttpPost(url);
+                post.setEntity(entity);
+                req = post;
+                break;
+            case HTTP_GET_METHOD:
+                req = new HttpGet(url);
+                break;
+            default:
+                Log.e(TAG, "Unknown HTTP method: " + method
+                        + ". Must be one of POST[" + HTTP_POST_METHOD
+                        + "] or GET[" + HTTP_GET_METHOD + "].");
+                return null;
+        }
+        return send(context, url, req, settings);
+    }
 
-        try {
-            // Make sure to use a proxy which supports CONNECT.
-            URI hostUrl = new URI(url);
-            HttpHost target = new HttpHost(
-                    hostUrl.getHost(), hostUrl.getPort(),
-                    HttpHost.DEFAULT_SCHEME_NAME);
-
-            client = createHttpClient();
-            HttpRequest req = null;
-            switch(method) {
-                case HTTP_POST_METHOD:
-                    ProgressCallbackEntity entity = new ProgressCallbackEntity(
-                                                        context, token, pdu);
-                    // Set request content type.
-                    entity.setContentType("application/vnd.wap.mms-message");
-
-                    HttpPost post = new HttpPost(url);
-                    post.setEntity(entity);
-                    req = post;
-                    break;
-                case HTTP_GET_METHOD:
-                    req = new HttpGet(url);
-                    break;
-                default:
-                    Log.e(TAG, "Unknown HTTP method: " + method
-                            + ". Must be one of POST[" + HTTP_POST_METHOD
-                            + "] or GET[" + HTTP_GET_METHOD + "].");
-                    return null;
-            }
+    /**
+     * Posts an entity, e.g. an M-Send.req that is composed while it is sent.
+     *
+     * @return A byte array which contains the response data.
+     * @throws IOException if any error occurred on network interface or
+     *         an HTTP error code(&gt;=400) returned from the server.
+     */
+    protected static byte[] httpPost(Context context, String url, HttpEntity entity,
+            TransactionSettings settings) throws IOException {
+        if (url == null) {
+            throw new IllegalArgumentException("URL must not be null.");
+        }
 
-            // Set route parameters for the request.
-            HttpParams params = client.getParams();
-            if (isProxySet) {
-                ConnRouteParams.setDefaultProxy(
-                        params, new HttpHost(proxyHost, proxyPort));
-            }
-            req.setParams(params);
-
-            // Set necessary HTTP headers for MMS transmission.
-            req.addHeader(HDR_KEY_ACCEPT, HDR_VALUE_ACCEPT);
-            {
-                String xWapProfileTagName = MmsConfig.getUaProfTagName();
-                String xWapProfileUrl = MmsConfig.getUaProfUrl();
-
-                if (xWapProfileUrl != null) {
-                    if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                        Log.d(LogTag.TRANSACTION,
-                                "[HttpUtils] httpConn: xWapProfUrl=" + xWapProfileUrl);
-                    }
-                    req.addHeader(xWapProfileTagName, xWapProfileUrl);
-                }
-            }
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "httpPost: " + url + ", " + entity.getContentLength() + " bytes");
+        }
 
-            // Extra http parameters. Split by '|' to get a list of value pairs.
-            // Separate each pair by the first occurrence of ':' to obtain a name and
-            // value. Replace the occurrence of the string returned by
-            // MmsConfig.getHttpParamsLine1Key() with the users telephone number inside
-            // the value.
-            String extraHttpParams = MmsConfig.getHttpParams();
-
-            if (extraHttpParams != null) {
-                String line1Number = ((TelephonyManager)context
-                        .getSystemService(Context.TELEPHONY_SERVICE))
-                        .getLine1Number();
-                String line1Key = MmsConfig.getHttpParamsLine1Key();
-                String paramList[] = extraHttpParams.split("\\|");
-
-                for (String paramPair : paramList) {
-                    String splitPair[] = paramPair.split(":", 2);
-
-                    if (splitPair.length == 2) {
-                        String name = splitPair[0].trim();
-                        String value = splitPair[1].trim();
-
-                        if (line1Key != null) {
-                            value = value.replace(line1Key, line1Number);
-                        }
-                        if (!TextUtils.isEmpty(name) && !TextUtils.isEmpty(value)) {
-                            req.addHeader(name, value);
-                        }
-                    }
-                }
-            }
-            req.addHeader(HDR_KEY_ACCEPT_LANGUAGE, HDR_VALUE_ACCEPT_LANGUAGE);
+        HttpPost post = new HttpPost(url);
+        post.setEntity(entity);
+        return send(context, url, post, settings);
+    }
 
-            HttpResponse response = client.execute(target, req);
+    private static byte[] send(Context context, String url, HttpRequestBase req,
+            TransactionSettings settings) throws IOException {
+        boolean consumed = false;
+
+        try {
+            HttpResponse response = execute(context, url, req, settings);
             StatusLine status = response.getStatusLine();
             if (status.getStatusCode() != 200) { // HTTP 200 is success.
                 throw new IOException("HTTP error: " + status.getReasonPhrase());
@@ -219,13 +207,16 @@ public class HttpUtils {
                                 Log.e(TAG, "Error closing input stream: " + e.getMessage());
                             }
                         }
+                    } else if (entity.getContentLength() < 0) {
+                        // No length given, e.g. a chunked response
+                        body = EntityUtils.toByteArray(entity);
                     }
                 } finally {
-                    if (entity != null) {
-                        entity.consumeContent();
-                    }
+                    // Hands the connection back to the pool
+                    entity.consumeContent();
                 }
             }
+            consumed = true;
             return body;
         } catch (URISyntaxException e) {
             handleHttpConnectionException(e, url);
@@ -239,13 +230,241 @@ public class HttpUtils {
             handleHttpConnectionException(e, url);
         }
         finally {
-            if (client != null) {
-                client.close();
+            if (!consumed) {
+                // The connection is in an unknown state, don't let it go back to the pool
+                req.abort();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves a PDU through HTTP GET. The response is handed to the reader while
+     * it is received, so it never has to fit into memory as a whole.
+     *
+     * The bytes received are stored in the partial download as well. If an
+     * earlier attempt stored some, only the rest is requested with a Range
+     * request. A server that doesn't support ranges sends the whole PDU again.
+     *
+     * @return the PDU returned by the reader, null if it is not valid
+     * @throws IOException if any error occurred on network interface or
+     *         an HTTP error code(&gt;=400) returned from the server.
+     */
+    protected static GenericPdu httpGet(Context context, String url,
+            TransactionSettings settings, PduStreamReader reader, PartialDownload partial)
+            throws IOException {
+        if (url == null) {
+            throw new IllegalArgumentException("URL must not be null.");
+        }
+
+        HttpGet req = new HttpGet(url);
+        long offset = partial.length();
+        if (offset > 0) {
+            req.addHeader(HDR_KEY_RANGE, "bytes=" + offset + "-");
+            String validator = partial.getValidator();
+            if (validator != null) {
+                req.addHeader(HDR_KEY_IF_RANGE, validator);
+            }
+        }
+
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "httpGet: " + url + ", offset " + offset);
+        }
+
+        boolean consumed = false;
+
+        try {
+            HttpResponse response = execute(context, url, req, settings);
+            StatusLine status = response.getStatusLine();
+            int code = status.getStatusCode();
+            if (code == 206 && offset > 0) { // HTTP 206 is the requested range.
+                long start = getRangeStart(response);
+                if (start != offset) {
+                    partial.delete();
+                    throw new IOException("Unexpected range from " + start + ", not " + offset);
+                }
+            } else if (code == 200) { // HTTP 200 is success.
+                partial.reset(getValidator(response));
+            } else {
+                if (code == 416) { // The stored bytes don't fit the PDU anymore.
+                    partial.delete();
+                }
+                throw new IOException("HTTP error: " + status.getReasonPhrase());
+            }
+
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                throw new IOException("HTTP response without a body");
+            }
+
+            long expected = entity.getContentLength() >= 0
+                    ? partial.length() + entity.getContentLength() : -1;
+
+            GenericPdu pdu;
+            InputStream in = partial.open(entity.getContent());
+            try {
+                pdu = reader.read(in);
+                if (pdu != null && in.read() != -1) {
+                    // The stored and the received bytes don't make up one PDU
+                    Log.e(TAG, "httpGet: data after the end of the PDU");
+                    pdu = null;
+                }
+            } catch (IOException e) {
+                if (!partial.isResumable()) {
+                    // Not a network error, the stored bytes are no good
+                    partial.delete();
+                }
+                throw e;
+            } finally {
+                partial.close();
+            }
+
+            if (pdu == null && partial.isResumable() && partial.length() < expected) {
+                // The connection was closed early, which only looks like the end
+                throw new IOException("Received " + partial.length() + " of "
+                        + expected + " bytes");
+            }
+
+            // Complete, a retry starts from the beginning if the PDU is not valid
+            partial.delete();
+
+            // Reads the rest of the body, the connection goes back to the pool
+            entity.consumeContent();
+            consumed = true;
+            return pdu;
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            handleHttpConnectionException(e, url);
+        } finally {
+            if (!consumed) {
+                req.abort();
             }
         }
         return null;
     }
 
+    private static long getRangeStart(HttpResponse response) {
+        // Content-Range: bytes <start>-<end>/<length>
+        Header header = response.getFirstHeader(HDR_KEY_CONTENT_RANGE);
+        if (header == null) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        int dash = value.indexOf('-');
+        if (!value.startsWith("bytes ") || dash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String getValidator(HttpResponse response) {
+        Header header = response.getFirstHeader(HDR_KEY_ETAG);
+        if (header != null && !header.getValue().startsWith("W/")) {
+            // A weak ETag can't be used in If-Range
+            return header.getValue();
+        }
+        header = response.getFirstHeader(HDR_KEY_LAST_MODIFIED);
+        return header != null ? header.getValue() : null;
+    }
+
+    /**
+     * Sends a request through the shared client, with the proxy and the headers of
+     * the transaction settings.
+     */
+    private static HttpResponse execute(Context context, String url, HttpRequestBase req,
+            TransactionSettings settings) throws IOException, URISyntaxException {
+        // Make sure to use a proxy which supports CONNECT.
+        URI hostUrl = new URI(url);
+        HttpHost target = new HttpHost(
+                hostUrl.getHost(), hostUrl.getPort(),
+                HttpHost.DEFAULT_SCHEME_NAME);
+
+        // Set route parameters for the request. These are the request's own
+        // parameters, the client and its parameters are shared.
+        if (settings.isProxySet()) {
+            ConnRouteParams.setDefaultProxy(req.getParams(),
+                    new HttpHost(settings.getProxyAddress(), settings.getProxyPort()));
+        }
+
+        // Set necessary HTTP headers for MMS transmission.
+        for (Header header : settings.getHttpHeaders(context)) {
+            req.addHeader(header);
+        }
+
+        return getHttpClient().execute(target, req);
+    }
+
+    /**
+     * Builds the headers that are sent with every request.
+     */
+    static Header[] createHeaders(Context context) {
+        ArrayList<Header> headers = new ArrayList<Header>();
+        headers.add(new BasicHeader(HDR_KEY_ACCEPT, HDR_VALUE_ACCEPT));
+
+        String xWapProfileTagName = MmsConfig.getUaProfTagName();
+        String xWapProfileUrl = MmsConfig.getUaProfUrl();
+
+        if (xWapProfileUrl != null) {
+            if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                Log.d(LogTag.TRANSACTION,
+                        "[HttpUtils] httpConn: xWapProfUrl=" + xWapProfileUrl);
+            }
+            headers.add(new BasicHeader(xWapProfileTagName, xWapProfileUrl));
+        }
+
+        // Extra http parameters. Split by '|' to get a list of value pairs.
+        // Separate each pair by the first occurrence of ':' to obtain a name and
+        // value. Replace the occurrence of the string returned by
+        // MmsConfig.getHttpParamsLine1Key() with the users telephone number inside
+        // the value.
+        String extraHttpParams = MmsConfig.getHttpParams();
+
+        if (extraHttpParams != null) {
+            String line1Number = ((TelephonyManager)context
+                    .getSystemService(Context.TELEPHONY_SERVICE))
+                    .getLine1Number();
+            String line1Key = MmsConfig.getHttpParamsLine1Key();
+            String paramList[] = extraHttpParams.split("\\|");
+
+            for (String paramPair : paramList) {
+                String splitPair[] = paramPair.split(":", 2);
+
+                if (splitPair.length == 2) {
+                    String name = splitPair[0].trim();
+                    String value = splitPair[1].trim();
+
+                    if (line1Key != null) {
+                        value = value.replace(line1Key, line1Number);
+                    }
+                    if (!TextUtils.isEmpty(name) && !TextUtils.isEmpty(value)) {
+                        headers.add(new BasicHeader(name, value));
+                    }
+                }
+            }
+        }
+        headers.add(new BasicHeader(HDR_KEY_ACCEPT_LANGUAGE, HDR_VALUE_ACCEPT_LANGUAGE));
+
+        return headers.toArray(new Header[headers.size()]);
+    }
+
+    /**
+     * Closes the pooled connections. The next request opens new ones.
+     */
+    public static synchronized void closeConnections() {
+        if (sClient != null) {
+            if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                Log.v(TAG, "[HttpUtils] closeConnections");
+            }
+            sClient.close();
+            sClient = null;
+        }
+    }
+
     private static void handleHttpConnectionException(Exception exception, String url)
             throws IOException {
         // Inner exception should be logged to make life easier.
@@ -255,6 +474,13 @@ public class HttpUtils {
         throw e;
     }
 
+    private static synchronized AndroidHttpClient getHttpClient() {
+        if (sClient == null) {
+            sClient = createHttpClient();
+        }
+        return sClient;
+    }
+
     private static AndroidHttpClient createHttpClient() {
         String userAgent = MmsConfig.getUserAgent();
         AndroidHttpClient client = AndroidHttpClient.newInstance(userAgent);
@@ -269,6 +495,18 @@ public class HttpUtils {
                     + ", UA=" + userAgent);
         }
         HttpConnectionParams.setSoTimeout(params, soTimeout);
+
+        // Every transaction that runs at a time gets its own connection, even if
+        // they all go to the same MMSC through the same proxy. The pool reads the
+        // limit when it first sees a route, so it is set before any request.
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+                new ConnPerRouteBean(TransactionExecutor.MAX_RUNNING));
+        ConnManagerParams.setMaxTotalConnections(params,
+                Math.max(ConnManagerParams.getMaxTotalConnections(params),
+                        TransactionExecutor.MAX_RUNNING));
+
+        // Just in case a connection is not handed back, don't wait forever
+        ConnManagerParams.setTimeout(params, soTimeout);
         return client;
     }
 
@@ -46,9 +46,14 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.graphics.Typeface;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.preference.PreferenceManager;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.Sms;
+import android.provider.Telephony.Threads;
+import android.telephony.SmsMessage;
 import android.text.Spannable;
 import android.text.SpannableString;
 import android.text.TextUtils;
@@ -56,16 +61,20 @@ import android.text.style.StyleSpan;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.HashMap;
 
 /**
  * This class is used to update the notification indicator. It will check whether
  * there are unread messages. If yes, it would show the notification indicator,
  * otherwise, hide the indicator.
+ *
+ * Updates are not done right away. They are collected for COALESCE_DELAY_MS and then
+ * done together on a background thread, so a burst of incoming messages rebuilds the
+ * notification once. The number of unread messages per thread is kept between updates:
+ * received messages and threads that were read are applied to it, anything else makes
+ * the next update count the unread messages again.
  */
 public class MessagingNotification {
     private static final String TAG = LogTag.APP;
@@ -111,6 +120,59 @@ public class MessagingNotification {
     
     private static final Uri UNDELIVERED_URI = Uri.parse("content://mms-sms/undelivered");
 
+    // Time to wait for more updates before the notifications are rebuilt
+    private static final long COALESCE_DELAY_MS = 300;
+
+    private static final Object sLock = new Object();
+    private static Handler sHandler;
+
+    // The pending updates, guarded by sLock
+    private static Context sContext;
+    private static boolean sUpdatePending;
+    private static boolean sNewMessagesPending;
+    private static boolean sRecountPending;
+    private static boolean sIsNewPending;
+    private static boolean sSendFailedPending;
+    private static boolean sDownloadFailedPending;
+    private static ArrayList<UnreadEvent> sUnreadEvents = new ArrayList<UnreadEvent>();
+
+    // Unread messages by thread id, or null if they have to be counted again. These
+    // are only used on the notification thread.
+    private static HashMap<Long, Integer> sUnreadCounts;
+    private static MmsSmsNotificationInfo sNewestInfo;
+    private static final HashMap<String, Long> sThreadIds = new HashMap<String, Long>();
+
+    /**
+     * A change in the unread messages: either a received text message or a thread
+     * that was read.
+     */
+    private static final class UnreadEvent {
+        public final String mAddress;
+        public final String mBody;
+        public final long mTimeMillis;
+        public final long mReadThreadId;
+
+        public UnreadEvent(String address, String body, long timeMillis) {
+            mAddress = address;
+            mBody = body;
+            mTimeMillis = timeMillis;
+            mReadThreadId = 0;
+        }
+
+        public UnreadEvent(long readThreadId) {
+            mAddress = null;
+            mBody = null;
+            mTimeMillis = 0;
+            mReadThreadId = readThreadId;
+        }
+    }
+
+    private static final Runnable sUpdate = new Runnable() {
+        public void run() {
+            update();
+        }
+    };
+
     private MessagingNotification() {
     }
 
@@ -132,26 +194,67 @@ public class MessagingNotification {
      * @param isNew if notify a new message comes, it should be true, otherwise, false.
      */
     public static void updateNewMessageIndicator(Context context, boolean isNew) {
-        SortedSet<MmsSmsNotificationInfo> accumulator =
-                new TreeSet<MmsSmsNotificationInfo>(INFO_COMPARATOR);
-	MmsSmsDeliveryInfo delivery = null;
-        Set<Long> threads = new HashSet<Long>(4);
-        
-        int count = 0;
-        count += accumulateNotificationInfo(
-                accumulator, getMmsNewMessageNotificationInfo(context, threads));
-        count += accumulateNotificationInfo(
-                accumulator, getSmsNewMessageNotificationInfo(context, threads));
+        synchronized (sLock) {
+            sNewMessagesPending = true;
+            sRecountPending = true;
+            sIsNewPending |= isNew;
+            scheduleUpdate(context);
+        }
+    }
 
-        cancelNotification(context, NOTIFICATION_ID);
-        if (!accumulator.isEmpty()) {
-            accumulator.first().deliver(context, isNew, count, threads.size());
+    /**
+     * Updates the new message indicator for a text message that was just received,
+     * without counting all unread messages again.
+     */
+    public static void notifySmsReceived(Context context, SmsMessage[] msgs) {
+        SmsMessage sms = msgs[0];
+        if (sms.isReplace()) {
+            // Replaces a message that may be unread already
+            updateNewMessageIndicator(context, true);
+            return;
+        }
+
+        StringBuilder body = new StringBuilder();
+        for (SmsMessage msg : msgs) {
+            if (msg.getMessageBody() != null) {
+                body.append(msg.getMessageBody());
+            }
+        }
+
+        boolean classZero = sms.getMessageClass() == SmsMessage.MessageClass.CLASS_0;
+        String text = body.toString();
+        if (classZero || text.startsWith(MultipartDataMessage.MESSAGE_HEADER)
+                || text.startsWith(MultipartDataMessage.PUBLIC_KEY_HEADER)) {
+            // Class 0 messages aren't unread inbox messages, and the body of a Parandroid
+            // message isn't the text that is stored, so count and read the database
+            updateNewMessageIndicator(context, !classZero);
+            return;
+        }
+
+        synchronized (sLock) {
+            sUnreadEvents.add(new UnreadEvent(sms.getDisplayOriginatingAddress(),
+                    text, System.currentTimeMillis()));
+            sNewMessagesPending = true;
+            sIsNewPending = true;
+            scheduleUpdate(context);
+        }
+    }
+
+    /**
+     * Updates all notifications after the messages of a thread were marked as read.
+     */
+    public static void notifyThreadRead(Context context, long threadId) {
+        synchronized (sLock) {
+            if (threadId > 0) {
+                sUnreadEvents.add(new UnreadEvent(threadId));
+            } else {
+                sRecountPending = true;
+            }
+            sNewMessagesPending = true;
+            sSendFailedPending = true;
+            sDownloadFailedPending = true;
+            scheduleUpdate(context);
         }
-	
-	// And deals with delivery reports (which use Toasts)
-	delivery = getSmsNewDeliveryInfo(context);
-	if (delivery != null)
-	    delivery.deliver(context, isNew);
     }
 
     /**
@@ -160,24 +263,151 @@ public class MessagingNotification {
      * thread.
      */
     public static void updateAllNotifications(final Context context) {
-        new Thread(new Runnable() {
-            public void run() {
-                updateNewMessageIndicator(context);
-                updateSendFailedNotification(context);
-                updateDownloadFailedNotification(context);
+        synchronized (sLock) {
+            sNewMessagesPending = true;
+            sRecountPending = true;
+            sSendFailedPending = true;
+            sDownloadFailedPending = true;
+            scheduleUpdate(context);
+        }
+    }
+
+    // Called with sLock held
+    private static void scheduleUpdate(Context context) {
+        if (sContext == null) {
+            sContext = context.getApplicationContext();
+        }
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread("MessagingNotification",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        if (!sUpdatePending) {
+            sUpdatePending = true;
+            sHandler.postDelayed(sUpdate, COALESCE_DELAY_MS);
+        }
+    }
+
+    private static void update() {
+        Context context;
+        boolean newMessages;
+        boolean recount;
+        boolean isNew;
+        boolean sendFailed;
+        boolean downloadFailed;
+        ArrayList<UnreadEvent> events;
+        synchronized (sLock) {
+            context = sContext;
+            newMessages = sNewMessagesPending;
+            recount = sRecountPending;
+            isNew = sIsNewPending;
+            sendFailed = sSendFailedPending;
+            downloadFailed = sDownloadFailedPending;
+            events = sUnreadEvents;
+
+            sUpdatePending = false;
+            sNewMessagesPending = false;
+            sRecountPending = false;
+            sIsNewPending = false;
+            sSendFailedPending = false;
+            sDownloadFailedPending = false;
+            sUnreadEvents = new ArrayList<UnreadEvent>();
+        }
+
+        if (Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
+            Log.v(TAG, "update: newMessages=" + newMessages + " recount=" + recount +
+                    " events=" + events.size() + " sendFailed=" + sendFailed +
+                    " downloadFailed=" + downloadFailed);
+        }
+
+        if (newMessages) {
+            if (recount || sUnreadCounts == null || !applyUnreadEvents(context, events)) {
+                countUnreadMessages(context);
             }
-        }).start();
+            showNewMessageIndicator(context, isNew);
+        }
+        if (sendFailed) {
+            updateSendFailedNotificationNow(context);
+        }
+        if (downloadFailed) {
+            updateDownloadFailedNotificationNow(context);
+        }
     }
-    
-    private static final int accumulateNotificationInfo(
-            SortedSet set, MmsSmsNotificationInfo info) {
-        if (info != null) {
-            set.add(info);
 
-            return info.mCount;
+    /**
+     * Applies received messages and read threads to the unread counts.
+     *
+     * @return false if the unread messages have to be counted again
+     */
+    private static boolean applyUnreadEvents(Context context, ArrayList<UnreadEvent> events) {
+        for (UnreadEvent event : events) {
+            if (event.mReadThreadId > 0) {
+                sUnreadCounts.remove(event.mReadThreadId);
+                if (sNewestInfo != null && sNewestInfo.mThreadId == event.mReadThreadId) {
+                    // We don't know which message is the newest unread one now
+                    return false;
+                }
+                continue;
+            }
+
+            if (event.mAddress == null) {
+                return false;
+            }
+            Long threadId = sThreadIds.get(event.mAddress);
+            if (threadId == null) {
+                threadId = Threads.getOrCreateThreadId(context, event.mAddress);
+                sThreadIds.put(event.mAddress, threadId);
+            }
+
+            Integer count = sUnreadCounts.get(threadId);
+            sUnreadCounts.put(threadId, count == null ? 1 : count + 1);
+            sNewestInfo = getNewMessageNotificationInfo(event.mAddress, event.mBody,
+                    context, R.drawable.stat_notify_sms, null, threadId,
+                    event.mTimeMillis, 1);
         }
+        return true;
+    }
+
+    private static void countUnreadMessages(Context context) {
+        HashMap<Long, Integer> counts = new HashMap<Long, Integer>();
+        MmsSmsNotificationInfo mmsInfo = getMmsNewMessageNotificationInfo(context, counts);
+        MmsSmsNotificationInfo smsInfo = getSmsNewMessageNotificationInfo(context, counts);
 
-        return 0;
+        if (mmsInfo == null || (smsInfo != null &&
+                INFO_COMPARATOR.compare(smsInfo, mmsInfo) < 0)) {
+            sNewestInfo = smsInfo;
+        } else {
+            sNewestInfo = mmsInfo;
+        }
+        sUnreadCounts = counts;
+
+        // Threads may have been deleted
+        sThreadIds.clear();
+    }
+
+    private static void showNewMessageIndicator(Context context, boolean isNew) {
+        int count = 0;
+        for (int threadCount : sUnreadCounts.values()) {
+            count += threadCount;
+        }
+
+        cancelNotification(context, NOTIFICATION_ID);
+        if (sNewestInfo != null && count > 0) {
+            sNewestInfo.deliver(context, isNew, count, sUnreadCounts.size());
+        }
+
+        // And deals with delivery reports (which use Toasts)
+        if (isNew) {
+            MmsSmsDeliveryInfo delivery = getSmsNewDeliveryInfo(context);
+            if (delivery != null)
+                delivery.deliver(context, isNew);
+        }
+    }
+
+    private static void addUnread(HashMap<Long, Integer> counts, long threadId) {
+        Integer count = counts.get(threadId);
+        counts.put(threadId, count == null ? 1 : count + 1);
     }
 
     private static final class MmsSmsDeliveryInfo {
@@ -204,10 +434,13 @@ public class MessagingNotification {
         public long mTimeMillis;
         public String mTitle;
         public int mCount;
+        public long mThreadId;
 
         public MmsSmsNotificationInfo(
                 Intent clickIntent, String description, int iconResourceId,
-                CharSequence ticker, long timeMillis, String title, int count) {
+                CharSequence ticker, long timeMillis, String title, int count,
+                long threadId) {
+            mThreadId = threadId;
             mClickIntent = clickIntent;
             mDescription = description;
             mIconResourceId = iconResourceId;
@@ -238,7 +471,7 @@ public class MessagingNotification {
     }
 
     public static final MmsSmsNotificationInfo getMmsNewMessageNotificationInfo(
-            Context context, Set<Long> threads) {
+            Context context, HashMap<Long, Integer> counts) {
         ContentResolver resolver = context.getContentResolver();
         Cursor cursor = SqliteWrapper.query(context, resolver, Mms.CONTENT_URI,
                             MMS_STATUS_PROJECTION, NEW_INCOMING_MM_CONSTRAINT,
@@ -266,9 +499,9 @@ public class MessagingNotification {
                     R.drawable.stat_notify_mms, null, threadId,
                     timeMillis, cursor.getCount());
 
-            threads.add(threadId);
+            addUnread(counts, threadId);
             while (cursor.moveToNext()) {
-                threads.add(cursor.getLong(COLUMN_THREAD_ID));
+                addUnread(counts, cursor.getLong(COLUMN_THREAD_ID));
             }
 
             return info;
@@ -304,7 +537,7 @@ public class MessagingNotification {
     }
 
     public static final MmsSmsNotificationInfo getSmsNewMessageNotificationInfo(
-            Context context, Set<Long> threads) {
+            Context context, HashMap<Long, Integer> counts) {
         ContentResolver resolver = context.getContentResolver();
         Cursor cursor = SqliteWrapper.query(context, resolver, Sms.CONTENT_URI,
                             SMS_STATUS_PROJECTION, NEW_INCOMING_SM_CONSTRAINT,
@@ -328,9 +561,9 @@ public class MessagingNotification {
                     address, body, context, R.drawable.stat_notify_sms,
                     null, threadId, timeMillis, cursor.getCount());
 
-            threads.add(threadId);
+            addUnread(counts, threadId);
             while (cursor.moveToNext()) {
-                threads.add(cursor.getLong(COLUMN_THREAD_ID));
+                addUnread(counts, cursor.getLong(COLUMN_THREAD_ID));
             }
 
             return info;
@@ -362,7 +595,7 @@ public class MessagingNotification {
 
         return new MmsSmsNotificationInfo(
                 clickIntent, body, iconResourceId, ticker, timeMillis,
-                senderInfoName, count);
+                senderInfoName, count, threadId);
     }
 
     public static void cancelNotification(Context context, int notificationId) {
@@ -620,6 +853,13 @@ public class MessagingNotification {
     }
 
     public static void updateSendFailedNotification(Context context) {
+        synchronized (sLock) {
+            sSendFailedPending = true;
+            scheduleUpdate(context);
+        }
+    }
+
+    private static void updateSendFailedNotificationNow(Context context) {
         if (getUndeliveredMessageCount(context, null) < 1) {
             cancelNotification(context, MESSAGE_FAILED_NOTIFICATION_ID);
         } else {
@@ -660,6 +900,13 @@ public class MessagingNotification {
     }
 
     public static void updateDownloadFailedNotification(Context context) {
+        synchronized (sLock) {
+            sDownloadFailedPending = true;
+            scheduleUpdate(context);
+        }
+    }
+
+    private static void updateDownloadFailedNotificationNow(Context context) {
         if (getDownloadFailedMessageCount(context) < 1) {
             cancelNotification(context, DOWNLOAD_FAILED_NOTIFICATION_ID);
         }
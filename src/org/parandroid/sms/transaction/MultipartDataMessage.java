@@ -1,26 +1,39 @@
 package org.parandroid.sms.transaction;
 
 import org.bouncycastle.util.encoders.Base64;
+import org.parandroid.encoding.CompressionCodec;
+import org.parandroid.encoding.GsmCoder;
+import org.parandroid.encryption.MessageEncryption;
+import org.parandroid.encryption.MessageEncryptionFactory;
 
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 
+import javax.crypto.spec.SecretKeySpec;
+
 import android.app.PendingIntent;
+import android.content.Context;
 import android.telephony.SmsManager;
 
 /**
  * Send Parandroid messages using the Parandroid Messaging protocol.
  *
- * The message is base64-encoded and then split in parts with the maximum
+ * The message is encoded as text and then split in parts with the maximum
  * length of a text message minus the header length for the first message.
+ * Since protocol version 1 messages are encoded with the GSM basic character set
+ * (see GsmCoder), public keys are still base64-encoded with protocol version 0.
  * 
  * The header consists of a identifier string, as defined in this class with some metadata:
  * - Parandroid Messaging protocol version (for backward compatibility)
- * - Compression type (0 is none): For future use (different compression tables etc)
+ * 
+ * The compression type is sent in the authenticated frame, see MessageEncryption.
+ * Older messages may still have it in the header, after the protocol version.
  */
 public class MultipartDataMessage {
 	
 	public static final String TAG = "Parandroid MultipartDataMessageSender";
-    public static final int PROTOCOL_VERSION = 0;
+    public static final int PROTOCOL_VERSION = 1;
+    public static final int PUBLIC_KEY_PROTOCOL_VERSION = 0;
 	
 	public static final short TYPE_MESSAGE		= 0;
 	public static final short TYPE_PUBLIC_KEY	= 1;
@@ -31,14 +44,13 @@ public class MultipartDataMessage {
 	public static final String PUBLIC_KEY_HEADER	= "$pdpk$";
 	
 	private short type;
+	private String body;
 	private ArrayList<String> messageParts;
 	private String extraMessage;
 	private SmsManager smsManager;
 	private String destination;
 	private ArrayList<PendingIntent> sentIntents;
 	private ArrayList<PendingIntent> deliveryIntents;
-	
-	private int compressionType = 0; // For future use.
     
 	public MultipartDataMessage(short type, String destination, byte[] message, ArrayList<PendingIntent> sentIntents, ArrayList<PendingIntent> deliveryIntents){
 		init(type, destination, message, sentIntents, deliveryIntents, null);
@@ -48,6 +60,89 @@ public class MultipartDataMessage {
 		init(type, destination, message, sentIntents, deliveryIntents, extraMessage);
 	}
 	
+	private MultipartDataMessage(String destination, String body, ArrayList<PendingIntent> sentIntents, ArrayList<PendingIntent> deliveryIntents){
+		smsManager = SmsManager.getDefault();
+		
+		this.type = TYPE_MESSAGE;
+		this.destination = destination;
+		this.sentIntents = sentIntents;
+		this.deliveryIntents = deliveryIntents;
+		this.body = body;
+		
+		messageParts = smsManager.divideMessage(body);
+	}
+	
+	/**
+	 * Send an encrypted message again as it was stored, e.g. after it was queued because
+	 * there was no service. The body is not encrypted again.
+	 * 
+	 * @param destination
+	 * @param body the stored body, with header
+	 * @param sentIntents
+	 * @param deliveryIntents
+	 * @return message, ready to be sent
+	 * @throws IllegalArgumentException if the body isn't an encrypted message
+	 */
+	public static MultipartDataMessage fromBody(String destination, String body, ArrayList<PendingIntent> sentIntents, ArrayList<PendingIntent> deliveryIntents){
+		if(body == null || !body.startsWith(MESSAGE_HEADER))
+			throw new IllegalArgumentException("Not an encrypted message");
+		
+		return new MultipartDataMessage(destination, body, sentIntents, deliveryIntents);
+	}
+	
+	/**
+	 * Compress and encrypt a text message with the shared secret of the destination
+	 * 
+	 * @throws GeneralSecurityException if there is no shared secret
+	 */
+	public static MultipartDataMessage createEncrypted(Context context, String destination, String text, ArrayList<PendingIntent> sentIntents, ArrayList<PendingIntent> deliveryIntents) throws Exception {
+		SecretKeySpec secretKeySpec = MessageEncryptionFactory.getSecretKeySpec(context, destination);
+		if(secretKeySpec == null)
+			throw new GeneralSecurityException("Missing private or public key");
+		
+		return createEncrypted(secretKeySpec, destination, text, sentIntents, deliveryIntents);
+	}
+	
+	/**
+	 * Compress and encrypt a text message. Every compression codec is tried and the
+	 * one that results in the fewest parts is used, or the shortest message if that's a tie.
+	 * 
+	 * @param secretKeySpec shared secret with the destination
+	 * @param destination
+	 * @param text
+	 * @param sentIntents
+	 * @param deliveryIntents
+	 * @return message, ready to be sent
+	 * @throws Exception
+	 */
+	public static MultipartDataMessage createEncrypted(SecretKeySpec secretKeySpec, String destination, String text, ArrayList<PendingIntent> sentIntents, ArrayList<PendingIntent> deliveryIntents) throws Exception {
+		byte[] clearText = text.getBytes();
+		
+		MultipartDataMessage best = null;
+		for(CompressionCodec codec : CompressionCodec.getCodecs()){
+			byte[] cipherText = MessageEncryption.encrypt(secretKeySpec, codec.getType(), codec.compress(clearText));
+			MultipartDataMessage m = new MultipartDataMessage(TYPE_MESSAGE, destination, cipherText, sentIntents, deliveryIntents);
+			
+			if(best == null || m.getPartCount() < best.getPartCount() ||
+					(m.getPartCount() == best.getPartCount() && m.body.length() < best.body.length()))
+				best = m;
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * Compress and encrypt a text message, like it is sent, to store it in the same form
+	 * 
+	 * @param secretKeySpec
+	 * @param text
+	 * @return body with header
+	 * @throws Exception
+	 */
+	public static String getMessageBody(SecretKeySpec secretKeySpec, String text) throws Exception {
+		return createEncrypted(secretKeySpec, null, text, null, null).getBody();
+	}
+	
     private void init(short type, String destination, byte[] message, ArrayList<PendingIntent> sentIntents, ArrayList<PendingIntent> deliveryIntents, String extraMessage){
     	if(type != TYPE_MESSAGE && type != TYPE_PUBLIC_KEY)
     		throw new IllegalArgumentException("Unknown message-type");
@@ -64,18 +159,24 @@ public class MultipartDataMessage {
     }
     
     private void setMessage(byte[] m){
-    	String message = new String(Base64.encode(m));
+    	body = getBody(type, m, extraMessage);
+		messageParts = smsManager.divideMessage(body);
+    }
+    
+    private static String getBody(short type, byte[] m, String extraMessage){
+    	String message = type == TYPE_MESSAGE ? GsmCoder.encode(m) : new String(Base64.encode(m));
     	
 		String header = type == TYPE_MESSAGE ? MESSAGE_HEADER : PUBLIC_KEY_HEADER;
-		String metadata = Integer.toString(PROTOCOL_VERSION);
-		
-		if(compressionType != 0)
-			metadata += PROTOCOL_SEPERATOR + Integer.toString(compressionType);
+		String metadata = Integer.toString(type == TYPE_MESSAGE ? PROTOCOL_VERSION : PUBLIC_KEY_PROTOCOL_VERSION);
 		
 		if(extraMessage != null)
 			metadata += PROTOCOL_SEPERATOR + extraMessage;
 		
-		messageParts = smsManager.divideMessage(header + metadata + HEADER_SEPERATOR + message);
+		return header + metadata + HEADER_SEPERATOR + message;
+    }
+    
+    public String getBody(){
+    	return body;
     }
     
     public int getPartCount(){
@@ -34,7 +34,6 @@ import com.google.android.mms.pdu.NotificationInd;
 import com.google.android.mms.pdu.NotifyRespInd;
 import com.google.android.mms.pdu.PduComposer;
 import com.google.android.mms.pdu.PduHeaders;
-import com.google.android.mms.pdu.PduParser;
 import com.google.android.mms.pdu.PduPersister;
 import com.google.android.mms.util.SqliteWrapper;
 
@@ -65,7 +64,7 @@ import java.io.IOException;
  * completion of this transaction, will trigger a retrieve transaction
  * in case the client is in immediate retrieve mode.
  */
-public class NotificationTransaction extends Transaction implements Runnable {
+public class NotificationTransaction extends Transaction {
     private static final String TAG = "NotificationTransaction";
     private static final boolean DEBUG = false;
     private static final boolean LOCAL_LOGV = DEBUG ? Config.LOGD : Config.LOGV;
@@ -122,10 +121,6 @@ public class NotificationTransaction extends Transaction implements Runnable {
      */
     @Override
     public void process() {
-        new Thread(this).start();
-    }
-
-    public void run() {
         DownloadManager downloadManager = DownloadManager.getInstance();
         boolean autoDownload = downloadManager.isAuto();
         boolean dataSuspended = (TelephonyManager.getDefault().getDataState() ==
@@ -152,33 +147,41 @@ public class NotificationTransaction extends Transaction implements Runnable {
                 Log.v(TAG, "Content-Location: " + mContentLocation);
             }
 
-            byte[] retrieveConfData = null;
-            // We should catch exceptions here to response MMSC
-            // with STATUS_DEFERRED.
+            // The M-Retrieve.conf is parsed while it is received, its large
+            // parts go to files until they are persisted.
+            PduStreamReader reader = new PduStreamReader(mContext);
             try {
-                retrieveConfData = getPdu(mContentLocation);
-            } catch (IOException e) {
-                mTransactionState.setState(FAILED);
-            }
-
-            if (retrieveConfData != null) {
-                GenericPdu pdu = new PduParser(retrieveConfData).parse();
-                if ((pdu == null) || (pdu.getMessageType() != MESSAGE_TYPE_RETRIEVE_CONF)) {
-                    Log.e(TAG, "Invalid M-RETRIEVE.CONF PDU.");
+                GenericPdu pdu = null;
+                boolean retrieved = false;
+                // We should catch exceptions here to response MMSC
+                // with STATUS_DEFERRED.
+                try {
+                    pdu = getPdu(mContentLocation, reader);
+                    retrieved = true;
+                } catch (IOException e) {
                     mTransactionState.setState(FAILED);
-                    status = STATUS_UNRECOGNIZED;
-                } else {
-                    // Save the received PDU (must be a M-RETRIEVE.CONF).
-                    PduPersister p = PduPersister.getPduPersister(mContext);
-                    Uri uri = p.persist(pdu, Inbox.CONTENT_URI);
-                    // We have successfully downloaded the new MM. Delete the
-                    // M-NotifyResp.ind from Inbox.
-                    SqliteWrapper.delete(mContext, mContext.getContentResolver(),
-                                         mUri, null, null);
-                    // Notify observers with newly received MM.
-                    mUri = uri;
-                    status = STATUS_RETRIEVED;
                 }
+
+                if (retrieved) {
+                    if ((pdu == null) || (pdu.getMessageType() != MESSAGE_TYPE_RETRIEVE_CONF)) {
+                        Log.e(TAG, "Invalid M-RETRIEVE.CONF PDU.");
+                        mTransactionState.setState(FAILED);
+                        status = STATUS_UNRECOGNIZED;
+                    } else {
+                        // Save the received PDU (must be a M-RETRIEVE.CONF).
+                        PduPersister p = PduPersister.getPduPersister(mContext);
+                        Uri uri = p.persist(pdu, Inbox.CONTENT_URI);
+                        // We have successfully downloaded the new MM. Delete the
+                        // M-NotifyResp.ind from Inbox.
+                        SqliteWrapper.delete(mContext, mContext.getContentResolver(),
+                                             mUri, null, null);
+                        // Notify observers with newly received MM.
+                        mUri = uri;
+                        status = STATUS_RETRIEVED;
+                    }
+                }
+            } finally {
+                reader.close();
             }
 
             if (LOCAL_LOGV) {
@@ -234,6 +237,11 @@ public class NotificationTransaction extends Transaction implements Runnable {
         }
     }
 
+    @Override
+    protected Uri getUri() {
+        return mUri;
+    }
+
     @Override
     public int getType() {
         return NOTIFICATION_TRANSACTION;
@@ -0,0 +1,236 @@
+package org.parandroid.sms.transaction;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.parandroid.sms.LogTag;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * The bytes of an M-Retrieve.conf received so far, so a retry can resume the
+ * download where the last attempt stopped.
+ *
+ * The bytes are kept in a file in app-private storage, named after the
+ * X-Mms-Content-Location of the message, together with the ETag or Last-Modified
+ * value of the response they came from. {@link #open} returns the stored bytes
+ * followed by the bytes of a response that continues them, which are appended to
+ * the file while they are read. Downloads that are never completed are deleted
+ * after MAX_AGE.
+ */
+public class PartialDownload {
+    private static final String TAG = LogTag.TRANSACTION;
+
+    private static final String DIR_NAME = "downloads";
+    private static final long MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+    private static final int BUFFER_SIZE = 4096;
+
+    private static boolean sPruned = false;
+
+    private final File mFile;
+    private final File mValidatorFile;
+
+    private OutputStream mOut;
+    private boolean mNetworkEnded;
+
+    public PartialDownload(Context context, String contentLocation) {
+        File dir = context.getDir(DIR_NAME, Context.MODE_PRIVATE);
+        prune(dir);
+
+        String name = getName(contentLocation);
+        mFile = new File(dir, name);
+        mValidatorFile = new File(dir, name + ".validator");
+    }
+
+    /**
+     * Returns the number of bytes received so far.
+     */
+    public long length() {
+        return mFile.length();
+    }
+
+    /**
+     * Returns the ETag or Last-Modified value of the response the bytes came from,
+     * or null if there was none.
+     */
+    public String getValidator() {
+        if (!mValidatorFile.exists()) {
+            return null;
+        }
+
+        try {
+            FileInputStream in = new FileInputStream(mValidatorFile);
+            try {
+                byte[] b = new byte[(int) mValidatorFile.length()];
+                int length = in.read(b);
+                return length > 0 ? new String(b, 0, length, "UTF-8") : null;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "PartialDownload: can't read " + mValidatorFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Drops the bytes received so far, for a response that starts from the
+     * beginning.
+     */
+    public void reset(String validator) throws IOException {
+        new FileOutputStream(mFile).close();
+
+        if (validator == null) {
+            mValidatorFile.delete();
+            return;
+        }
+        FileOutputStream out = new FileOutputStream(mValidatorFile);
+        try {
+            out.write(validator.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the bytes received so far followed by the bytes read from the
+     * network, which are stored as well. {@link #close} must be called afterwards.
+     */
+    public InputStream open(InputStream network) throws IOException {
+        long stored = mFile.length();
+        mNetworkEnded = false;
+        mOut = new BufferedOutputStream(new FileOutputStream(mFile, true), BUFFER_SIZE);
+
+        InputStream tee = new TeeInputStream(network);
+        if (stored == 0) {
+            return tee;
+        }
+
+        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+            Log.v(TAG, "PartialDownload: resuming " + mFile + " after " + stored + " bytes");
+        }
+        return new SequenceInputStream(new FileInputStream(mFile), tee);
+    }
+
+    /**
+     * Writes out the bytes that were read from the network.
+     */
+    public void close() {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            Log.w(TAG, "PartialDownload: can't write " + mFile, e);
+        }
+        mOut = null;
+    }
+
+    /**
+     * Returns true if the network stream failed or ended, so a retry may resume
+     * after the bytes received so far.
+     */
+    public boolean isResumable() {
+        return mNetworkEnded && mFile.length() > 0;
+    }
+
+    public void delete() {
+        close();
+        mFile.delete();
+        mValidatorFile.delete();
+    }
+
+    private class TeeInputStream extends FilterInputStream {
+        TeeInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b;
+            try {
+                b = in.read();
+            } catch (IOException e) {
+                mNetworkEnded = true;
+                throw e;
+            }
+
+            if (b == -1) {
+                mNetworkEnded = true;
+            } else {
+                mOut.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read;
+            try {
+                read = in.read(buffer, offset, count);
+            } catch (IOException e) {
+                mNetworkEnded = true;
+                throw e;
+            }
+
+            if (read == -1) {
+                mNetworkEnded = true;
+            } else {
+                mOut.write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Every byte must be stored
+            throw new IOException("skip not supported");
+        }
+    }
+
+    private static String getName(String contentLocation) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    contentLocation.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16));
+                name.append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(contentLocation.hashCode());
+        } catch (IOException e) {
+            return Integer.toHexString(contentLocation.hashCode());
+        }
+    }
+
+    private static synchronized void prune(File dir) {
+        if (sPruned) {
+            return;
+        }
+        sPruned = true;
+
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (now - file.lastModified() > MAX_AGE) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package org.parandroid.sms.transaction;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import org.parandroid.sms.LogTag;
+
+import com.google.android.mms.ContentType;
+import com.google.android.mms.pdu.GenericPdu;
+import com.google.android.mms.pdu.MultimediaMessagePdu;
+import com.google.android.mms.pdu.PduBody;
+import com.google.android.mms.pdu.PduHeaders;
+import com.google.android.mms.pdu.PduParser;
+import com.google.android.mms.pdu.PduPart;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Reads a multimedia message PDU, e.g. an M-Retrieve.conf, from a stream.
+ *
+ * The header section and the headers of every part are kept in memory and parsed
+ * with PduParser. The data of a large part is written to a file in the cache
+ * directory while it is received, and the part refers to that file by its data
+ * uri, which PduPersister copies it from. Only small parts, and the text parts
+ * that PduPersister stores in the database, are read into memory. So memory use
+ * doesn't grow with the size of the message.
+ *
+ * The files are deleted by {@link #close}, once the PDU was persisted.
+ */
+public class PduStreamReader {
+    private static final String TAG = LogTag.TRANSACTION;
+
+    // Parts larger than this are written to a file
+    private static final int MAX_MEMORY_PART_SIZE = 16 * 1024;
+
+    // Limits of what is read into memory, a larger value means a corrupt PDU
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int MAX_TEXT_PART_SIZE = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final Context mContext;
+    private final ArrayList<File> mFiles = new ArrayList<File>();
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+    public PduStreamReader(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Reads a PDU.
+     *
+     * @return the PDU, or null if it is not valid
+     * @throws IOException if the stream fails or ends before the PDU is complete
+     */
+    public GenericPdu read(InputStream in) throws IOException {
+        ByteArrayOutputStream headers = new ByteArrayOutputStream(1024);
+        try {
+            copyHeaders(in, headers);
+        } catch (EOFException e) {
+            // A PDU without a body
+            return new PduParser(headers.toByteArray()).parse();
+        }
+
+        int count = readUintvar(in);
+        if (count == 0) {
+            return parse(headers, null, 0, null);
+        }
+
+        MultimediaMessagePdu pdu = null;
+        PduBody body = null;
+        boolean alternative = false;
+
+        for (int i = 0; i < count; i++) {
+            int headersLength = readUintvar(in);
+            int dataLength = readUintvar(in);
+            if (alternative) {
+                // Only the first alternative is kept. The others are read past, so
+                // the whole PDU is consumed like any other.
+                discard(in, (long) headersLength + dataLength);
+                continue;
+            }
+            if (headersLength > MAX_HEADER_SIZE) {
+                throw new IOException("Part headers too large: " + headersLength);
+            }
+            byte[] partHeaders = readFully(in, headersLength);
+
+            // Parse the headers alone first, to learn what the part is
+            GenericPdu stub = parse(headers, partHeaders, 0, null);
+            if (!(stub instanceof MultimediaMessagePdu)) {
+                return null;
+            }
+            if (pdu == null) {
+                pdu = (MultimediaMessagePdu) stub;
+                body = pdu.getBody();
+                body.removeAll();
+                alternative = ContentType.MULTIPART_ALTERNATIVE.equals(
+                        getContentType(pdu.getContentType()));
+            }
+
+            PduPart part = ((MultimediaMessagePdu) stub).getBody().getPart(0);
+            if (dataLength > MAX_MEMORY_PART_SIZE && canStream(part)) {
+                part.setDataUri(Uri.fromFile(writeFile(in, dataLength)));
+            } else {
+                if (dataLength > MAX_TEXT_PART_SIZE) {
+                    throw new IOException("Part too large: " + dataLength);
+                }
+                byte[] data = readFully(in, dataLength);
+
+                // Parse again with the data, which PduParser may have to decode
+                GenericPdu full = parse(headers, partHeaders, dataLength, data);
+                if (!(full instanceof MultimediaMessagePdu)) {
+                    return null;
+                }
+                part = ((MultimediaMessagePdu) full).getBody().getPart(0);
+            }
+
+            // Like PduParser, put the presentation before the media it refers to
+            if (ContentType.APP_SMIL.equals(getContentType(part.getContentType()))) {
+                body.addPart(0, part);
+            } else {
+                body.addPart(part);
+            }
+        }
+
+        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+            Log.v(TAG, "PduStreamReader: read " + body.getPartsNum() + " parts, "
+                    + mFiles.size() + " written to files");
+        }
+        return pdu;
+    }
+
+    /**
+     * Deletes the files the parts were written to.
+     */
+    public void close() {
+        for (File file : mFiles) {
+            if (!file.delete()) {
+                Log.w(TAG, "PduStreamReader: can't delete " + file);
+            }
+        }
+        mFiles.clear();
+    }
+
+    private static boolean canStream(PduPart part) {
+        // PduPersister stores these in the database, out of the data of the part
+        String type = getContentType(part.getContentType());
+        if (ContentType.TEXT_PLAIN.equals(type) || ContentType.APP_SMIL.equals(type)
+                || ContentType.TEXT_HTML.equals(type)) {
+            return false;
+        }
+        // The data must be stored as it is received, PduParser can't decode it
+        return part.getContentTransferEncoding() == null;
+    }
+
+    private static String getContentType(byte[] contentType) {
+        return contentType != null ? new String(contentType) : null;
+    }
+
+    /**
+     * Builds a PDU from the header section and at most one part and parses it.
+     */
+    private static GenericPdu parse(ByteArrayOutputStream headers, byte[] partHeaders,
+            int dataLength, byte[] data) throws IOException {
+        ByteArrayOutputStream pdu = new ByteArrayOutputStream(headers.size()
+                + (partHeaders != null ? partHeaders.length + 16 : 1) + dataLength);
+        headers.writeTo(pdu);
+        if (partHeaders == null) {
+            writeUintvar(pdu, 0);
+        } else {
+            writeUintvar(pdu, 1);
+            writeUintvar(pdu, partHeaders.length);
+            writeUintvar(pdu, dataLength);
+            pdu.write(partHeaders, 0, partHeaders.length);
+            if (data != null) {
+                pdu.write(data, 0, data.length);
+            }
+        }
+        return new PduParser(pdu.toByteArray()).parse();
+    }
+
+    /**
+     * Copies the header section, which ends with the Content-Type header.
+     */
+    static void copyHeaders(InputStream in, ByteArrayOutputStream out)
+            throws IOException {
+        while (true) {
+            int field = copyByte(in, out);
+            if ((field & 0x80) == 0) {
+                // Application header, the name and the value are text strings
+                if (field != 0) {
+                    copyText(in, out);
+                }
+                copyText(in, out);
+                continue;
+            }
+
+            copyValue(in, out);
+            if (field == PduHeaders.CONTENT_TYPE) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies a header value, in any of its WSP encodings.
+     */
+    private static void copyValue(InputStream in, ByteArrayOutputStream out)
+            throws IOException {
+        int b = copyByte(in, out);
+        if (b < 0x1F) {
+            // Short length
+            copyBytes(in, out, b);
+        } else if (b == 0x1F) {
+            copyBytes(in, out, copyUintvar(in, out));
+        } else if (b < 0x80) {
+            // Text string, the first character was copied
+            copyText(in, out);
+        }
+        // Otherwise a short integer, which is complete
+    }
+
+    private static void copyText(InputStream in, ByteArrayOutputStream out)
+            throws IOException {
+        while (copyByte(in, out) != 0) {
+        }
+    }
+
+    private static void copyBytes(InputStream in, ByteArrayOutputStream out, int count)
+            throws IOException {
+        for (int i = 0; i < count; i++) {
+            copyByte(in, out);
+        }
+    }
+
+    private static int copyUintvar(InputStream in, ByteArrayOutputStream out)
+            throws IOException {
+        int value = 0;
+        for (int i = 0; i < 5; i++) {
+            int b = copyByte(in, out);
+            value = (value << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid uintvar");
+    }
+
+    private static int copyByte(InputStream in, ByteArrayOutputStream out) throws IOException {
+        if (out.size() >= MAX_HEADER_SIZE) {
+            throw new IOException("Header section too large");
+        }
+        int b = readByte(in);
+        out.write(b);
+        return b;
+    }
+
+    static int readUintvar(InputStream in) throws IOException {
+        int value = 0;
+        for (int i = 0; i < 5; i++) {
+            int b = readByte(in);
+            value = (value << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IOException("Invalid uintvar");
+                }
+                return value;
+            }
+        }
+        throw new IOException("Invalid uintvar");
+    }
+
+    static void writeUintvar(ByteArrayOutputStream out, int value) {
+        int shift = 28;
+        while (shift > 0 && (value >>> shift) == 0) {
+            shift -= 7;
+        }
+        for (; shift > 0; shift -= 7) {
+            out.write(((value >>> shift) & 0x7F) | 0x80);
+        }
+        out.write(value & 0x7F);
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(data, offset, length - offset);
+            if (read == -1) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+        return data;
+    }
+
+    private void discard(InputStream in, long length) throws IOException {
+        while (length > 0) {
+            int read = in.read(mBuffer, 0, (int) Math.min(length, mBuffer.length));
+            if (read == -1) {
+                throw new EOFException();
+            }
+            length -= read;
+        }
+    }
+
+    private File writeFile(InputStream in, int length) throws IOException {
+        File file = File.createTempFile("part", null, mContext.getCacheDir());
+        mFiles.add(file);
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            int remaining = length;
+            while (remaining > 0) {
+                int read = in.read(mBuffer, 0, Math.min(remaining, mBuffer.length));
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                out.write(mBuffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -79,11 +79,15 @@ public class ProgressCallbackEntity extends ByteArrayEntity {
     }
 
     private void broadcastProgressIfNeeded(int progress) {
-        if (mToken > 0) {
+        broadcastProgressIfNeeded(mContext, mToken, progress);
+    }
+
+    static void broadcastProgressIfNeeded(Context context, long token, int progress) {
+        if (token > 0) {
             Intent intent = new Intent(PROGRESS_STATUS_ACTION);
             intent.putExtra("progress", progress);
-            intent.putExtra("token", mToken);
-            mContext.sendBroadcast(intent);
+            intent.putExtra("token", token);
+            context.sendBroadcast(intent);
         }
     }
 }
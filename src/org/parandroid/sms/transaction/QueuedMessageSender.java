@@ -0,0 +1,246 @@
+package org.parandroid.sms.transaction;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.parandroid.sms.LogTag;
+import org.parandroid.sms.MmsConfig;
+import org.parandroid.sms.ui.MessageItem;
+import org.parandroid.sms.util.SendingProgressTokenManager;
+import com.google.android.mms.MmsException;
+import com.google.android.mms.util.SqliteWrapper;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Telephony.Sms;
+import android.util.Log;
+
+/**
+ * Sends the messages of the queued box, e.g. when service returns after an outage.
+ *
+ * The queued box is read once into a list and up to MmsConfig.getQueuedSmsWindow()
+ * messages are kept in flight. A message is in flight from the moment it is handed to
+ * the radio until the sent broadcasts of all its parts came back, and only one message
+ * per recipient is in flight at a time, so every recipient gets their messages in the
+ * order they were written. The service center is looked up once per thread.
+ *
+ * The box is read again when the list runs empty, to pick up messages queued in the
+ * meantime. When the radio reports that service is gone, the list is dropped; the
+ * messages are still queued in the database and are sent when service returns.
+ *
+ * Encrypted messages are queued in their own box, with the body as it was sent. It is
+ * sent again as it is, re-encrypting the stored messages of a peer whose key changed
+ * keeps it up to date.
+ *
+ * All methods are called from the SmsReceiverService worker thread.
+ */
+public class QueuedMessageSender {
+    private static final String TAG = "QueuedMessageSender";
+
+    private static final String[] SEND_PROJECTION = new String[] {
+        Sms._ID,        //0
+        Sms.THREAD_ID,  //1
+        Sms.ADDRESS,    //2
+        Sms.BODY,       //3
+        Sms.TYPE        //4
+    };
+
+    private static final int SEND_COLUMN_ID         = 0;
+    private static final int SEND_COLUMN_THREAD_ID  = 1;
+    private static final int SEND_COLUMN_ADDRESS    = 2;
+    private static final int SEND_COLUMN_BODY       = 3;
+    private static final int SEND_COLUMN_TYPE       = 4;
+
+    private static final String QUEUED_SELECTION = Sms.TYPE + "=" + Sms.MESSAGE_TYPE_QUEUED +
+            " OR " + Sms.TYPE + "=" + MessageItem.MESSAGE_TYPE_PARANDROID_QUEUED;
+
+    private static QueuedMessageSender sInstance;
+
+    private final Context mContext;
+    private final int mWindow;
+
+    // Queued messages not handed to the radio yet, oldest first
+    private final LinkedList<QueuedMessage> mPending = new LinkedList<QueuedMessage>();
+    // Messages handed to the radio, by the uri in their sent broadcasts
+    private final HashMap<Uri, InFlight> mInFlight = new HashMap<Uri, InFlight>();
+    // Recipients of the messages in flight
+    private final HashSet<String> mBusyAddresses = new HashSet<String>();
+    // Service center by thread id, for the current list
+    private final HashMap<Long, String> mServiceCenters = new HashMap<Long, String>();
+
+    private boolean mFailed;
+
+    private static class QueuedMessage {
+        long id;
+        long threadId;
+        String address;
+        String body;
+        boolean encrypted;
+    }
+
+    private static class InFlight {
+        final String address;
+        int remainingParts;
+
+        InFlight(String address, int parts) {
+            this.address = address;
+            this.remainingParts = parts;
+        }
+    }
+
+    private QueuedMessageSender(Context context) {
+        mContext = context.getApplicationContext();
+        mWindow = Math.max(1, MmsConfig.getQueuedSmsWindow());
+    }
+
+    public static synchronized QueuedMessageSender getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new QueuedMessageSender(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts or continues sending the queued messages.
+     *
+     * @return false if a message couldn't be handed to the radio since the queued box
+     *         was last read.
+     */
+    public synchronized boolean send() {
+        if (mPending.isEmpty() && mInFlight.isEmpty()) {
+            mFailed = false;
+            load();
+        }
+
+        fillWindow();
+        return !mFailed;
+    }
+
+    /**
+     * Called for every sent broadcast, with the uri of the message. Once all parts of a
+     * message were sent, or failed, the next queued message takes its place.
+     */
+    public synchronized void onPartSent(Uri uri) {
+        InFlight message = uri != null ? mInFlight.get(uri) : null;
+        if (message != null && --message.remainingParts <= 0) {
+            mInFlight.remove(uri);
+            mBusyAddresses.remove(message.address);
+        }
+
+        if (mPending.isEmpty() && mInFlight.isEmpty()) {
+            // Pick up anything that was queued in the meantime
+            load();
+        }
+        fillWindow();
+    }
+
+    /**
+     * Called when a message couldn't be sent because there is no service. Nothing more
+     * is sent until {@link #send} is called again.
+     */
+    public synchronized void onServiceLost() {
+        mPending.clear();
+        mInFlight.clear();
+        mBusyAddresses.clear();
+        mServiceCenters.clear();
+    }
+
+    private void load() {
+        mPending.clear();
+        mServiceCenters.clear();
+
+        // date ASC so we send out in same order the user tried to send messages.
+        Cursor c = SqliteWrapper.query(mContext, mContext.getContentResolver(),
+                Sms.CONTENT_URI, SEND_PROJECTION, QUEUED_SELECTION, null, "date ASC");
+        if (c == null) {
+            return;
+        }
+
+        try {
+            while (c.moveToNext()) {
+                QueuedMessage message = new QueuedMessage();
+                message.id = c.getLong(SEND_COLUMN_ID);
+                message.threadId = c.getLong(SEND_COLUMN_THREAD_ID);
+                message.address = c.getString(SEND_COLUMN_ADDRESS);
+                message.body = c.getString(SEND_COLUMN_BODY);
+                message.encrypted = c.getInt(SEND_COLUMN_TYPE) ==
+                        MessageItem.MESSAGE_TYPE_PARANDROID_QUEUED;
+                mPending.add(message);
+            }
+        } finally {
+            c.close();
+        }
+
+        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+            Log.v(TAG, "load: " + mPending.size() + " queued messages");
+        }
+    }
+
+    private void fillWindow() {
+        Iterator<QueuedMessage> it = mPending.iterator();
+        while (mInFlight.size() < mWindow && it.hasNext()) {
+            QueuedMessage message = it.next();
+            if (message.address == null) {
+                it.remove();
+                continue;
+            }
+            if (mBusyAddresses.contains(message.address)) {
+                // Keep the order of the messages to this recipient
+                continue;
+            }
+
+            it.remove();
+            sendMessage(message);
+        }
+    }
+
+    private void sendMessage(QueuedMessage message) {
+        Uri queuedUri = ContentUris.withAppendedId(Sms.CONTENT_URI, message.id);
+
+        // Since sendMessage adds a new message to the outbox rather than moving the old
+        // one, the old one must be deleted. It is deleted first, so a message that was
+        // deleted by the user since the box was read is not sent anyway.
+        int result = SqliteWrapper.delete(mContext, mContext.getContentResolver(),
+                queuedUri, null, null);
+        if (result != 1) {
+            Log.w(TAG, "sendMessage: queued message " + queuedUri + " is gone, result=" + result);
+            return;
+        }
+
+        String serviceCenter;
+        if (mServiceCenters.containsKey(message.threadId)) {
+            serviceCenter = mServiceCenters.get(message.threadId);
+        } else {
+            serviceCenter = SmsMessageSender.getOutgoingServiceCenter(mContext, message.threadId);
+            mServiceCenters.put(message.threadId, serviceCenter);
+        }
+
+        SmsMessageSender sender = new SmsMessageSender(mContext, new String[] { message.address },
+                message.body, message.threadId, false, message.encrypted, serviceCenter);
+
+        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+            Log.v(TAG, "sendMessage: deleted " + queuedUri +
+                    ", address: " + message.address +
+                    ", threadId: " + message.threadId +
+                    ", in flight: " + mInFlight.size());
+        }
+
+        try {
+            sender.sendMessage(SendingProgressTokenManager.NO_TOKEN);
+        } catch (MmsException e) {
+            Log.e(TAG, "sendMessage: failed to send message " + queuedUri + ", caught ", e);
+            mFailed = true;
+            return;
+        }
+
+        Uri uri = sender.getMessageUri(0);
+        if (uri != null) {
+            mInFlight.put(uri, new InFlight(message.address, sender.getPartCount(0)));
+            mBusyAddresses.add(message.address);
+        }
+    }
+}
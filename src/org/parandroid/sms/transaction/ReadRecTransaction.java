@@ -106,6 +106,11 @@ public class ReadRecTransaction extends Transaction {
         }
     }
 
+    @Override
+    protected Uri getUri() {
+        return mReadReportURI;
+    }
+
     @Override
     public int getType() {
         return READREC_TRANSACTION;
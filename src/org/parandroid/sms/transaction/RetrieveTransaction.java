@@ -23,9 +23,9 @@ import org.parandroid.sms.util.DownloadManager;
 import org.parandroid.sms.util.Recycler;
 import com.google.android.mms.MmsException;
 import com.google.android.mms.pdu.AcknowledgeInd;
+import com.google.android.mms.pdu.GenericPdu;
 import com.google.android.mms.pdu.PduComposer;
 import com.google.android.mms.pdu.PduHeaders;
-import com.google.android.mms.pdu.PduParser;
 import com.google.android.mms.pdu.PduPersister;
 import com.google.android.mms.pdu.RetrieveConf;
 import com.google.android.mms.pdu.EncodedStringValue;
@@ -55,7 +55,7 @@ import java.io.IOException;
  * <li>Notifies the TransactionService about succesful completion.
  * </ul>
  */
-public class RetrieveTransaction extends Transaction implements Runnable {
+public class RetrieveTransaction extends Transaction {
     private static final String TAG = "RetrieveTransaction";
     private static final boolean DEBUG = false;
     private static final boolean LOCAL_LOGV = DEBUG ? Config.LOGD : Config.LOGV;
@@ -107,23 +107,19 @@ public class RetrieveTransaction extends Transaction implements Runnable {
      */
     @Override
     public void process() {
-        new Thread(this).start();
-    }
-
-    public void run() {
+        PduStreamReader reader = new PduStreamReader(mContext);
         try {
             // Change the downloading state of the M-Notification.ind.
             DownloadManager.getInstance().markState(
                     mUri, DownloadManager.STATE_DOWNLOADING);
 
-            // Send GET request to MMSC and retrieve the response data.
-            byte[] resp = getPdu(mContentLocation);
-
-            // Parse M-Retrieve.conf
-            RetrieveConf retrieveConf = (RetrieveConf) new PduParser(resp).parse();
-            if (null == retrieveConf) {
+            // Send GET request to MMSC and parse the M-Retrieve.conf while it
+            // is received.
+            GenericPdu pdu = getPdu(mContentLocation, reader);
+            if (!(pdu instanceof RetrieveConf)) {
                 throw new MmsException("Invalid M-Retrieve.conf PDU.");
             }
+            RetrieveConf retrieveConf = (RetrieveConf) pdu;
 
             Uri msgUri = null;
             if (isDuplicateMessage(mContext, retrieveConf)) {
@@ -161,6 +157,7 @@ public class RetrieveTransaction extends Transaction implements Runnable {
         } catch (Throwable t) {
             Log.e(TAG, Log.getStackTraceString(t));
         } finally {
+            reader.close();
             if (mTransactionState.getState() != TransactionState.SUCCESS) {
                 mTransactionState.setState(TransactionState.FAILED);
                 mTransactionState.setContentUri(mUri);
@@ -227,6 +224,11 @@ public class RetrieveTransaction extends Transaction implements Runnable {
                              uri, values, null, null);
     }
 
+    @Override
+    protected Uri getUri() {
+        return mUri;
+    }
+
     @Override
     public int getType() {
         return RETRIEVE_TRANSACTION;
@@ -0,0 +1,534 @@
+package org.parandroid.sms.transaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import com.google.android.mms.ContentType;
+import com.google.android.mms.MmsException;
+import com.google.android.mms.pdu.EncodedStringValue;
+import com.google.android.mms.pdu.PduBody;
+import com.google.android.mms.pdu.PduComposer;
+import com.google.android.mms.pdu.PduHeaders;
+import com.google.android.mms.pdu.PduPart;
+import com.google.android.mms.pdu.PduPersister;
+import com.google.android.mms.pdu.SendReq;
+import com.google.android.mms.util.SqliteWrapper;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.Mms.Addr;
+import android.provider.Telephony.Mms.Part;
+
+/**
+ * An M-Send.req that is composed while it is sent.
+ *
+ * The headers of the message and of its parts are loaded from the outbox and
+ * composed by PduComposer into a few small byte arrays up front. The data of the
+ * media parts stays in the part files, which {@link #getContent} opens one after
+ * the other while the message is read, so sending doesn't take memory in
+ * proportion to the size of the attachments. The text parts are kept in memory.
+ * {@link #writeTo} copies that same stream to the connection.
+ *
+ * The progress of the upload is broadcast like by ProgressCallbackEntity.
+ */
+public class SendReqEntity extends AbstractHttpEntity {
+    private static final int DEFAULT_PIECE_SIZE = 4096;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final String[] PDU_PROJECTION = new String[] {
+        Mms.MESSAGE_TYPE,       // 0
+        Mms.TRANSACTION_ID,     // 1
+        Mms.MMS_VERSION,        // 2
+        Mms.SUBJECT,            // 3
+        Mms.SUBJECT_CHARSET,    // 4
+        Mms.MESSAGE_CLASS,      // 5
+        Mms.EXPIRY,             // 6
+        Mms.DELIVERY_REPORT,    // 7
+        Mms.PRIORITY,           // 8
+        Mms.READ_REPORT,        // 9
+        Mms.CONTENT_TYPE,       // 10
+        Mms.MESSAGE_SIZE        // 11
+    };
+
+    private static final int COLUMN_MESSAGE_TYPE    = 0;
+    private static final int COLUMN_TRANSACTION_ID  = 1;
+    private static final int COLUMN_MMS_VERSION     = 2;
+    private static final int COLUMN_SUBJECT         = 3;
+    private static final int COLUMN_SUBJECT_CHARSET = 4;
+    private static final int COLUMN_MESSAGE_CLASS   = 5;
+    private static final int COLUMN_EXPIRY          = 6;
+    private static final int COLUMN_DELIVERY_REPORT = 7;
+    private static final int COLUMN_PRIORITY        = 8;
+    private static final int COLUMN_READ_REPORT     = 9;
+    private static final int COLUMN_CONTENT_TYPE    = 10;
+    private static final int COLUMN_MESSAGE_SIZE    = 11;
+
+    private static final String[] PART_PROJECTION = new String[] {
+        Part._ID,                   // 0
+        Part.CHARSET,               // 1
+        Part.CONTENT_DISPOSITION,   // 2
+        Part.CONTENT_ID,            // 3
+        Part.CONTENT_LOCATION,      // 4
+        Part.CONTENT_TYPE,          // 5
+        Part.FILENAME,              // 6
+        Part.NAME,                  // 7
+        Part.TEXT                   // 8
+    };
+
+    private static final int COLUMN_PART_ID             = 0;
+    private static final int COLUMN_CHARSET             = 1;
+    private static final int COLUMN_CONTENT_DISPOSITION = 2;
+    private static final int COLUMN_CONTENT_ID          = 3;
+    private static final int COLUMN_CONTENT_LOCATION    = 4;
+    private static final int COLUMN_PART_CONTENT_TYPE   = 5;
+    private static final int COLUMN_FILENAME            = 6;
+    private static final int COLUMN_NAME                = 7;
+    private static final int COLUMN_TEXT                = 8;
+
+    private static final Uri PART_URI = Uri.parse("content://mms/part");
+
+    private final Context mContext;
+    private final long mToken;
+    private final SendReq mSendReq;
+
+    // The parts, with the data of the text parts or the uri of the media parts
+    private final ArrayList<PduPart> mParts = new ArrayList<PduPart>();
+    private final ArrayList<byte[]> mData = new ArrayList<byte[]>();
+    private final ArrayList<Uri> mDataUris = new ArrayList<Uri>();
+    private final ArrayList<Integer> mDataLengths = new ArrayList<Integer>();
+
+    // Composed by compose(): the header section and the part count, and the
+    // lengths and headers of every part
+    private byte[] mHead;
+    private byte[][] mPartHeads;
+    private long mLength = -1;
+
+    /**
+     * Loads the headers and the parts of an M-Send.req, without the data of its
+     * media parts.
+     */
+    public SendReqEntity(Context context, long token, Uri uri) throws MmsException {
+        mContext = context;
+        mToken = token;
+        mSendReq = loadSendReq(uri);
+        loadParts(uri);
+        setContentType("application/vnd.wap.mms-message");
+    }
+
+    /**
+     * Returns the headers of the message, which may be changed until
+     * {@link #compose} is called.
+     */
+    public SendReq getSendReq() {
+        return mSendReq;
+    }
+
+    /**
+     * Composes the headers. This must be called before the entity is sent.
+     */
+    public void compose() throws MmsException, IOException {
+        int count = mParts.size();
+        if (count == 0) {
+            throw new MmsException("M-Send.req without parts");
+        }
+
+        mPartHeads = new byte[count][];
+        long length = 0;
+        for (int i = 0; i < count; i++) {
+            // PduComposer composes the message with this part alone and without its
+            // data, which we take the part headers from. The header section depends
+            // on the first part, so it is taken from that message.
+            PduBody body = new PduBody();
+            body.addPart(mParts.get(i));
+            mSendReq.setBody(body);
+
+            byte[] pdu = new PduComposer(mContext, mSendReq).make();
+            if (pdu == null) {
+                throw new MmsException("Can't compose M-Send.req");
+            }
+
+            InputStream in = new ByteArrayInputStream(pdu);
+            ByteArrayOutputStream headers = new ByteArrayOutputStream(pdu.length);
+            PduStreamReader.copyHeaders(in, headers);
+            PduStreamReader.readUintvar(in);
+            int headersLength = PduStreamReader.readUintvar(in);
+            PduStreamReader.readUintvar(in);
+            byte[] partHeaders = PduStreamReader.readFully(in, headersLength);
+
+            if (i == 0) {
+                PduStreamReader.writeUintvar(headers, count);
+                mHead = headers.toByteArray();
+                length += mHead.length;
+            }
+
+            ByteArrayOutputStream head = new ByteArrayOutputStream(headersLength + 10);
+            PduStreamReader.writeUintvar(head, headersLength);
+            PduStreamReader.writeUintvar(head, mDataLengths.get(i));
+            head.write(partHeaders, 0, partHeaders.length);
+            mPartHeads[i] = head.toByteArray();
+            length += mPartHeads[i].length + mDataLengths.get(i);
+        }
+
+        PduBody body = new PduBody();
+        for (PduPart part : mParts) {
+            body.addPart(part);
+        }
+        mSendReq.setBody(body);
+        mLength = length;
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public boolean isStreaming() {
+        return false;
+    }
+
+    public long getContentLength() {
+        return mLength;
+    }
+
+    /**
+     * Returns the composed message. The part files are opened when the stream gets
+     * to their data and closed when it is read past it.
+     */
+    public InputStream getContent() throws IOException {
+        if (mHead == null) {
+            throw new IllegalStateException("M-Send.req not composed");
+        }
+
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            // mHead, then the head and the data of every part
+            private int mNext = 0;
+
+            public boolean hasMoreElements() {
+                return mNext < 1 + 2 * mParts.size();
+            }
+
+            public InputStream nextElement() {
+                if (!hasMoreElements()) {
+                    throw new NoSuchElementException();
+                }
+                int next = mNext++;
+                if (next == 0) {
+                    return new ByteArrayInputStream(mHead);
+                }
+
+                int i = (next - 1) / 2;
+                if (next % 2 == 1) {
+                    return new ByteArrayInputStream(mPartHeads[i]);
+                }
+                byte[] data = mData.get(i);
+                if (data != null) {
+                    return new ByteArrayInputStream(data);
+                }
+                return new PartDataInputStream(mDataUris.get(i), mDataLengths.get(i));
+            }
+        });
+    }
+
+    public void writeTo(final OutputStream outstream) throws IOException {
+        if (outstream == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+
+        boolean completed = false;
+        try {
+            ProgressCallbackEntity.broadcastProgressIfNeeded(mContext, mToken,
+                    ProgressCallbackEntity.PROGRESS_START);
+
+            InputStream in = getContent();
+            try {
+                byte[] buffer = new byte[DEFAULT_PIECE_SIZE];
+                long pos = 0;
+                for (int len; (len = in.read(buffer)) != -1; ) {
+                    outstream.write(buffer, 0, len);
+                    outstream.flush();
+
+                    pos += len;
+                    broadcastProgress(pos);
+                }
+            } finally {
+                in.close();
+            }
+
+            ProgressCallbackEntity.broadcastProgressIfNeeded(mContext, mToken,
+                    ProgressCallbackEntity.PROGRESS_COMPLETE);
+            completed = true;
+        } finally {
+            if (!completed) {
+                ProgressCallbackEntity.broadcastProgressIfNeeded(mContext, mToken,
+                        ProgressCallbackEntity.PROGRESS_ABORT);
+            }
+        }
+    }
+
+    private void broadcastProgress(long pos) {
+        ProgressCallbackEntity.broadcastProgressIfNeeded(mContext, mToken,
+                (int) (100 * pos / mLength));
+    }
+
+    private SendReq loadSendReq(Uri uri) throws MmsException {
+        Cursor c = SqliteWrapper.query(mContext, mContext.getContentResolver(),
+                uri, PDU_PROJECTION, null, null, null);
+        if (c == null) {
+            throw new MmsException("Can't load " + uri);
+        }
+
+        SendReq sendReq = new SendReq();
+        try {
+            if (!c.moveToFirst()) {
+                throw new MmsException("Bad uri: " + uri);
+            }
+            if (c.getInt(COLUMN_MESSAGE_TYPE) != PduHeaders.MESSAGE_TYPE_SEND_REQ) {
+                throw new MmsException("Not an M-Send.req: " + uri);
+            }
+
+            if (!c.isNull(COLUMN_TRANSACTION_ID)) {
+                sendReq.setTransactionId(getBytes(c, COLUMN_TRANSACTION_ID));
+            }
+            if (!c.isNull(COLUMN_MMS_VERSION)) {
+                sendReq.setMmsVersion(c.getInt(COLUMN_MMS_VERSION));
+            }
+            if (!c.isNull(COLUMN_SUBJECT)) {
+                sendReq.setSubject(new EncodedStringValue(c.getInt(COLUMN_SUBJECT_CHARSET),
+                        getBytes(c, COLUMN_SUBJECT)));
+            }
+            if (!c.isNull(COLUMN_MESSAGE_CLASS)) {
+                sendReq.setMessageClass(getBytes(c, COLUMN_MESSAGE_CLASS));
+            }
+            if (!c.isNull(COLUMN_EXPIRY)) {
+                sendReq.setExpiry(c.getLong(COLUMN_EXPIRY));
+            }
+            if (!c.isNull(COLUMN_DELIVERY_REPORT)) {
+                sendReq.setDeliveryReport(c.getInt(COLUMN_DELIVERY_REPORT));
+            }
+            if (!c.isNull(COLUMN_PRIORITY)) {
+                sendReq.setPriority(c.getInt(COLUMN_PRIORITY));
+            }
+            if (!c.isNull(COLUMN_READ_REPORT)) {
+                sendReq.setReadReport(c.getInt(COLUMN_READ_REPORT));
+            }
+            if (!c.isNull(COLUMN_CONTENT_TYPE)) {
+                sendReq.setContentType(getBytes(c, COLUMN_CONTENT_TYPE));
+            }
+            if (!c.isNull(COLUMN_MESSAGE_SIZE)) {
+                sendReq.setMessageSize(c.getLong(COLUMN_MESSAGE_SIZE));
+            }
+        } finally {
+            c.close();
+        }
+
+        loadAddresses(uri, sendReq);
+        return sendReq;
+    }
+
+    private void loadAddresses(Uri uri, SendReq sendReq) {
+        Uri addrUri = Mms.CONTENT_URI.buildUpon()
+                .appendPath(uri.getLastPathSegment()).appendPath("addr").build();
+        Cursor c = SqliteWrapper.query(mContext, mContext.getContentResolver(),
+                addrUri, new String[] { Addr.ADDRESS, Addr.CHARSET, Addr.TYPE },
+                null, null, null);
+        if (c == null) {
+            return;
+        }
+
+        ArrayList<EncodedStringValue> to = new ArrayList<EncodedStringValue>();
+        ArrayList<EncodedStringValue> cc = new ArrayList<EncodedStringValue>();
+        ArrayList<EncodedStringValue> bcc = new ArrayList<EncodedStringValue>();
+        try {
+            while (c.moveToNext()) {
+                String address = c.getString(0);
+                if (address == null) {
+                    continue;
+                }
+                EncodedStringValue value = new EncodedStringValue(c.getInt(1),
+                        PduPersister.getBytes(address));
+                switch (c.getInt(2)) {
+                    case PduHeaders.TO:
+                        to.add(value);
+                        break;
+                    case PduHeaders.CC:
+                        cc.add(value);
+                        break;
+                    case PduHeaders.BCC:
+                        bcc.add(value);
+                        break;
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        if (!to.isEmpty()) {
+            sendReq.setTo(to.toArray(new EncodedStringValue[to.size()]));
+        }
+        if (!cc.isEmpty()) {
+            sendReq.setCc(cc.toArray(new EncodedStringValue[cc.size()]));
+        }
+        if (!bcc.isEmpty()) {
+            sendReq.setBcc(bcc.toArray(new EncodedStringValue[bcc.size()]));
+        }
+    }
+
+    private void loadParts(Uri uri) throws MmsException {
+        Uri partsUri = Mms.CONTENT_URI.buildUpon()
+                .appendPath(uri.getLastPathSegment()).appendPath("part").build();
+        Cursor c = SqliteWrapper.query(mContext, mContext.getContentResolver(),
+                partsUri, PART_PROJECTION, null, null, null);
+        if (c == null) {
+            throw new MmsException("Can't load the parts of " + uri);
+        }
+
+        try {
+            while (c.moveToNext()) {
+                PduPart part = new PduPart();
+                if (!c.isNull(COLUMN_CHARSET)) {
+                    part.setCharset(c.getInt(COLUMN_CHARSET));
+                }
+                if (!c.isNull(COLUMN_CONTENT_DISPOSITION)) {
+                    part.setContentDisposition(getBytes(c, COLUMN_CONTENT_DISPOSITION));
+                }
+                if (!c.isNull(COLUMN_CONTENT_ID)) {
+                    part.setContentId(getBytes(c, COLUMN_CONTENT_ID));
+                }
+                if (!c.isNull(COLUMN_CONTENT_LOCATION)) {
+                    part.setContentLocation(getBytes(c, COLUMN_CONTENT_LOCATION));
+                }
+                if (!c.isNull(COLUMN_FILENAME)) {
+                    part.setFilename(getBytes(c, COLUMN_FILENAME));
+                }
+                if (!c.isNull(COLUMN_NAME)) {
+                    part.setName(getBytes(c, COLUMN_NAME));
+                }
+
+                String type = c.getString(COLUMN_PART_CONTENT_TYPE);
+                if (type == null) {
+                    throw new MmsException("Content-Type must be set.");
+                }
+                part.setContentType(PduPersister.getBytes(type));
+
+                // PduComposer composes the part without its data, see compose()
+                part.setData(EMPTY);
+
+                Uri dataUri = ContentUris.withAppendedId(PART_URI, c.getLong(COLUMN_PART_ID));
+                if (ContentType.TEXT_PLAIN.equals(type) || ContentType.APP_SMIL.equals(type)
+                        || ContentType.TEXT_HTML.equals(type)) {
+                    // Stored in the database rather than in a file, like PduPersister does
+                    String text = c.getString(COLUMN_TEXT);
+                    byte[] data = new EncodedStringValue(text != null ? text : "")
+                            .getTextString();
+                    mData.add(data);
+                    mDataUris.add(null);
+                    mDataLengths.add(data.length);
+                } else {
+                    mData.add(null);
+                    mDataUris.add(dataUri);
+                    mDataLengths.add(getDataLength(dataUri));
+                }
+                mParts.add(part);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private int getDataLength(Uri uri) throws MmsException {
+        try {
+            ParcelFileDescriptor fd = mContext.getContentResolver().openFileDescriptor(uri, "r");
+            try {
+                long size = fd.getStatSize();
+                if (size >= 0) {
+                    return (int) size;
+                }
+            } finally {
+                fd.close();
+            }
+
+            // Not a file, count the bytes
+            InputStream in = mContext.getContentResolver().openInputStream(uri);
+            try {
+                byte[] buffer = new byte[DEFAULT_PIECE_SIZE];
+                int size = 0;
+                for (int len; (len = in.read(buffer)) != -1; ) {
+                    size += len;
+                }
+                return size;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new MmsException("Can't read part " + uri + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The data of a media part, which is opened with the first read. Exactly the
+     * length the part had when it was loaded is read, since that length was composed
+     * into its head.
+     */
+    private class PartDataInputStream extends InputStream {
+        private final Uri mUri;
+        private int mRemaining;
+        private InputStream mIn;
+
+        PartDataInputStream(Uri uri, int length) {
+            mUri = uri;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mRemaining == 0) {
+                return -1;
+            }
+            if (count == 0) {
+                return 0;
+            }
+            if (mIn == null) {
+                mIn = mContext.getContentResolver().openInputStream(mUri);
+            }
+
+            int len = mIn.read(buffer, offset, Math.min(count, mRemaining));
+            if (len == -1) {
+                throw new EOFException("Part " + mUri + " shrank");
+            }
+            mRemaining -= len;
+            return len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mIn != null) {
+                mIn.close();
+                mIn = null;
+            }
+        }
+    }
+
+    private static byte[] getBytes(Cursor c, int column) {
+        return PduPersister.getBytes(c.getString(column));
+    }
+}
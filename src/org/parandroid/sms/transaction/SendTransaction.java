@@ -22,7 +22,6 @@ import org.parandroid.sms.util.SendingProgressTokenManager;
 import org.parandroid.sms.LogTag;
 import org.parandroid.sms.ui.MessageUtils;
 import com.google.android.mms.MmsException;
-import com.google.android.mms.pdu.PduComposer;
 import com.google.android.mms.pdu.PduHeaders;
 import com.google.android.mms.pdu.PduParser;
 import com.google.android.mms.pdu.PduPersister;
@@ -56,12 +55,11 @@ import java.util.Arrays;
  * <li>Notifies the TransactionService about successful completion.
  * </ul>
  */
-public class SendTransaction extends Transaction implements Runnable {
+public class SendTransaction extends Transaction {
     private static final String TAG = "SendTransaction";
     private static final boolean DEBUG = false;
     private static final boolean LOCAL_LOGV = DEBUG ? Config.LOGD : Config.LOGV;
 
-    private Thread mThread;
     private final Uri mSendReqURI;
 
     public SendTransaction(Context context,
@@ -80,11 +78,6 @@ public class SendTransaction extends Transaction implements Runnable {
      */
     @Override
     public void process() {
-        mThread = new Thread(this);
-        mThread.start();
-    }
-
-    public void run() {
         try {
             RateController rateCtlr = RateController.getInstance();
             if (rateCtlr.isLimitSurpassed() && !rateCtlr.isAllowedByUser()) {
@@ -92,9 +85,12 @@ public class SendTransaction extends Transaction implements Runnable {
                 return;
             }
 
-            // Load M-Send.req from outbox
-            PduPersister persister = PduPersister.getPduPersister(mContext);
-            SendReq sendReq = (SendReq) persister.load(mSendReqURI);
+            // Load M-Send.req from outbox, the data of its media parts is read
+            // while it is sent.
+            long tokenKey = ContentUris.parseId(mSendReqURI);
+            SendReqEntity entity = new SendReqEntity(mContext,
+                    SendingProgressTokenManager.get(tokenKey), mSendReqURI);
+            SendReq sendReq = entity.getSendReq();
 
             // Update the 'date' field of the PDU right before sending it.
             long date = System.currentTimeMillis() / 1000L;
@@ -111,9 +107,8 @@ public class SendTransaction extends Transaction implements Runnable {
             sendReq.setFrom(new EncodedStringValue(lineNumber));
 
             // Pack M-Send.req, send it, retrieve confirmation data, and parse it
-            long tokenKey = ContentUris.parseId(mSendReqURI);
-            byte[] response = sendPdu(SendingProgressTokenManager.get(tokenKey),
-                                      new PduComposer(mContext, sendReq).make());
+            entity.compose();
+            byte[] response = sendPdu(entity);
             SendingProgressTokenManager.remove(tokenKey);
 
             if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
@@ -156,6 +151,7 @@ public class SendTransaction extends Transaction implements Runnable {
                                  mSendReqURI, values, null, null);
 
             // Move M-Send.req from Outbox into Sent.
+            PduPersister persister = PduPersister.getPduPersister(mContext);
             Uri uri = persister.move(mSendReqURI, Sent.CONTENT_URI);
 
             mTransactionState.setState(TransactionState.SUCCESS);
@@ -172,6 +168,11 @@ public class SendTransaction extends Transaction implements Runnable {
         }
     }
 
+    @Override
+    protected Uri getUri() {
+        return mSendReqURI;
+    }
+
     @Override
     public int getType() {
         return SEND_TRANSACTION;
@@ -20,8 +20,6 @@ package org.parandroid.sms.transaction;
 import com.google.android.mms.MmsException;
 import com.google.android.mms.util.SqliteWrapper;
 
-import org.bouncycastle.util.encoders.Base64;
-import org.parandroid.encryption.MessageEncryption;
 import org.parandroid.encryption.MessageEncryptionFactory;
 import org.parandroid.sms.LogTag;
 import org.parandroid.sms.MmsConfig;
@@ -56,6 +54,11 @@ public class SmsMessageSender implements MessageSender {
     private final long mThreadId;
     private long mTimestamp;
     private boolean mTryToEncrypt;
+    // The text is the stored body of an encrypted message, which is sent as it is
+    private final boolean mIsEncryptedBody;
+    // The outbox message and the number of parts sent to each destination
+    private final Uri[] mMessageUris;
+    private final int[] mPartCounts;
 
     private static final String TAG = "ParandroidSmsMessageSender";
     
@@ -71,6 +74,24 @@ public class SmsMessageSender implements MessageSender {
     private static final int COLUMN_SERVICE_CENTER     = 1;
     
     public SmsMessageSender(Context context, String[] dests, String msgText, long threadId, boolean tryToEncrypt) {
+        this(context, dests, msgText, threadId, tryToEncrypt,
+                getOutgoingServiceCenter(context, threadId));
+    }
+
+    /**
+     * @param serviceCenter the service center, as returned by getOutgoingServiceCenter()
+     */
+    SmsMessageSender(Context context, String[] dests, String msgText, long threadId,
+            boolean tryToEncrypt, String serviceCenter) {
+        this(context, dests, msgText, threadId, tryToEncrypt, false, serviceCenter);
+    }
+
+    /**
+     * @param isEncryptedBody whether msgText is the stored body of an encrypted message,
+     *        e.g. of a queued one, which is sent again without being encrypted again
+     */
+    SmsMessageSender(Context context, String[] dests, String msgText, long threadId,
+            boolean tryToEncrypt, boolean isEncryptedBody, String serviceCenter) {
         mContext = context;
         mMessageText = msgText;
         mNumberOfDests = dests.length;
@@ -78,8 +99,27 @@ public class SmsMessageSender implements MessageSender {
         System.arraycopy(dests, 0, mDests, 0, mNumberOfDests);
         mTimestamp = System.currentTimeMillis();
         mThreadId = threadId;
-        mServiceCenter = getOutgoingServiceCenter(mThreadId);
+        mServiceCenter = serviceCenter;
         mTryToEncrypt = tryToEncrypt;
+        mIsEncryptedBody = isEncryptedBody;
+        mMessageUris = new Uri[mNumberOfDests];
+        mPartCounts = new int[mNumberOfDests];
+    }
+
+    /**
+     * Returns the outbox message of a destination, the data of its sent broadcasts,
+     * after sendMessage().
+     */
+    public Uri getMessageUri(int destIndex) {
+        return mMessageUris[destIndex];
+    }
+
+    /**
+     * Returns the number of parts sent to a destination, each of which causes a sent
+     * broadcast, after sendMessage().
+     */
+    public int getPartCount(int destIndex) {
+        return mPartCounts[destIndex];
     }
 
     public boolean sendMessage(long token) throws MmsException {
@@ -93,10 +133,22 @@ public class SmsMessageSender implements MessageSender {
         for (int i = 0; i < mNumberOfDests; i++) {
         	boolean isEncrypted = false;
         	
-        	byte[] encryptedMessage = null;
-        	if(mTryToEncrypt && MessageEncryptionFactory.hasPublicKey(mContext, mDests[i])){
+            ArrayList<PendingIntent> deliveryIntents = new ArrayList<PendingIntent>();
+            ArrayList<PendingIntent> sentIntents = new ArrayList<PendingIntent>();
+
+        	MultipartDataMessage encryptedMessage = null;
+        	if(mIsEncryptedBody){
+        		try {
+        			encryptedMessage = MultipartDataMessage.fromBody(mDests[i], mMessageText,
+        					sentIntents, deliveryIntents);
+        			isEncrypted = true;
+        		} catch (IllegalArgumentException e) {
+        			throw new MmsException("SmsMessageSender.sendMessage: " + e.getMessage());
+        		}
+        	} else if(mTryToEncrypt && MessageEncryptionFactory.hasPublicKey(mContext, mDests[i])){
         		try {
-					encryptedMessage = MessageEncryption.encrypt(mContext, mDests[i], mMessageText);
+					encryptedMessage = MultipartDataMessage.createEncrypted(mContext, mDests[i], mMessageText,
+							sentIntents, deliveryIntents);
 					isEncrypted = true;
 				} catch (Exception e) {
 					Log.e(TAG, "Error while encrypting message");
@@ -114,7 +166,7 @@ public class SmsMessageSender implements MessageSender {
             } else {
                messages = smsManager.divideMessage(mMessageText);
             }
-            int messageCount = messages.size();
+            int messageCount = isEncrypted ? encryptedMessage.getPartCount() : messages.size();
 
             if (messageCount == 0) {
                 // Don't try to send an empty message.
@@ -122,10 +174,6 @@ public class SmsMessageSender implements MessageSender {
                         "empty messages. Original message is \"" + mMessageText + "\"");
             }
 
-            ArrayList<PendingIntent> deliveryIntents =
-                    new ArrayList<PendingIntent>(messageCount);
-            ArrayList<PendingIntent> sentIntents =
-                    new ArrayList<PendingIntent>(messageCount);
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
             boolean requestDeliveryReport = prefs.getBoolean(
                     MessagingPreferenceActivity.SMS_DELIVERY_REPORT_MODE,
@@ -133,8 +181,7 @@ public class SmsMessageSender implements MessageSender {
             Uri uri = null;
             try {
             	if(isEncrypted){
-            		String outboxText = new String(Base64.encode(encryptedMessage));
-            		addToParandroidOutbox(i, outboxText);
+            		uri = addToParandroidOutbox(i, encryptedMessage.getBody());
             		
             	} else {
             		uri = Sms.Outbox.addMessage(mContext.getContentResolver(), mDests[i],
@@ -144,6 +191,15 @@ public class SmsMessageSender implements MessageSender {
                 SqliteWrapper.checkSQLiteException(mContext, e);
             }
 
+            mMessageUris[i] = uri;
+            mPartCounts[i] = messageCount;
+
+            Intent sentIntent = new Intent(SmsReceiverService.MESSAGE_SENT_ACTION,
+                    uri,
+                    mContext,
+                    SmsReceiver.class);
+            sentIntent.putExtra(SmsReceiverService.EXTRA_PARANDROID_MESSAGE, isEncrypted);
+
             for (int j = 0; j < messageCount; j++) {
                 if (requestDeliveryReport) {
                     // TODO: Fix: It should not be necessary to
@@ -158,13 +214,7 @@ public class SmsMessageSender implements MessageSender {
                                     MessageStatusReceiver.class),
                             0));
                 }
-                sentIntents.add(PendingIntent.getBroadcast(
-                        mContext, 0,
-                        new Intent(SmsReceiverService.MESSAGE_SENT_ACTION,
-                                uri,
-                                mContext,
-                                SmsReceiver.class),
-                        0));
+                sentIntents.add(PendingIntent.getBroadcast(mContext, 0, sentIntent, 0));
             }
 
             if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
@@ -184,8 +234,7 @@ public class SmsMessageSender implements MessageSender {
                             " from SmsManager.sendMultipartTextMessage()");
                 }
         	} else {
-        		MultipartDataMessage m = new MultipartDataMessage(MultipartDataMessage.TYPE_MESSAGE, mDests[i], encryptedMessage, sentIntents, deliveryIntents);
-        		m.send();
+        		encryptedMessage.send();
         	}
             
         }
@@ -194,7 +243,6 @@ public class SmsMessageSender implements MessageSender {
     }
     
     private Uri addToParandroidOutbox(int destIndex, String outboxText){
-        outboxText = MultipartDataMessage.MESSAGE_HEADER + outboxText;
     	ContentValues values = new ContentValues(7);
 
         values.put(Telephony.TextBasedSmsColumns.ADDRESS, mDests[destIndex]);
@@ -228,11 +276,11 @@ public class SmsMessageSender implements MessageSender {
      * the other party, and only if <code>TP-Reply-Path</code> is set.
      * Otherwise, return null.
      */
-    private String getOutgoingServiceCenter(long threadId) {
+    static String getOutgoingServiceCenter(Context context, long threadId) {
         Cursor cursor = null;
 
         try {
-            cursor = SqliteWrapper.query(mContext, mContext.getContentResolver(),
+            cursor = SqliteWrapper.query(context, context.getContentResolver(),
                             Sms.CONTENT_URI, SERVICE_CENTER_PROJECTION,
                             "thread_id = " + threadId, null, "date DESC");
 
@@ -25,8 +25,6 @@ import org.parandroid.sms.data.Contact;
 import org.parandroid.sms.ui.ClassZeroActivity;
 import org.parandroid.sms.ui.MessageItem;
 import org.parandroid.sms.util.Recycler;
-import org.parandroid.sms.util.SendingProgressTokenManager;
-import com.google.android.mms.MmsException;
 import com.google.android.mms.util.SqliteWrapper;
 
 import android.app.Activity;
@@ -77,14 +75,9 @@ public class SmsReceiverService extends Service {
     public static final String MESSAGE_SENT_ACTION =
         "org.parandroid.sms.transaction.MESSAGE_SENT";
 
-    // This must match the column IDs below.
-    private static final String[] SEND_PROJECTION = new String[] {
-        Sms._ID,        //0
-        Sms.THREAD_ID,  //1
-        Sms.ADDRESS,    //2
-        Sms.BODY,       //3
-        Sms.TYPE		//4
-    };
+    // Boolean extra of MESSAGE_SENT_ACTION, true if the message is a Parandroid outbox
+    // message. Those hold cipher text and stay in their own box.
+    public static final String EXTRA_PARANDROID_MESSAGE = "parandroid_message";
 
     public Handler mToastHandler = new Handler() {
         @Override
@@ -94,13 +87,6 @@ public class SmsReceiverService extends Service {
         }
     };
 
-    // This must match SEND_PROJECTION.
-    private static final int SEND_COLUMN_ID         = 0;
-    private static final int SEND_COLUMN_THREAD_ID  = 1;
-    private static final int SEND_COLUMN_ADDRESS    = 2;
-    private static final int SEND_COLUMN_BODY       = 3;
-    private static final int SEND_COLUMN_TYPE		= 4;
-
     private int mResultCode;
 
     @Override
@@ -186,75 +172,28 @@ public class SmsReceiverService extends Service {
         // If service just returned, start sending out the queued messages
         ServiceState serviceState = ServiceState.newFromBundle(intent.getExtras());
         if (serviceState.getState() == ServiceState.STATE_IN_SERVICE) {
-            sendFirstQueuedMessage();
+            sendQueuedMessages();
         }
     }
 
-    public synchronized void sendFirstQueuedMessage() {
-        boolean success = true;
-        // get all the queued messages from the database
-        final Uri uri = Uri.parse("content://sms/queued");
-        ContentResolver resolver = getContentResolver();
-        Cursor c = SqliteWrapper.query(this, resolver, uri,
-                        SEND_PROJECTION, null, null, "date ASC");   // date ASC so we send out in
-                                                                    // same order the user tried
-                                                                    // to send messages.
-        if (c != null) {
-            try {
-                if (c.moveToFirst()) {
-                    String msgText = c.getString(SEND_COLUMN_BODY);
-                    String[] address = new String[1];
-                    address[0] = c.getString(SEND_COLUMN_ADDRESS);
-                    int threadId = c.getInt(SEND_COLUMN_THREAD_ID);
-                    boolean tryToEncrypt = c.getInt(SEND_COLUMN_TYPE) == MessageItem.MESSAGE_TYPE_PARANDROID_QUEUED;
-
-                    SmsMessageSender sender = new SmsMessageSender(this, address, msgText, threadId, tryToEncrypt);
-
-                    int msgId = c.getInt(SEND_COLUMN_ID);
-                    Uri msgUri = ContentUris.withAppendedId(Sms.CONTENT_URI, msgId);
-
-                    if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                        Log.v(TAG, "sendFirstQueuedMessage and delete old msgUri " + msgUri +
-                                ", address: " + address +
-                                ", threadId: " + threadId +
-                                ", body: " + msgText);
-                    }
-                    try {
-                        sender.sendMessage(SendingProgressTokenManager.NO_TOKEN);
-                    } catch (MmsException e) {
-                        Log.e(TAG, "sendFirstQueuedMessage: failed to send message " + msgUri
-                                + ", caught ", e);
-                        success = false;
-                    } finally {
-                        // Since sendMessage adds a new message to the outbox rather than
-                        // moving the old one, the old one must be deleted here
-
-                        int result = SqliteWrapper.delete(this, resolver, msgUri, null, null);
-                        if (result != 1) {
-                            Log.e(TAG, "sendFirstQueuedMessage: failed to delete old msgUri " +
-                                    msgUri + ", result=" + result);
-                        }
-                    }
-                }
-            } finally {
-                c.close();
-            }
-        }
-        if (success) {
-            // We successfully sent all the messages in the queue. We don't need to
-            // be notified of any service changes any longer.
+    public synchronized void sendQueuedMessages() {
+        if (QueuedMessageSender.getInstance(this).send()) {
+            // We successfully handed all the queued messages to the radio. We don't need
+            // to be notified of any service changes any longer.
             unRegisterForServiceStateChanges();
         }
     }
 
     private void handleSmsSent(Intent intent) {
         Uri uri = intent.getData();
+        boolean parandroidMessage = intent.getBooleanExtra(EXTRA_PARANDROID_MESSAGE, false);
+        QueuedMessageSender queuedSender = QueuedMessageSender.getInstance(this);
 
         if (mResultCode == Activity.RESULT_OK) {
-            if (!Sms.moveMessageToFolder(this, uri, Sms.MESSAGE_TYPE_SENT, 0)) {
+            if (!parandroidMessage && !Sms.moveMessageToFolder(this, uri, Sms.MESSAGE_TYPE_SENT, 0)) {
                 Log.e(TAG, "handleSmsSent: failed to move message " + uri + " to sent folder");
             }
-            sendFirstQueuedMessage();
+            queuedSender.onPartSent(uri);
 
             // Update the notification for failed messages since they may be deleted.
             MessagingNotification.updateSendFailedNotification(this);
@@ -267,16 +206,23 @@ public class SmsReceiverService extends Service {
             // when the status of the connection/radio changes, we can try to send the
             // queued up messages.
             registerForServiceStateChanges();
+            queuedSender.onServiceLost();
             // We couldn't send the message, put in the queue to retry later.
-            Sms.moveMessageToFolder(this, uri, Sms.MESSAGE_TYPE_QUEUED, 0);
+            if (!parandroidMessage) {
+                Sms.moveMessageToFolder(this, uri, Sms.MESSAGE_TYPE_QUEUED, 0);
+            } else {
+                moveParandroidMessageToQueuedBox(uri);
+            }
             mToastHandler.sendEmptyMessage(1);
         } else {
             if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                 Log.v(TAG, "handleSmsSent msg failed uri: " + uri);
             }
-            Sms.moveMessageToFolder(this, uri, Sms.MESSAGE_TYPE_FAILED, 0);
+            if (!parandroidMessage) {
+                Sms.moveMessageToFolder(this, uri, Sms.MESSAGE_TYPE_FAILED, 0);
+            }
             MessagingNotification.notifySendFailed(getApplicationContext(), true);
-            sendFirstQueuedMessage();
+            queuedSender.onPartSent(uri);
         }
     }
 
@@ -292,13 +238,13 @@ public class SmsReceiverService extends Service {
         }
 
         //if (messageUri != null) {
-            MessagingNotification.updateNewMessageIndicator(this, true);
+            MessagingNotification.notifySmsReceived(this, msgs);
         //}
     }
 
     private void handleBootCompleted() {
         moveOutboxMessagesToQueuedBox();
-        sendFirstQueuedMessage();
+        sendQueuedMessages();
         MessagingNotification.updateNewMessageIndicator(this);
     }
 
@@ -312,6 +258,23 @@ public class SmsReceiverService extends Service {
                 values, "type = " + Sms.MESSAGE_TYPE_OUTBOX, null);
     }
 
+    /**
+     * Sms.moveMessageToFolder only knows the standard boxes, so an encrypted message is
+     * moved to the Parandroid queued box here. QueuedMessageSender sends its body again.
+     */
+    private void moveParandroidMessageToQueuedBox(Uri uri) {
+        if (uri == null) {
+            return;
+        }
+        ContentValues values = new ContentValues(1);
+
+        values.put(Sms.TYPE, MessageItem.MESSAGE_TYPE_PARANDROID_QUEUED);
+
+        SqliteWrapper.update(
+                getApplicationContext(), getContentResolver(), uri,
+                values, "type = " + MessageItem.MESSAGE_TYPE_PARANDROID_OUTBOX, null);
+    }
+
     public static final String CLASS_ZERO_BODY_KEY = "CLASS_ZERO_BODY";
 
     // This must match the column IDs below.
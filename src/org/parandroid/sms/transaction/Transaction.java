@@ -18,6 +18,9 @@
 package org.parandroid.sms.transaction;
 
 import org.parandroid.sms.util.SendingProgressTokenManager;
+import com.google.android.mms.pdu.GenericPdu;
+
+import org.apache.http.HttpEntity;
 
 import android.content.Context;
 import android.net.Uri;
@@ -39,6 +42,7 @@ public abstract class Transaction extends Observable {
     protected String mId;
     protected TransactionState mTransactionState;
     protected TransactionSettings mTransactionSettings;
+    private int mPriority = TransactionExecutor.PRIORITY_BACKGROUND;
 
     /**
      * Identifies push requests.
@@ -77,10 +81,28 @@ public abstract class Transaction extends Observable {
 
     /**
      * An instance of Transaction encapsulates the actions required
-     * during a MMS Client transaction.
+     * during a MMS Client transaction. This blocks until the transaction
+     * is done; the TransactionService calls it on a thread of its
+     * TransactionExecutor.
      */
     public abstract void process();
 
+    /**
+     * Fails a transaction that was never processed, e.g. because MMS
+     * connectivity ended before it got its turn. The RetryScheduler
+     * schedules it again like any other failed transaction.
+     */
+    public void cancel() {
+        mTransactionState.setState(TransactionState.FAILED);
+        mTransactionState.setContentUri(getUri());
+        notifyObservers();
+    }
+
+    /**
+     * Returns the Uri of the message this transaction is about.
+     */
+    protected abstract Uri getUri();
+
     /**
      * Used to determine whether a transaction is equivalent to this instance.
      *
@@ -100,6 +122,18 @@ public abstract class Transaction extends Observable {
         return mServiceId;
     }
 
+    /**
+     * Get the priority of this transaction in the TransactionExecutor.
+     * @return one of the TransactionExecutor.PRIORITY_ constants
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
     public TransactionSettings getConnectionSettings() {
         return mTransactionSettings;
     }
@@ -166,28 +200,41 @@ public abstract class Transaction extends Observable {
                 mContext, token,
                 mmscUrl,
                 pdu, HttpUtils.HTTP_POST_METHOD,
-                mTransactionSettings.isProxySet(),
-                mTransactionSettings.getProxyAddress(),
-                mTransactionSettings.getProxyPort());
+                mTransactionSettings);
+    }
+
+    /**
+     * A common method to send an entity to MMSC, e.g. a PDU that is composed
+     * while it is sent.
+     *
+     * @param entity The entity to post.
+     * @return A byte array which contains the response data.
+     *         If an HTTP error code is returned, an IOException will be thrown.
+     * @throws IOException if any error occurred on network interface or
+     *         an HTTP error code(>=400) returned from the server.
+     */
+    protected byte[] sendPdu(HttpEntity entity) throws IOException {
+        String mmscUrl = mTransactionSettings.getMmscUrl();
+        ensureRouteToHost(mmscUrl, mTransactionSettings);
+        return HttpUtils.httpPost(mContext, mmscUrl, entity, mTransactionSettings);
     }
 
     /**
      * A common method to retrieve a PDU from MMSC.
+     * The bytes received are kept until the PDU is complete, so a retry after
+     * a failed attempt only has to download the rest.
      *
      * @param url The URL of the message which we are going to retrieve.
-     * @return A byte array which contains the data of the PDU.
+     * @param reader The reader the response is streamed to.
+     * @return The PDU read by the reader, null if it is not valid.
      *         If the status code is not correct, an IOException will be thrown.
      * @throws IOException if any error occurred on network interface or
      *         an HTTP error code(>=400) returned from the server.
      */
-    protected byte[] getPdu(String url) throws IOException {
+    protected GenericPdu getPdu(String url, PduStreamReader reader) throws IOException {
         ensureRouteToHost(url, mTransactionSettings);
-        return HttpUtils.httpConnection(
-                mContext, SendingProgressTokenManager.NO_TOKEN,
-                url, null, HttpUtils.HTTP_GET_METHOD,
-                mTransactionSettings.isProxySet(),
-                mTransactionSettings.getProxyAddress(),
-                mTransactionSettings.getProxyPort());
+        return HttpUtils.httpGet(mContext, url, mTransactionSettings, reader,
+                new PartialDownload(mContext, url));
     }
 
     /**
@@ -0,0 +1,227 @@
+package org.parandroid.sms.transaction;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.parandroid.sms.LogTag;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Runs the transactions of the TransactionService on a bounded number of threads.
+ *
+ * Transactions wait in a queue ordered by priority: sends first, then downloads the
+ * user asked for, then everything that happens in the background. At most
+ * MAX_RUNNING transactions run at a time, and at most the limit of its type in
+ * TYPE_LIMITS, so a burst of notifications can't hold all threads, the APN and the
+ * provider at once. Transactions that are still queued when MMS connectivity ends
+ * are cancelled, see {@link #cancelQueued}.
+ */
+public class TransactionExecutor {
+    private static final String TAG = "TransactionExecutor";
+
+    public static final int PRIORITY_SEND       = 0;
+    public static final int PRIORITY_USER       = 1;
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    // Also the number of connections HttpUtils keeps per route
+    static final int MAX_RUNNING = 3;
+
+    // Indexed by Transaction.getType()
+    private static final int[] TYPE_LIMITS = {
+        2,  // NOTIFICATION_TRANSACTION
+        2,  // RETRIEVE_TRANSACTION
+        2,  // SEND_TRANSACTION
+        1,  // READREC_TRANSACTION
+    };
+
+    private static final String[] TYPE_NAMES = {
+        "notification", "retrieve", "send", "readrec"
+    };
+
+    private final ExecutorService mThreads;
+
+    // Guarded by this
+    private final ArrayList<Task> mQueue = new ArrayList<Task>();
+    private final Stats[] mStats = new Stats[TYPE_LIMITS.length];
+    private int mRunning;
+    private long mSequence;
+
+    private static class Task {
+        final Transaction transaction;
+        final int type;
+        final int priority;
+        final long sequence;
+        final long queuedAt;
+
+        Task(Transaction transaction, int priority, long sequence) {
+            this.transaction = transaction;
+            this.type = transaction.getType();
+            this.priority = priority;
+            this.sequence = sequence;
+            this.queuedAt = SystemClock.elapsedRealtime();
+        }
+
+        boolean isBefore(Task other) {
+            return priority < other.priority ||
+                    (priority == other.priority && sequence < other.sequence);
+        }
+    }
+
+    /**
+     * Queue and run statistics of one transaction type.
+     */
+    public static class Stats {
+        public int queued;
+        public int running;
+        public int maxQueued;
+        public int completed;
+        public int cancelled;
+        public long totalWaitMillis;
+
+        @Override
+        public String toString() {
+            return "queued=" + queued + " running=" + running + " maxQueued=" + maxQueued +
+                    " completed=" + completed + " cancelled=" + cancelled +
+                    " avgWait=" + (completed > 0 ? totalWaitMillis / completed : 0) + "ms";
+        }
+    }
+
+    public TransactionExecutor() {
+        for (int i = 0; i < mStats.length; i++) {
+            mStats[i] = new Stats();
+        }
+
+        // Every transaction that is dispatched gets a thread right away; the
+        // limits are enforced by dispatch().
+        mThreads = Executors.newFixedThreadPool(MAX_RUNNING, new ThreadFactory() {
+            private int mCount;
+
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "Transaction #" + (++mCount));
+            }
+        });
+    }
+
+    /**
+     * Queues a transaction, which is processed once its turn comes.
+     */
+    public synchronized void execute(Transaction transaction) {
+        int priority = transaction.getPriority();
+        Task task = new Task(transaction, priority, mSequence++);
+
+        int i = mQueue.size();
+        while (i > 0 && task.isBefore(mQueue.get(i - 1))) {
+            i--;
+        }
+        mQueue.add(i, task);
+
+        Stats stats = mStats[task.type];
+        stats.queued++;
+        stats.maxQueued = Math.max(stats.maxQueued, stats.queued);
+
+        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+            Log.v(TAG, "execute: " + transaction + " priority=" + priority +
+                    ", " + TYPE_NAMES[task.type] + ": " + stats);
+        }
+        dispatch();
+    }
+
+    /**
+     * Removes the transactions that didn't start yet from the queue and fails them,
+     * so the RetryScheduler picks them up again later.
+     *
+     * @return the number of transactions that were cancelled
+     */
+    public int cancelQueued() {
+        ArrayList<Task> cancelled;
+        synchronized (this) {
+            cancelled = new ArrayList<Task>(mQueue);
+            mQueue.clear();
+            for (Task task : cancelled) {
+                mStats[task.type].queued--;
+                mStats[task.type].cancelled++;
+            }
+        }
+
+        // Observers are notified without holding the lock, since they may queue
+        // transactions themselves.
+        for (Task task : cancelled) {
+            if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                Log.v(TAG, "cancelQueued: " + task.transaction);
+            }
+            task.transaction.cancel();
+        }
+        return cancelled.size();
+    }
+
+    /**
+     * Returns a copy of the statistics of a transaction type.
+     */
+    public synchronized Stats getStats(int type) {
+        Stats copy = new Stats();
+        Stats stats = mStats[type];
+        copy.queued = stats.queued;
+        copy.running = stats.running;
+        copy.maxQueued = stats.maxQueued;
+        copy.completed = stats.completed;
+        copy.cancelled = stats.cancelled;
+        copy.totalWaitMillis = stats.totalWaitMillis;
+        return copy;
+    }
+
+    public void shutdown() {
+        cancelQueued();
+        mThreads.shutdown();
+    }
+
+    // Called with the lock held
+    private void dispatch() {
+        for (int i = 0; i < mQueue.size() && mRunning < MAX_RUNNING; ) {
+            final Task task = mQueue.get(i);
+            final Stats stats = mStats[task.type];
+            if (stats.running >= TYPE_LIMITS[task.type]) {
+                i++;
+                continue;
+            }
+
+            mQueue.remove(i);
+            stats.queued--;
+            stats.running++;
+            stats.totalWaitMillis += SystemClock.elapsedRealtime() - task.queuedAt;
+            mRunning++;
+
+            mThreads.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.transaction.process();
+                    } finally {
+                        finished(task);
+                    }
+                }
+            });
+        }
+    }
+
+    private synchronized void finished(Task task) {
+        Stats stats = mStats[task.type];
+        stats.running--;
+        stats.completed++;
+        mRunning--;
+
+        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+            Log.v(TAG, "finished: " + task.transaction + ", " + TYPE_NAMES[task.type] +
+                    ": " + stats);
+        }
+        dispatch();
+    }
+}
@@ -131,6 +131,7 @@ public class TransactionService extends Service implements Observer {
     private ConnectivityManager mConnMgr;
     private NetworkConnectivityListener mConnectivityListener;
     private PowerManager.WakeLock mWakeLock;
+    private TransactionExecutor mExecutor;
 
     public Handler mToastHandler = new Handler() {
         @Override
@@ -164,6 +165,7 @@ public class TransactionService extends Service implements Observer {
 
         mServiceLooper = thread.getLooper();
         mServiceHandler = new ServiceHandler(mServiceLooper);
+        mExecutor = new TransactionExecutor();
 
         mConnectivityListener = new NetworkConnectivityListener();
         mConnectivityListener.registerHandler(mServiceHandler, EVENT_DATA_STATE_CHANGED);
@@ -245,7 +247,7 @@ public class TransactionService extends Service implements Observer {
                                 TransactionBundle args = new TransactionBundle(
                                         transactionType, uri.toString());
                                 // FIXME: We use the same startId for all MMs.
-                                launchTransaction(startId, args, false);
+                                launchTransaction(startId, args, false, true);
                                 break;
                         }
                     }
@@ -265,7 +267,7 @@ public class TransactionService extends Service implements Observer {
             }
             // For launching NotificationTransaction and test purpose.
             TransactionBundle args = new TransactionBundle(intent.getExtras());
-            launchTransaction(startId, args, noNetwork);
+            launchTransaction(startId, args, noNetwork, false);
         }
         return Service.START_NOT_STICKY;
     }
@@ -310,7 +312,12 @@ public class TransactionService extends Service implements Observer {
         }
     }
 
-    private void launchTransaction(int serviceId, TransactionBundle txnBundle, boolean noNetwork) {
+    /**
+     * @param background true if the transaction is a retry found in the pending
+     *        messages, false if it was requested through an intent.
+     */
+    private void launchTransaction(int serviceId, TransactionBundle txnBundle, boolean noNetwork,
+            boolean background) {
         if (noNetwork) {
             Log.w(TAG, "launchTransaction: no network error!");
             onNetworkUnavailable(serviceId, txnBundle.getTransactionType());
@@ -318,6 +325,7 @@ public class TransactionService extends Service implements Observer {
         }
         Message msg = mServiceHandler.obtainMessage(EVENT_TRANSACTION_REQUEST);
         msg.arg1 = serviceId;
+        msg.arg2 = background ? 1 : 0;
         msg.obj = txnBundle;
 
         if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
@@ -326,6 +334,20 @@ public class TransactionService extends Service implements Observer {
         mServiceHandler.sendMessage(msg);
     }
 
+    private static int getPriority(int transactionType, boolean background) {
+        switch (transactionType) {
+            case Transaction.SEND_TRANSACTION:
+                return TransactionExecutor.PRIORITY_SEND;
+            case Transaction.RETRIEVE_TRANSACTION:
+                // Retrieves that aren't retries were requested by the user.
+                return background ? TransactionExecutor.PRIORITY_BACKGROUND
+                        : TransactionExecutor.PRIORITY_USER;
+            default:
+                // Notifications (with automatic download) and read reports
+                return TransactionExecutor.PRIORITY_BACKGROUND;
+        }
+    }
+
     private void onNetworkUnavailable(int serviceId, int transactionType) {
         if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
             Log.v(TAG, "onNetworkUnavailable: sid=" + serviceId + ", type=" + transactionType);
@@ -353,6 +375,7 @@ public class TransactionService extends Service implements Observer {
         }
 
         releaseWakeLock();
+        mExecutor.shutdown();
 
         mConnectivityListener.unregisterHandler(mServiceHandler);
         mConnectivityListener.stopListening();
@@ -389,7 +412,8 @@ public class TransactionService extends Service implements Observer {
                             transaction.getConnectionSettings());
                     mServiceHandler.sendMessage(msg);
                 }
-                else {
+                else if (mProcessing.isEmpty()) {
+                    // Transactions that are queued in mExecutor still need connectivity
                     if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                         Log.v(TAG, "update: endMmsConnectivity");
                     }
@@ -496,6 +520,16 @@ public class TransactionService extends Service implements Observer {
                 Log.v(TAG, "endMmsConnectivity");
             }
 
+            // Transactions that didn't start yet can't without connectivity, they
+            // fail and are retried later.
+            int cancelled = mExecutor.cancelQueued();
+            if (cancelled > 0) {
+                Log.w(TAG, "endMmsConnectivity: cancelled " + cancelled + " queued transactions");
+            }
+
+            // The connections kept alive for the batch go away with the APN
+            HttpUtils.closeConnections();
+
             // cancel timer for renewal of lease
             mServiceHandler.removeMessages(EVENT_CONTINUE_MMS_CONNECTIVITY);
             if (mConnMgr != null) {
@@ -679,6 +713,7 @@ public class TransactionService extends Service implements Observer {
                                 transaction = null;
                                 return;
                         }
+                        transaction.setPriority(getPriority(transactionType, msg.arg2 != 0));
 
                         if (!processTransaction(transaction)) {
                             transaction = null;
@@ -712,7 +747,13 @@ public class TransactionService extends Service implements Observer {
                             if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                                 Log.v(TAG, "Transaction was null. Stopping self: " + serviceId);
                             }
-                            endMmsConnectivity();
+                            boolean idle;
+                            synchronized (mProcessing) {
+                                idle = mProcessing.isEmpty() && mPending.isEmpty();
+                            }
+                            if (idle) {
+                                endMmsConnectivity();
+                            }
                             stopSelf(serviceId);
                         }
                     }
@@ -840,9 +881,9 @@ public class TransactionService extends Service implements Observer {
                 Log.v(TAG, "processTransaction: starting transaction " + transaction);
             }
 
-            // Attach to transaction and process it
+            // Attach to transaction and queue it for processing
             transaction.attach(TransactionService.this);
-            transaction.process();
+            mExecutor.execute(transaction);
             return true;
         }
     }
@@ -20,6 +20,8 @@ package org.parandroid.sms.transaction;
 import com.android.internal.telephony.Phone;
 import com.google.android.mms.util.SqliteWrapper;
 
+import org.apache.http.Header;
+
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
@@ -42,6 +44,7 @@ public class TransactionSettings {
     private String mServiceCenter;
     private String mProxyAddress;
     private int mProxyPort = -1;
+    private Header[] mHttpHeaders;
 
     private static final String[] APN_PROJECTION = {
             Telephony.Carriers.TYPE,            // 0
@@ -134,6 +137,17 @@ public class TransactionSettings {
         return (mProxyAddress != null) && (mProxyAddress.trim().length() != 0);
     }
 
+    /**
+     * Returns the headers sent with every request of the transaction. They are
+     * built on first use.
+     */
+    public synchronized Header[] getHttpHeaders(Context context) {
+        if (mHttpHeaders == null) {
+            mHttpHeaders = HttpUtils.createHeaders(context);
+        }
+        return mHttpHeaders;
+    }
+
     static private boolean isValidApnType(String types, String requestType) {
         // If APN type is unspecified, assume APN_TYPE_ALL.
         if (TextUtils.isEmpty(types)) {
@@ -44,7 +44,8 @@ public class AuthenticateActivity extends Activity implements OnClickListener {
 			try{
 				MessageEncryptionFactory.setPassword(password);
 				
-				// If this fails, the password is wrong.
+				// If this fails, the password is wrong. Otherwise the key
+				// stays unlocked until the password is forgotten.
 				MessageEncryptionFactory.getPrivateKey(this);
 				
 				MessageEncryptionFactory.setAuthenticating(false);
@@ -31,7 +31,6 @@ import com.android.internal.telephony.TelephonyIntents;
 import com.android.internal.telephony.TelephonyProperties;
 import com.android.internal.widget.ContactHeaderWidget;
 
-import org.parandroid.encryption.MessageEncryption;
 import org.parandroid.encryption.MessageEncryptionFactory;
 import org.parandroid.sms.LogTag;
 import org.parandroid.sms.MmsConfig;
@@ -1920,6 +1919,7 @@ public class ComposeMessageActivity extends Activity
         if (mMsgListAdapter != null) {
             mMsgListAdapter.changeCursor(null);
         }
+        MessageDecryptor.getInstance().cancelAll();
 
         if (Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
             log("onStop: save draft");
@@ -2952,8 +2952,7 @@ public class ComposeMessageActivity extends Activity
 	    	}
 	    	
 	    	try {
-	    	    byte[] encryptedMessage = MessageEncryption.encrypt(this, sendEncryptedDest, mWorkingMessage.getText().toString());
-    	        MultipartDataMessage m = new MultipartDataMessage(MultipartDataMessage.TYPE_MESSAGE, null, encryptedMessage, null, null);
+    	        MultipartDataMessage m = MultipartDataMessage.createEncrypted(this, sendEncryptedDest, mWorkingMessage.getText().toString(), null, null);
 	    	    int numEncryptedMessages = m.getPartCount();
     	        
     	        
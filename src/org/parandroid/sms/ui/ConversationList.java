@@ -25,9 +25,11 @@ import org.parandroid.sms.R;
 import org.parandroid.sms.data.Contact;
 import org.parandroid.sms.data.ContactList;
 import org.parandroid.sms.data.Conversation;
+import org.parandroid.sms.data.ConversationSnapshot;
 import org.parandroid.sms.transaction.MessagingNotification;
 import org.parandroid.sms.transaction.SmsRejectedReceiver;
 import org.parandroid.sms.util.DraftCache;
+import org.parandroid.sms.util.MessageReencryptor;
 import org.parandroid.sms.util.Recycler;
 import com.google.android.mms.pdu.PduHeaders;
 import com.google.android.mms.util.SqliteWrapper;
@@ -52,7 +54,6 @@ import android.preference.PreferenceManager;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
 import android.provider.Telephony.Mms;
-import android.provider.Telephony.Sms.Inbox;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.KeyEvent;
@@ -70,8 +71,6 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import org.bouncycastle.util.encoders.Base64;
-import org.parandroid.encryption.MessageEncryption;
 import org.parandroid.encryption.MessageEncryptionFactory;
 
 /**
@@ -294,6 +293,7 @@ public class ConversationList extends ListActivity
 
     protected void privateOnStart() {
         startAsyncQuery();
+        resumeEncryptBackward();
     }
 
 
@@ -302,6 +302,7 @@ public class ConversationList extends ListActivity
         super.onStop();
 
         DraftCache.getInstance().removeOnDraftChangedListener(this);
+        ConversationSnapshot.save(this, mListAdapter.getCursor());
         mListAdapter.changeCursor(null);
     }
 
@@ -318,6 +319,14 @@ public class ConversationList extends ListActivity
     }
 
     private void startAsyncQuery() {
+        if (mListAdapter.getCursor() == null) {
+            // Show the conversations we had last time until the query completes
+            Cursor snapshot = ConversationSnapshot.load(this);
+            if (snapshot != null) {
+                mListAdapter.changeCursor(snapshot);
+            }
+        }
+
         try {
             setTitle(getString(R.string.refreshing));
             setProgressBarIndeterminateVisibility(true);
@@ -458,8 +467,11 @@ public class ConversationList extends ListActivity
     	
     	try {
 			PrivateKey pk = MessageEncryptionFactory.getPrivateKey(this);
+			PrivateKey previousPk = MessageEncryptionFactory.getPreviousPrivateKey(this);
 			MessageEncryptionFactory.setPassword(newPassword);
 			MessageEncryptionFactory.writePrivateKey(this, pk);
+			if(previousPk != null)
+				MessageEncryptionFactory.writePreviousPrivateKey(this, previousPk);
 			oldPassword = null;
 			Toast.makeText(this, R.string.successfully_changed_password, Toast.LENGTH_LONG).show();
     	}catch(Exception e){
@@ -514,6 +526,16 @@ public class ConversationList extends ListActivity
 	
     private void generateNewKeypair() {
 		if(MessageEncryptionFactory.isAuthenticating()) return;
+		
+		if(MessageReencryptor.isPending(this) || MessageReencryptor.isRunning()){
+			// The messages of the previous keypair must be re-encrypted first, the old key
+			// of the pending job would be overwritten otherwise
+			oldPrivateKey = null;
+			hasSetNewPassword = false;
+			Toast.makeText(this, R.string.reencryption_pending, Toast.LENGTH_LONG).show();
+			resumeEncryptBackward();
+			return;
+		}
         
     	if(!MessageEncryptionFactory.isAuthenticated()){
     		MessageEncryptionFactory.setAuthenticating(true);
@@ -540,7 +562,16 @@ public class ConversationList extends ListActivity
         	return;
     	}else hasSetNewPassword = false;
     	
-    	doGenerateKeypair();
+    	if(!doGenerateKeypair()){
+    		oldPrivateKey = null;
+    		return;
+    	}
+    	
+    	if(oldPrivateKey == null){
+    		Log.e(TAG, "Previous private key is not available, can't re-encrypt the messages");
+    		return;
+    	}
+    	
 		try {
 			encryptBackward();
 		} catch (Exception e) {
@@ -564,13 +595,17 @@ public class ConversationList extends ListActivity
 	}
 	
 	
-	private void doGenerateKeypair(){
+	/**
+	 * @return whether the keypair was generated
+	 */
+	private boolean doGenerateKeypair(){
 		ProgressDialog generateKeypairProgressDialog = ProgressDialog.show(ConversationList.this, "", getString(R.string.generating_keypair), true);
 		Toast generateKeypairErrorToast = Toast.makeText(ConversationList.this, R.string.generated_keypair_failure, Toast.LENGTH_SHORT);
 		
 		try{
 			MessageEncryptionFactory.generateKeyPair(ConversationList.this);
 			generateKeypairProgressDialog.dismiss();
+			return true;
 		} catch (Exception e) {
 			String message = "Error generating keypair: " + e.getMessage();
 			Log.e(TAG, message);
@@ -578,63 +613,53 @@ public class ConversationList extends ListActivity
 			
 			generateKeypairProgressDialog.dismiss();
 			generateKeypairErrorToast.show();             	 
+			return false;
 		}
 	}
 	
-//	public Cursor backwardCursor;
-//	public ProgressDialog progressDialog;
-	private String[] BACKWARD_PROJECTION = new String[] { Inbox._ID, Inbox.ADDRESS, Inbox.BODY };
-	private void encryptBackward() throws Exception{		
-		Uri uriSms = Uri.parse("content://sms");
-		String selection = Inbox.TYPE + "='" + MessageItem.MESSAGE_TYPE_PARANDROID_INBOX + 
-			"' OR " + Inbox.TYPE + "='" + MessageItem.MESSAGE_TYPE_PARANDROID_OUTBOX + "'";
+	private void encryptBackward() throws Exception{
+		MessageReencryptor.schedule(this, oldPrivateKey);
+		oldPrivateKey = null;
 		
-		final Cursor backwardCursor = getContentResolver().query(uriSms, BACKWARD_PROJECTION, selection, null, null);
-		if(!backwardCursor.moveToFirst()){
-			Log.i(TAG, "backward: No messages");
+		resumeEncryptBackward();
+	}
+	
+	/**
+	 * Run a scheduled or interrupted re-encryption of the messages, if the user is authenticated
+	 */
+	private void resumeEncryptBackward(){
+		if(!MessageReencryptor.isPending(this) || MessageReencryptor.isRunning() || !MessageEncryptionFactory.isAuthenticated())
 			return;
-		}
-		
-		int numMessages = backwardCursor.getCount();
-		Log.i(TAG, "Re-encrypting " + numMessages + " messages");
 		
 		final ProgressDialog progressDialog = new ProgressDialog(ConversationList.this);
 		progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
 		progressDialog.setMessage(getString(R.string.reencrypting_messages));
 		progressDialog.setCancelable(false);
-		progressDialog.setMax(numMessages);
 		progressDialog.show();
 		
+		final MessageReencryptor reencryptor = new MessageReencryptor(this);
 		new Thread(new Runnable() {
 			public void run(){
-				do{
-					try{
-						String address = backwardCursor.getString(backwardCursor.getColumnIndex(Inbox.ADDRESS));
-		
-						Log.i(TAG, "backward: oldpriv: " + oldPrivateKey);
-						Log.i(TAG, "backward: address: " + address);
-						
-						String body = backwardCursor.getString(backwardCursor.getColumnIndex(Inbox.BODY));
-						Log.i(TAG, "backward: oldbody: " + body);
-						
-						String clearBody = MessageEncryption.decrypt(ConversationList.this, oldPrivateKey, address, Base64.decode(body));
-						Log.i(TAG, "backward: clear: " + clearBody);
-						
-						String newBody = new String(Base64.encode(MessageEncryption.encrypt(ConversationList.this, address, clearBody)));
-						Log.i(TAG, "backward: newbody: " + newBody);
-						
-						backwardCursor.updateString(backwardCursor.getColumnIndex(Inbox.BODY), newBody);
-					}catch(Exception e){
-						e.printStackTrace();
+				reencryptor.run(new MessageReencryptor.ProgressListener() {
+					public void onProgress(final int done, final int total) {
+						mHandler.post(new Runnable() {
+							public void run() {
+								progressDialog.setMax(total);
+								progressDialog.setProgress(done);
+							}
+						});
 					}
-					progressDialog.incrementProgressBy(1);
-				}while(backwardCursor.moveToNext());
-
-				progressDialog.dismiss();
+					
+					public void onFinished(int reencrypted, int failed, long elapsedMillis) {
+						Log.i(TAG, "backward: re-encrypted " + reencrypted + " messages in " + elapsedMillis + "ms");
+					}
+				});
 				
-				backwardCursor.commitUpdates();
-				backwardCursor.close();
-				oldPrivateKey = null;
+				mHandler.post(new Runnable() {
+					public void run() {
+						progressDialog.dismiss();
+					}
+				});
 			}
 		}).start();
 	}
@@ -924,6 +949,9 @@ public class ConversationList extends ListActivity
         protected void onDeleteComplete(int token, Object cookie, int result) {
             switch (token) {
             case DELETE_CONVERSATION_TOKEN:
+                // Don't show the deleted threads at the next start.
+                ConversationSnapshot.delete(ConversationList.this);
+
                 // Make sure the conversation cache reflects the threads in the DB.
                 Conversation.init(ConversationList.this);
 
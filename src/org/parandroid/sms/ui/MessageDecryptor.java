@@ -0,0 +1,127 @@
+package org.parandroid.sms.ui;
+
+import java.util.HashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Decrypts the bodies of encrypted messages off the UI thread.
+ *
+ * Message list rows are bound with a placeholder and a job is queued for the
+ * message. Jobs run on a small pool of worker threads, the most recently queued
+ * job first, because that is the row that was just scrolled into view. Jobs of
+ * rows that are rebound to another message before their turn are cancelled.
+ *
+ * All methods must be called from the UI thread; listeners are called there too.
+ */
+public class MessageDecryptor {
+    private static final int POOL_SIZE = 2;
+
+    private static MessageDecryptor sInstance;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mHandler;
+    private final HashMap<MessageItem, DecryptJob> mJobs;
+    private long mSequence;
+
+    public interface OnDecryptedListener {
+        void onDecrypted(MessageItem msgItem);
+    }
+
+    private MessageDecryptor() {
+        mExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        mHandler = new Handler(Looper.getMainLooper());
+        mJobs = new HashMap<MessageItem, DecryptJob>();
+    }
+
+    public static MessageDecryptor getInstance() {
+        if (sInstance == null) {
+            sInstance = new MessageDecryptor();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Queue the decryption of a message, unless it is already queued.
+     * The listener of an already queued message is replaced.
+     */
+    public void decrypt(MessageItem msgItem, OnDecryptedListener listener) {
+        DecryptJob job = mJobs.get(msgItem);
+        if (job != null) {
+            job.mListener = listener;
+            return;
+        }
+
+        job = new DecryptJob(msgItem, listener, ++mSequence);
+        mJobs.put(msgItem, job);
+        mExecutor.execute(job);
+    }
+
+    /**
+     * Cancel the decryption of a message, e.g. because its row scrolled out of view.
+     */
+    public void cancel(MessageItem msgItem) {
+        DecryptJob job = mJobs.remove(msgItem);
+        if (job != null) {
+            job.mCancelled = true;
+            mExecutor.remove(job);
+        }
+    }
+
+    /**
+     * Cancel all queued jobs, e.g. when the message list is closed.
+     */
+    public void cancelAll() {
+        for (DecryptJob job : mJobs.values()) {
+            job.mCancelled = true;
+            mExecutor.remove(job);
+        }
+        mJobs.clear();
+    }
+
+    private class DecryptJob implements Runnable, Comparable<DecryptJob> {
+        final MessageItem mMsgItem;
+        final long mSequence;
+        volatile OnDecryptedListener mListener;
+        volatile boolean mCancelled;
+
+        DecryptJob(MessageItem msgItem, OnDecryptedListener listener, long sequence) {
+            mMsgItem = msgItem;
+            mListener = listener;
+            mSequence = sequence;
+        }
+
+        public int compareTo(DecryptJob another) {
+            // Newest job first
+            return mSequence > another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+
+            final String body = mMsgItem.decryptBody();
+
+            mHandler.post(new Runnable() {
+                public void run() {
+                    if (mJobs.get(mMsgItem) != DecryptJob.this) {
+                        return;
+                    }
+                    mJobs.remove(mMsgItem);
+
+                    mMsgItem.setDecryptedBody(body);
+                    OnDecryptedListener listener = mListener;
+                    if (listener != null && !mCancelled) {
+                        listener.onDecrypted(mMsgItem);
+                    }
+                }
+            });
+        }
+    }
+}
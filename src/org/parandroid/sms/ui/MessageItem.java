@@ -20,9 +20,11 @@ package org.parandroid.sms.ui;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 
-import org.bouncycastle.util.encoders.Base64;
+import javax.crypto.spec.SecretKeySpec;
+
 import org.parandroid.encryption.MessageEncryption;
 import org.parandroid.encryption.MessageEncryptionFactory;
+import org.parandroid.encryption.PlaintextCache;
 import org.parandroid.sms.R;
 import org.parandroid.sms.data.Contact;
 import org.parandroid.sms.model.SlideModel;
@@ -75,7 +77,8 @@ public class MessageItem {
     boolean mLocked;            // locked to prevent auto-deletion
     boolean publickey = false;
     boolean encrypted = false;
-    String rawBody;
+    String rawBody; // Body of an encrypted SMS as stored, while it is not decrypted.
+    boolean mDecryptionPending = false;
 
     String mTimestamp;
     String mAddress;
@@ -141,13 +144,13 @@ public class MessageItem {
             if(isEncrypted()){
                 encrypted = true;
 	            if(MessageEncryptionFactory.isAuthenticated()){
-	            	try {
-	            		mBody = MessageEncryptionFactory.stripHeader(mBody);
-						mBody = MessageEncryption.decrypt(context, mAddress, Base64.decode(mBody));
-					} catch (Exception e) {
-						Log.e(TAG, "Error decrypting message");
-						e.printStackTrace();
-					}
+	            	rawBody = mBody;
+	            	mBody = PlaintextCache.get(mType, mMsgId, rawBody);
+	            	if(mBody == null){
+	            		// The body is decrypted in the background by MessageDecryptor
+	            		mBody = context.getString(R.string.parandroid_snippet);
+	            		mDecryptionPending = true;
+	            	}
 	            }else if(ComposeMessageActivity.encryptIfNeeded && !MessageEncryptionFactory.isAuthenticating()){
 	            	ComposeMessageActivity.encryptIfNeeded = false;
 	            	MessageEncryptionFactory.setAuthenticating(true);
@@ -313,6 +316,45 @@ public class MessageItem {
     	return publickey || (mBody != null && mBody.startsWith(MultipartDataMessage.PUBLIC_KEY_HEADER));
     }
 
+    public boolean isDecryptionPending() {
+        return mDecryptionPending;
+    }
+
+    /**
+     * Decrypt the body of an encrypted message. This may take a while, so it
+     * shouldn't be called on the UI thread. The message itself is not changed.
+     *
+     * @return the decrypted body, or the encrypted body if decryption fails
+     */
+    String decryptBody() {
+        try {
+            SecretKeySpec secretKeySpec =
+                    MessageEncryptionFactory.getSecretKeySpec(mContext, mAddress);
+            if (secretKeySpec == null) {
+                // Not authenticated or no key for the sender, which isn't cached
+                return mContext.getString(R.string.parandroid_snippet);
+            }
+
+            String body = MessageEncryption.decrypt(secretKeySpec, rawBody);
+            PlaintextCache.put(mType, mMsgId, rawBody, body);
+            return body;
+        } catch (Exception e) {
+            Log.e(TAG, "Error decrypting message");
+            e.printStackTrace();
+            return MessageEncryptionFactory.stripHeader(rawBody);
+        }
+    }
+
+    /**
+     * Set the decrypted body. Like the cached formatted message this is only
+     * done from the UI thread.
+     */
+    void setDecryptedBody(String body) {
+        mBody = body;
+        mDecryptionPending = false;
+        mCachedFormattedMessage = null;
+    }
+
     // Note: This is the only mutable field in this class.  Think of
     // mCachedFormattedMessage as a C++ 'mutable' field on a const
     // object, with this being a lazy accessor whose logic to set it
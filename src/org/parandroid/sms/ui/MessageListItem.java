@@ -68,7 +68,7 @@ import com.google.android.mms.pdu.PduHeaders;
  * This class provides view of a message in the messages list.
  */
 public class MessageListItem extends LinearLayout implements
-        SlideViewInterface, OnClickListener {
+        SlideViewInterface, OnClickListener, MessageDecryptor.OnDecryptedListener {
     public static final String EXTRA_URLS = "org.parandroid.sms.ExtraUrls";
 
     private static final String TAG = "MessageListItem";
@@ -106,8 +106,17 @@ public class MessageListItem extends LinearLayout implements
     }
 
     public void bind(MessageItem msgItem) {
+        if (mMessageItem != null && mMessageItem != msgItem
+                && mMessageItem.isDecryptionPending()) {
+            // This row now shows another message, don't decrypt the old one for it.
+            MessageDecryptor.getInstance().cancel(mMessageItem);
+        }
         mMessageItem = msgItem;
 
+        if (msgItem.isDecryptionPending()) {
+            MessageDecryptor.getInstance().decrypt(msgItem, this);
+        }
+
         setLongClickable(false);
 
         switch (msgItem.mMessageType) {
@@ -120,6 +129,12 @@ public class MessageListItem extends LinearLayout implements
         }
     }
 
+    public void onDecrypted(MessageItem msgItem) {
+        if (msgItem == mMessageItem) {
+            bind(msgItem);
+        }
+    }
+
     public MessageItem getMessageItem() {
         return mMessageItem;
     }
@@ -7,13 +7,12 @@ import org.parandroid.encryption.MessageEncryption;
 import org.parandroid.encryption.MessageEncryptionFactory;
 import org.parandroid.sms.R;
 import org.parandroid.sms.data.Contact;
+import org.parandroid.sms.transaction.MultipartDataMessage;
 
 import android.app.Activity;
 import android.app.AlertDialog;
-import android.content.ContentValues;
 import android.content.DialogInterface;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.Telephony.Sms.Inbox;
@@ -147,11 +146,7 @@ public class PendingKeysActivity extends Activity {
             		   .setCancelable(false)
             	       .setPositiveButton(getText(R.string.yes), new DialogInterface.OnClickListener() {
             	           public void onClick(DialogInterface dialog, int id) {
-            	        	   SQLiteDatabase keyRing = MessageEncryptionFactory.openKeyring(PendingKeysActivity.this);
-            	        	   ContentValues cv = new ContentValues();
-            	        	   cv.put("accepted", true);
-            	        	   keyRing.update(MessageEncryptionFactory.PUBLIC_KEY_TABLE, cv, "_ID=" + ids[info.position], null);
-            	        	   keyRing.close();
+            	        	   MessageEncryptionFactory.acceptPublicKey(PendingKeysActivity.this, ids[info.position]);
             	        	   Toast.makeText(PendingKeysActivity.this, R.string.import_public_key_success, Toast.LENGTH_LONG).show();
             	        	   init();
             	           }
@@ -175,24 +170,19 @@ public class PendingKeysActivity extends Activity {
     
     private String[] BACKWARD_PROJECTION = new String[] { Inbox._ID, Inbox.ADDRESS, Inbox.BODY };
     private void doOverwrite(int id){
-    	SQLiteDatabase keyRing = MessageEncryptionFactory.openKeyring(this);
-    	Cursor c = keyRing.query(MessageEncryptionFactory.PUBLIC_KEY_TABLE, null, "_ID=" + id, null, null, null, null);
-    	if(!c.moveToNext()){
+    	String number = MessageEncryptionFactory.getPublicKeyNumber(this, id);
+    	String publicKey = MessageEncryptionFactory.getPublicKeyString(this, id);
+    	if(number == null || publicKey == null){
     		Log.e(TAG, "Public key with doesn't exist: " + id);
     		return;
     	}
-
-    	String number = c.getString(c.getColumnIndex("number"));
-    	String publicKey = c.getString(c.getColumnIndex("publicKey"));
-    	
-    	c.close();
-    	keyRing.close();
     	
 	    Uri uriSms = Uri.parse("content://sms");
 	    String selection = Inbox.TYPE + "='" + MessageItem.MESSAGE_TYPE_PARANDROID_INBOX +
-	    	"' OR " + Inbox.TYPE + "='" + MessageItem.MESSAGE_TYPE_PARANDROID_OUTBOX + "'";
+	    	"' OR " + Inbox.TYPE + "='" + MessageItem.MESSAGE_TYPE_PARANDROID_OUTBOX +
+	    	"' OR " + Inbox.TYPE + "='" + MessageItem.MESSAGE_TYPE_PARANDROID_QUEUED + "'";
 	
-	    c = getContentResolver().query(uriSms, BACKWARD_PROJECTION, selection, null, null);
+	    Cursor c = getContentResolver().query(uriSms, BACKWARD_PROJECTION, selection, null, null);
 	    if(!c.moveToFirst()){
 	    	Log.i(TAG, "backward: No messages");
 	    }else{
@@ -205,8 +195,9 @@ public class PendingKeysActivity extends Activity {
 	    				String body = c.getString(c.getColumnIndex(Inbox.BODY));
 	    				Log.i(TAG, "address: " + address);
 	    				Log.i(TAG, "body: " + body);
-	    				String clearBody = MessageEncryption.decrypt(this, address, Base64.decode(body));
-	    				String newBody = new String(Base64.encode(MessageEncryption.encrypt(this, Base64.decode(publicKey), clearBody)));
+	    				String clearBody = MessageEncryption.decrypt(this, address, body);
+	    				String newBody = MultipartDataMessage.getMessageBody(
+	    						MessageEncryptionFactory.getSecretKeySpec(this, Base64.decode(publicKey)), clearBody);
 	    				
 	    				c.updateString(c.getColumnIndex(Inbox.BODY), newBody);
 	    			}
@@ -221,12 +212,7 @@ public class PendingKeysActivity extends Activity {
 	    	int oldId = MessageEncryptionFactory.getPublicKeyId(this, number);
 	    	MessageEncryptionFactory.deletePublicKey(this, oldId);
 	    	
-			ContentValues cv = new ContentValues();
-			cv.put("accepted", true);
-			
-			keyRing = MessageEncryptionFactory.openKeyring(this);
-			keyRing.update(MessageEncryptionFactory.PUBLIC_KEY_TABLE, cv, "_ID=" + id, null);
-			keyRing.close();
+			MessageEncryptionFactory.acceptPublicKey(this, id);
 			
 	    	Toast.makeText(PendingKeysActivity.this, R.string.import_public_key_success, Toast.LENGTH_SHORT).show();
 	    }catch (Exception e) {
@@ -17,12 +17,14 @@
 
 package org.parandroid.sms.util;
 
+import org.parandroid.sms.MmsConfig;
 import org.parandroid.sms.ui.MessageUtils;
 import com.google.android.mms.util.SqliteWrapper;
 
 import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
@@ -39,7 +41,13 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 
@@ -47,9 +55,15 @@ import java.util.regex.Matcher;
  * This class caches query results of contact database and provides convenient
  * methods to return contact display name, etc.
  *
- * TODO: To improve performance, we should make contacts query by ourselves instead of
- *       doing it one by one calling the CallerInfo API. In the long term, the contacts
- *       database could have a caching layer to ease the work for all apps.
+ * The cache is bounded: entries are weighed by the approximate size of their strings
+ * and the least recently used ones are evicted when MmsConfig.getContactCacheSize() is
+ * exceeded. Avatars are kept apart, by contact id, within MmsConfig.getAvatarCacheSize()
+ * bytes of bitmap data, and are dropped altogether when the system runs low on memory.
+ * An evicted avatar is decoded again the next time its entry is looked up with a query
+ * allowed.
+ *
+ * Many phone numbers can be resolved at once with {@link #getContactInfo(Collection)},
+ * which makes one query per MAX_BATCH_SIZE numbers instead of one per number.
  */
 public class ContactInfoCache {
     private static final String TAG = "Mms/cache";
@@ -58,6 +72,9 @@ public class ContactInfoCache {
 
     private static final String SEPARATOR = ";";
 
+    // maximum number of phone numbers looked up with one query
+    private static final int MAX_BATCH_SIZE = 50;
+
     // query params for caller id lookup
     // TODO this query uses non-public API. Figure out a way to expose this functionality
     private static final String CALLER_ID_SELECTION = "PHONE_NUMBERS_EQUAL(" + Phone.NUMBER
@@ -102,12 +119,38 @@ public class ContactInfoCache {
     private static final int EMAIL_ID_COLUMN = 2;
     private static final int EMAIL_CONTACT_NAME_COLUMN = 3;
 
+    // approximate size of a CacheEntry and its map entry without the strings, in bytes
+    private static final int ENTRY_OVERHEAD = 96;
+
     private static ContactInfoCache sInstance;
 
     private final Context mContext;
 
-    // cached contact info
-    private final HashMap<String, CacheEntry> mCache = new HashMap<String, CacheEntry>();
+    // cached contact info, least recently used first
+    private final LinkedHashMap<String, CacheEntry> mCache =
+            new LinkedHashMap<String, CacheEntry>(64, 0.75f, true);
+
+    // cached avatars by contact id, least recently used first. Guarded by mCache.
+    private final LinkedHashMap<Long, BitmapDrawable> mAvatars =
+            new LinkedHashMap<Long, BitmapDrawable>(16, 0.75f, true);
+
+    // contact ids whose cached avatar may be outdated, decoded again when an entry of the
+    // contact is queried again. Guarded by mCache.
+    private final HashSet<Long> mStaleAvatars = new HashSet<Long>();
+
+    // sizes in bytes, guarded by mCache
+    private final int mMaxSize;
+    private final int mMaxAvatarSize;
+    private int mSize;
+    private int mAvatarSize;
+
+    // statistics, guarded by mCache
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+    private int mAvatarHitCount;
+    private int mAvatarMissCount;
+    private int mAvatarEvictionCount;
 
     /**
      * CacheEntry stores the caller id or email lookup info.
@@ -138,9 +181,9 @@ public class ContactInfoCache {
          */
         public String presenceText;
         /**
-         * Avatar image for this contact.
+         * True if the contact has an avatar image, even if it isn't cached anymore.
          */
-        public BitmapDrawable mAvatar;
+        private boolean hasAvatar;
 
         /**
          * If true, it indicates the CacheEntry has old info. We want to give the user of this
@@ -159,6 +202,21 @@ public class ContactInfoCache {
             return isStale;
         }
 
+        public boolean hasAvatar() {
+            return hasAvatar;
+        }
+
+        /**
+         * Returns the avatar image for this contact, or null if there is none or it was
+         * evicted from the cache. This never queries the content provider.
+         */
+        public BitmapDrawable getAvatar() {
+            if (!hasAvatar) {
+                return null;
+            }
+            return ContactInfoCache.this.getAvatar(person_id);
+        }
+
         @Override
         public String toString() {
             StringBuilder buf = new StringBuilder("name=" + name);
@@ -172,6 +230,8 @@ public class ContactInfoCache {
 
     private ContactInfoCache(Context context) {
         mContext = context;
+        mMaxSize = MmsConfig.getContactCacheSize();
+        mMaxAvatarSize = MmsConfig.getAvatarCacheSize();
     }
 
     /**
@@ -183,6 +243,7 @@ public class ContactInfoCache {
                 CacheEntry entry = e.getValue();
                 entry.isStale = true;
             }
+            mStaleAvatars.addAll(mAvatars.keySet());
         }
     }
 
@@ -194,10 +255,81 @@ public class ContactInfoCache {
             CacheEntry entry = mCache.get(emailOrNumber);
             if (entry != null) {
                 entry.isStale = true;
+                if (mAvatars.containsKey(entry.person_id)) {
+                    mStaleAvatars.add(entry.person_id);
+                }
             }
         }
     }
 
+    /**
+     * Drops all cached avatars. Called when the system is running low on memory.
+     */
+    public void onLowMemory() {
+        synchronized (mCache) {
+            mAvatarEvictionCount += mAvatars.size();
+            mAvatars.clear();
+            mStaleAvatars.clear();
+            mAvatarSize = 0;
+        }
+    }
+
+    /**
+     * Returns the cached avatar of a contact, or null if it isn't cached. Only called for
+     * contacts that have an avatar, so a null counts as a miss.
+     */
+    public BitmapDrawable getAvatar(long personId) {
+        if (personId == 0) {
+            return null;
+        }
+
+        synchronized (mCache) {
+            BitmapDrawable avatar = mAvatars.get(personId);
+            if (avatar != null) {
+                mAvatarHitCount++;
+            } else {
+                mAvatarMissCount++;
+            }
+            return avatar;
+        }
+    }
+
+    public int hitCount() {
+        synchronized (mCache) {
+            return mHitCount;
+        }
+    }
+
+    public int missCount() {
+        synchronized (mCache) {
+            return mMissCount;
+        }
+    }
+
+    public int evictionCount() {
+        synchronized (mCache) {
+            return mEvictionCount;
+        }
+    }
+
+    public int avatarHitCount() {
+        synchronized (mCache) {
+            return mAvatarHitCount;
+        }
+    }
+
+    public int avatarMissCount() {
+        synchronized (mCache) {
+            return mAvatarMissCount;
+        }
+    }
+
+    public int avatarEvictionCount() {
+        synchronized (mCache) {
+            return mAvatarEvictionCount;
+        }
+    }
+
     /**
      * Initialize the global instance. Should call only once.
      */
@@ -215,13 +347,20 @@ public class ContactInfoCache {
     public void dump() {
         synchronized (mCache) {
             Log.i(TAG, "ContactInfoCache.dump");
-
-            for (String name : mCache.keySet()) {
-                CacheEntry entry = mCache.get(name);
+            Log.i(TAG, "entries=" + mCache.size() + ", size=" + mSize + "/" + mMaxSize +
+                    ", hits=" + mHitCount + ", misses=" + mMissCount +
+                    ", evictions=" + mEvictionCount);
+            Log.i(TAG, "avatars=" + mAvatars.size() + ", size=" + mAvatarSize + "/" +
+                    mMaxAvatarSize + ", hits=" + mAvatarHitCount +
+                    ", misses=" + mAvatarMissCount + ", evictions=" + mAvatarEvictionCount);
+
+            // Don't use get() while iterating, it reorders the map
+            for (Map.Entry<String, CacheEntry> e : mCache.entrySet()) {
+                CacheEntry entry = e.getValue();
                 if (entry != null) {
-                    Log.i(TAG, "key=" + name + ", cacheEntry={" + entry.toString() + '}');
+                    Log.i(TAG, "key=" + e.getKey() + ", cacheEntry={" + entry.toString() + '}');
                 } else {
-                    Log.i(TAG, "key=" + name + ", cacheEntry={null}");
+                    Log.i(TAG, "key=" + e.getKey() + ", cacheEntry={null}");
                 }
             }
         }
@@ -242,6 +381,55 @@ public class ContactInfoCache {
         return getContactInfo(numberOrEmail, true);
     }
 
+    /**
+     * Returns the caller info of several numbers or email addresses, keyed by the
+     * strings passed in. Cache entries that aren't stale are used as they are; the other
+     * phone numbers are looked up together, with one query per MAX_BATCH_SIZE numbers.
+     *
+     * @param numbersOrEmails the phone numbers and email addresses to look up.
+     * @return the CacheEntry of every number or email address.
+     */
+    public HashMap<String, CacheEntry> getContactInfo(Collection<String> numbersOrEmails) {
+        HashMap<String, CacheEntry> result = new HashMap<String, CacheEntry>();
+        ArrayList<String> missing = new ArrayList<String>();
+
+        for (String numberOrEmail : numbersOrEmails) {
+            if (result.containsKey(numberOrEmail)) {
+                continue;
+            }
+            if (Mms.isEmailAddress(numberOrEmail)) {
+                result.put(numberOrEmail, getContactInfoForEmailAddress(numberOrEmail, true));
+                continue;
+            }
+
+            CacheEntry entry = getCachedEntry(
+                    PhoneNumberUtils.stripSeparators(numberOrEmail), true);
+            if (entry != null) {
+                result.put(numberOrEmail, entry);
+            } else if (!missing.contains(numberOrEmail)) {
+                missing.add(numberOrEmail);
+            }
+        }
+
+        for (int start = 0; start < missing.size(); start += MAX_BATCH_SIZE) {
+            List<String> batch = missing.subList(start,
+                    Math.min(start + MAX_BATCH_SIZE, missing.size()));
+
+            ArrayList<String> numbers = new ArrayList<String>(batch.size());
+            for (String number : batch) {
+                numbers.add(PhoneNumberUtils.stripSeparators(number));
+            }
+
+            CacheEntry[] entries = queryContactInfoByNumbers(numbers);
+            for (int i = 0; i < entries.length; i++) {
+                put(numbers.get(i), entries[i]);
+                result.put(batch.get(i), entries[i]);
+            }
+        }
+
+        return result;
+    }
+
     /**
      * Returns the caller info in a CacheEntry. If 'noQuery' is set to true, then this
      * method only checks in the cache and makes no content provider query.
@@ -255,27 +443,114 @@ public class ContactInfoCache {
         // we should convert them into a uniform format so that we don't cache
         // them twice.
         number = PhoneNumberUtils.stripSeparators(number);
+        CacheEntry entry = getCachedEntry(number, allowQuery);
+        if (entry != null || !allowQuery) {
+            if (LOCAL_DEBUG && entry != null) {
+                log("getContactInfo: number=" + number + ", name=" + entry.name +
+                        ", presence=" + entry.presenceResId);
+            }
+            return entry;
+        }
+        entry = queryContactInfoByNumber(number);
+        put(number, entry);
+        return entry;
+    }
+
+    /**
+     * Returns the cache entry for the key if it can be used as is, or null if it is
+     * missing or, when a query is allowed, stale. The avatar of the entry is decoded again
+     * if it was evicted and a query is allowed.
+     */
+    private CacheEntry getCachedEntry(String key, boolean allowQuery) {
+        CacheEntry entry;
         synchronized (mCache) {
-            if (mCache.containsKey(number)) {
-                CacheEntry entry = mCache.get(number);
-                if (LOCAL_DEBUG) {
-                    log("getContactInfo: number=" + number + ", name=" + entry.name +
-                            ", presence=" + entry.presenceResId);
-                }
-                if (!allowQuery || !entry.isStale()) {
-                    return entry;
+            entry = mCache.get(key);
+            if (entry == null || (allowQuery && entry.isStale())) {
+                if (entry != null) {
+                    // The entry is queried again, and so is its avatar
+                    removeStaleAvatar(entry.person_id);
                 }
-            } else if (!allowQuery) {
+                mMissCount++;
                 return null;
             }
+            mHitCount++;
         }
-        CacheEntry entry = queryContactInfoByNumber(number);
-        synchronized (mCache) {
-            mCache.put(number, entry);
+
+        if (allowQuery && entry.hasAvatar && getAvatar(entry.person_id) == null) {
+            loadAvatar(entry);
         }
         return entry;
     }
 
+    private void put(String key, CacheEntry entry) {
+        synchronized (mCache) {
+            CacheEntry old = mCache.put(key, entry);
+            if (old != null) {
+                mSize -= getWeight(key, old);
+            }
+            mSize += getWeight(key, entry);
+
+            Iterator<Map.Entry<String, CacheEntry>> it = mCache.entrySet().iterator();
+            while (mSize > mMaxSize && it.hasNext()) {
+                Map.Entry<String, CacheEntry> e = it.next();
+                mSize -= getWeight(e.getKey(), e.getValue());
+                it.remove();
+                mEvictionCount++;
+            }
+        }
+    }
+
+    private static int getWeight(String key, CacheEntry entry) {
+        return ENTRY_OVERHEAD + 2 * (length(key) + length(entry.phoneNumber) +
+                length(entry.phoneLabel) + length(entry.name) + length(entry.presenceText));
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    private void putAvatar(long personId, BitmapDrawable avatar) {
+        int size = getWeight(avatar);
+        if (size > mMaxAvatarSize) {
+            return;
+        }
+
+        synchronized (mCache) {
+            BitmapDrawable old = mAvatars.put(personId, avatar);
+            if (old != null) {
+                mAvatarSize -= getWeight(old);
+            }
+            mAvatarSize += size;
+
+            Iterator<Map.Entry<Long, BitmapDrawable>> it = mAvatars.entrySet().iterator();
+            while (mAvatarSize > mMaxAvatarSize && it.hasNext()) {
+                Map.Entry<Long, BitmapDrawable> e = it.next();
+                mAvatarSize -= getWeight(e.getValue());
+                mStaleAvatars.remove(e.getKey());
+                it.remove();
+                mAvatarEvictionCount++;
+            }
+        }
+    }
+
+    /**
+     * Drops the avatar of a contact if it was marked stale. Called with mCache held.
+     */
+    private void removeStaleAvatar(long personId) {
+        if (!mStaleAvatars.remove(personId)) {
+            return;
+        }
+        BitmapDrawable avatar = mAvatars.remove(personId);
+        if (avatar != null) {
+            mAvatarSize -= getWeight(avatar);
+        }
+    }
+
+    private static int getWeight(BitmapDrawable avatar) {
+        Bitmap bitmap = avatar.getBitmap();
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
     /**
      * Queries the caller id info with the phone number.
      * @return a CacheEntry containing the caller id info corresponding to the number.
@@ -309,18 +584,13 @@ public class ContactInfoCache {
 
         try {
             if (cursor.moveToFirst()) {
-                entry.phoneLabel = cursor.getString(PHONE_LABEL_COLUMN);
-                entry.name = cursor.getString(CONTACT_NAME_COLUMN);
-                entry.person_id = cursor.getLong(CONTACT_ID_COLUMN);
-                entry.presenceResId = getPresenceIconResourceId(
-                        cursor.getInt(CONTACT_PRESENCE_COLUMN));
-                entry.presenceText = cursor.getString(CONTACT_STATUS_COLUMN);
+                fillFromCursor(entry, cursor);
                 if (LOCAL_DEBUG) {
                     log("queryContactInfoByNumber: name=" + entry.name + ", number=" + number +
                             ", presence=" + entry.presenceResId);
                 }
 
-                loadAvatar(entry, cursor);
+                loadAvatar(entry);
             }
         } finally {
             cursor.close();
@@ -329,11 +599,103 @@ public class ContactInfoCache {
         return entry;
     }
 
-    private void loadAvatar(CacheEntry entry, Cursor cursor) {
-        if (entry.person_id == 0 || entry.mAvatar != null) {
+    /**
+     * Queries the caller id info of several phone numbers at once. The selection is the
+     * same as CALLER_ID_SELECTION, with the terms of all numbers OR'ed together; the rows
+     * are matched back to the numbers with PhoneNumberUtils.compare().
+     *
+     * @return CacheEntries containing the caller id info, in the order of the numbers.
+     */
+    private CacheEntry[] queryContactInfoByNumbers(List<String> numbers) {
+        CacheEntry[] entries = new CacheEntry[numbers.size()];
+        boolean[] found = new boolean[entries.length];
+
+        StringBuilder numbersEqual = new StringBuilder();
+        StringBuilder minMatches = new StringBuilder();
+        for (int i = 0; i < entries.length; i++) {
+            String number = numbers.get(i);
+            entries[i] = new CacheEntry();
+            entries[i].phoneNumber = number;
+
+            if (i > 0) {
+                numbersEqual.append(" OR ");
+                minMatches.append(" OR ");
+            }
+            numbersEqual.append("PHONE_NUMBERS_EQUAL(").append(Phone.NUMBER).append(",?)");
+            minMatches.append("normalized_number GLOB(")
+                    .append(DatabaseUtils.sqlEscapeString(
+                            PhoneNumberUtils.toCallerIDMinMatch(number) + "*"))
+                    .append(")");
+        }
+
+        String selection = "(" + numbersEqual + ") AND " + Data.MIMETYPE + "='"
+                + Phone.CONTENT_ITEM_TYPE + "'"
+                + " AND " + Data.RAW_CONTACT_ID + " IN "
+                        + "(SELECT raw_contact_id "
+                        + " FROM phone_lookup"
+                        + " WHERE " + minMatches + ")";
+        Cursor cursor = mContext.getContentResolver().query(
+                PHONES_WITH_PRESENCE_URI,
+                CALLER_ID_PROJECTION,
+                selection,
+                numbers.toArray(new String[entries.length]),
+                null);
+
+        if (cursor == null) {
+            Log.w(TAG, "queryContactInfoByNumbers(" + entries.length + " numbers) returned " +
+                    "NULL cursor! contact uri used " + PHONES_WITH_PRESENCE_URI);
+            return entries;
+        }
+
+        try {
+            while (cursor.moveToNext()) {
+                String rowNumber = cursor.getString(PHONE_NUMBER_COLUMN);
+                for (int i = 0; i < entries.length; i++) {
+                    if (!found[i] && PhoneNumberUtils.compare(numbers.get(i), rowNumber)) {
+                        fillFromCursor(entries[i], cursor);
+                        found[i] = true;
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (LOCAL_DEBUG) {
+            log("queryContactInfoByNumbers: " + entries.length + " numbers");
+        }
+
+        for (int i = 0; i < entries.length; i++) {
+            if (found[i]) {
+                loadAvatar(entries[i]);
+            }
+        }
+
+        return entries;
+    }
+
+    private void fillFromCursor(CacheEntry entry, Cursor cursor) {
+        entry.phoneLabel = cursor.getString(PHONE_LABEL_COLUMN);
+        entry.name = cursor.getString(CONTACT_NAME_COLUMN);
+        entry.person_id = cursor.getLong(CONTACT_ID_COLUMN);
+        entry.presenceResId = getPresenceIconResourceId(
+                cursor.getInt(CONTACT_PRESENCE_COLUMN));
+        entry.presenceText = cursor.getString(CONTACT_STATUS_COLUMN);
+    }
+
+    private void loadAvatar(CacheEntry entry) {
+        if (entry.person_id == 0) {
             return;
         }
 
+        synchronized (mCache) {
+            // Other numbers of the same contact share the avatar
+            if (mAvatars.containsKey(entry.person_id)) {
+                entry.hasAvatar = true;
+                return;
+            }
+        }
+
         Uri contactUri = ContentUris.withAppendedId(Contacts.CONTENT_URI, entry.person_id);
 
         InputStream avatarDataStream =
@@ -344,16 +706,19 @@ public class ContactInfoCache {
             try {
 	            Bitmap b = BitmapFactory.decodeStream(avatarDataStream);
 	
-	            BitmapDrawable bd =
-	                new BitmapDrawable(mContext.getResources(), b);
+	            if (b != null) {
+	                BitmapDrawable bd =
+	                    new BitmapDrawable(mContext.getResources(), b);
 	
-	            entry.mAvatar = bd;
+	                entry.hasAvatar = true;
+	                putAvatar(entry.person_id, bd);
+	            }
 	            
                 avatarDataStream.close();
             } catch (Exception e) {
-                entry.mAvatar = null;
+                // no avatar
             } catch(OutOfMemoryError e){
-            	entry.mAvatar = null;
+            	onLowMemory();
             	System.gc();
             }
         }
@@ -421,22 +786,13 @@ public class ContactInfoCache {
      * @return a CacheEntry if the contact is found.
      */
     public CacheEntry getContactInfoForEmailAddress(String email, boolean allowQuery) {
-        synchronized (mCache) {
-            if (mCache.containsKey(email)) {
-                CacheEntry entry = mCache.get(email);
-                if (!allowQuery || !entry.isStale()) {
-                    return entry;
-                }
-            } else if (!allowQuery) {
-                return null;
-            }
-        }
-        CacheEntry entry = queryEmailDisplayName(email);
-        synchronized (mCache) {
-            mCache.put(email, entry);
-
+        CacheEntry entry = getCachedEntry(email, allowQuery);
+        if (entry != null || !allowQuery) {
             return entry;
         }
+        entry = queryEmailDisplayName(email);
+        put(email, entry);
+        return entry;
     }
 
     /**
@@ -496,7 +852,7 @@ public class ContactInfoCache {
                     }
                     if (!TextUtils.isEmpty(name)) {
                         entry.name = name;
-                        loadAvatar(entry, cursor);
+                        loadAvatar(entry);
                         if (LOCAL_DEBUG) {
                             log("queryEmailDisplayName: name=" + entry.name + ", email=" + email +
                                     ", presence=" + entry.presenceResId);
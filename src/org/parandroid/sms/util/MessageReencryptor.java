@@ -0,0 +1,368 @@
+package org.parandroid.sms.util;
+
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.parandroid.encryption.MessageEncryption;
+import org.parandroid.encryption.MessageEncryptionFactory;
+import org.parandroid.sms.transaction.MultipartDataMessage;
+import org.parandroid.sms.ui.MessageItem;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.provider.Telephony.Sms;
+import android.util.Log;
+
+/**
+ * Re-encrypts all stored Parandroid messages after a new keypair was generated.
+ *
+ * Messages are processed in chunks, in order of their id. The messages of a chunk are
+ * grouped by address and each group is handled by a worker thread, with the old and the new
+ * shared secret computed only once per peer. After every chunk the id of its last message
+ * is saved as a checkpoint, and the previous private key is kept on disk until the job is
+ * done, so the job can be resumed when the process dies in between.
+ *
+ * Messages that were already re-encrypted before a crash, but not checkpointed, can't be
+ * decrypted with the old secret anymore and are recognized with the new one.
+ */
+public class MessageReencryptor {
+    private static final String TAG = "Parandroid MessageReencryptor";
+
+    private static final String CHECKPOINT_KEY = "pref_key_reencryption_checkpoint";
+
+    private static final int CHUNK_SIZE = 100;
+    private static final int POOL_SIZE = 2;
+
+    private static final String[] PROJECTION = new String[] {
+        Sms._ID, Sms.ADDRESS, Sms.BODY
+    };
+
+    private static final int COLUMN_ID      = 0;
+    private static final int COLUMN_ADDRESS = 1;
+    private static final int COLUMN_BODY    = 2;
+
+    private static final String SELECTION = "(" + Sms.TYPE + "=" + MessageItem.MESSAGE_TYPE_PARANDROID_INBOX +
+            " OR " + Sms.TYPE + "=" + MessageItem.MESSAGE_TYPE_PARANDROID_OUTBOX +
+            " OR " + Sms.TYPE + "=" + MessageItem.MESSAGE_TYPE_PARANDROID_QUEUED + ")";
+
+    public interface ProgressListener {
+        void onProgress(int done, int total);
+        void onFinished(int reencrypted, int failed, long elapsedMillis);
+    }
+
+    private static boolean sRunning = false;
+
+    private final Context mContext;
+    private final HashMap<String, PeerSecrets> mSecrets = new HashMap<String, PeerSecrets>();
+    private PrivateKey mPreviousPrivateKey;
+
+    private static class PeerSecrets {
+        SecretKeySpec previous;
+        SecretKeySpec current;
+    }
+
+    private static class Row {
+        final long id;
+        final String address;
+        final String body;
+        String newBody;
+
+        Row(long id, String address, String body) {
+            this.id = id;
+            this.address = address;
+            this.body = body;
+        }
+    }
+
+    public MessageReencryptor(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Prepare the re-encryption of all messages for the new keypair. The previous private key
+     * is stored, encrypted with the current password, until the job is finished.
+     *
+     * A job that didn't finish yet must not be replaced: the messages it didn't get to are
+     * still encrypted with its previous key, which would be lost.
+     *
+     * @throws IllegalStateException if a re-encryption is still pending or running
+     */
+    public static void schedule(Context context, PrivateKey previousPrivateKey) throws Exception {
+        if (previousPrivateKey == null) {
+            throw new IllegalArgumentException("Previous private key may not be null");
+        }
+        if (isPending(context) || isRunning()) {
+            throw new IllegalStateException("A re-encryption is still pending");
+        }
+
+        MessageEncryptionFactory.writePreviousPrivateKey(context, previousPrivateKey);
+        setCheckpoint(context, 0);
+    }
+
+    /**
+     * Whether a re-encryption was scheduled and didn't finish yet.
+     */
+    public static boolean isPending(Context context) {
+        return getCheckpoint(context) >= 0;
+    }
+
+    /**
+     * Run or resume the re-encryption. This blocks, so it must not be called from the UI thread.
+     * The user has to be authenticated, otherwise nothing happens.
+     *
+     * @return false if the job could not run and is still pending
+     */
+    public boolean run(ProgressListener listener) {
+        synchronized (MessageReencryptor.class) {
+            if (sRunning) {
+                return false;
+            }
+            sRunning = true;
+        }
+
+        try {
+            return reencryptAll(listener);
+        } finally {
+            synchronized (MessageReencryptor.class) {
+                sRunning = false;
+            }
+        }
+    }
+
+    public static synchronized boolean isRunning() {
+        return sRunning;
+    }
+
+    private boolean reencryptAll(ProgressListener listener) {
+        long checkpoint = getCheckpoint(mContext);
+        if (checkpoint < 0) {
+            return true;
+        }
+
+        try {
+            mPreviousPrivateKey = MessageEncryptionFactory.getPreviousPrivateKey(mContext);
+        } catch (Exception e) {
+            Log.e(TAG, "Can't unlock the previous private key", e);
+            return false;
+        }
+        if (mPreviousPrivateKey == null) {
+            if (MessageEncryptionFactory.isAuthenticated()) {
+                // Nothing we can decrypt the old messages with anymore
+                Log.e(TAG, "Previous private key is missing, giving up");
+                finish();
+            }
+            return false;
+        }
+
+        ContentResolver resolver = mContext.getContentResolver();
+        int total = count(resolver, checkpoint);
+        int done = 0;
+        int reencrypted = 0;
+        int failed = 0;
+        long start = SystemClock.elapsedRealtime();
+
+        Log.i(TAG, "Re-encrypting " + total + " messages, starting after id " + checkpoint);
+
+        ExecutorService executor = Executors.newFixedThreadPool(POOL_SIZE);
+        try {
+            ArrayList<Row> chunk;
+            while (!(chunk = readChunk(resolver, checkpoint)).isEmpty()) {
+                reencryptChunk(executor, chunk);
+
+                if (!MessageEncryptionFactory.isAuthenticated()) {
+                    // The new private key was locked while we were busy, resume later
+                    Log.i(TAG, "Re-encryption paused after id " + checkpoint);
+                    return false;
+                }
+
+                for (Row row : chunk) {
+                    if (row.newBody == null) {
+                        failed++;
+                        continue;
+                    }
+                    if (row.newBody == row.body) {
+                        // Re-encrypted before the last checkpoint was written
+                        continue;
+                    }
+
+                    ContentValues values = new ContentValues(1);
+                    values.put(Sms.BODY, row.newBody);
+                    resolver.update(ContentUris.withAppendedId(Sms.CONTENT_URI, row.id),
+                            values, null, null);
+                    reencrypted++;
+                }
+
+                checkpoint = chunk.get(chunk.size() - 1).id;
+                setCheckpoint(mContext, checkpoint);
+
+                done += chunk.size();
+                if (listener != null) {
+                    listener.onProgress(done, total);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Re-encryption interrupted after id " + checkpoint, e);
+            return false;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, "Re-encrypted " + reencrypted + " messages (" + failed + " failed) in " + elapsed + "ms, " +
+                (elapsed > 0 ? (done * 1000L / elapsed) : done) + " messages/s");
+
+        finish();
+        if (listener != null) {
+            listener.onFinished(reencrypted, failed, elapsed);
+        }
+        return true;
+    }
+
+    private void finish() {
+        MessageEncryptionFactory.deletePreviousPrivateKey(mContext);
+        setCheckpoint(mContext, -1);
+        mPreviousPrivateKey = null;
+        synchronized (mSecrets) {
+            mSecrets.clear();
+        }
+    }
+
+    private void reencryptChunk(ExecutorService executor, ArrayList<Row> chunk) throws Exception {
+        HashMap<String, ArrayList<Row>> peers = new HashMap<String, ArrayList<Row>>();
+        for (Row row : chunk) {
+            String key = row.address == null ? "" : row.address;
+            ArrayList<Row> rows = peers.get(key);
+            if (rows == null) {
+                rows = new ArrayList<Row>();
+                peers.put(key, rows);
+            }
+            rows.add(row);
+        }
+
+        ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>(peers.size());
+        for (final String peer : peers.keySet()) {
+            final ArrayList<Row> rows = peers.get(peer);
+
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    PeerSecrets secrets = getSecrets(peer);
+                    for (Row row : rows) {
+                        reencrypt(secrets, row);
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+    }
+
+    private PeerSecrets getSecrets(String address) throws Exception {
+        PeerSecrets secrets;
+        synchronized (mSecrets) {
+            secrets = mSecrets.get(address);
+        }
+        if (secrets == null) {
+            // Only one worker handles an address at a time, so this is computed once
+            secrets = new PeerSecrets();
+            secrets.previous = MessageEncryptionFactory.getSecretKeySpec(mContext, mPreviousPrivateKey, address);
+            secrets.current = MessageEncryptionFactory.getSecretKeySpec(mContext, address);
+            synchronized (mSecrets) {
+                mSecrets.put(address, secrets);
+            }
+        }
+        return secrets;
+    }
+
+    private static void reencrypt(PeerSecrets secrets, Row row) {
+        if (secrets.previous == null || secrets.current == null) {
+            Log.w(TAG, "No public key for message " + row.id);
+            return;
+        }
+
+        if (row.body == null) {
+            return;
+        }
+
+        String clearBody;
+        try {
+            clearBody = MessageEncryption.decrypt(secrets.previous, row.body);
+        } catch (Exception e) {
+            try {
+                MessageEncryption.decrypt(secrets.current, row.body);
+                row.newBody = row.body;
+            } catch (Exception e2) {
+                Log.w(TAG, "Can't decrypt message " + row.id);
+            }
+            return;
+        }
+
+        try {
+            row.newBody = MultipartDataMessage.getMessageBody(secrets.current, clearBody);
+        } catch (Exception e) {
+            Log.w(TAG, "Can't encrypt message " + row.id);
+        }
+    }
+
+    private static int count(ContentResolver resolver, long checkpoint) {
+        Cursor c = resolver.query(Sms.CONTENT_URI, new String[] { Sms._ID },
+                SELECTION + " AND " + Sms._ID + ">" + checkpoint, null, null);
+        if (c == null) {
+            return 0;
+        }
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static ArrayList<Row> readChunk(ContentResolver resolver, long checkpoint) {
+        ArrayList<Row> chunk = new ArrayList<Row>(CHUNK_SIZE);
+        Cursor c = resolver.query(Sms.CONTENT_URI, PROJECTION,
+                SELECTION + " AND " + Sms._ID + ">" + checkpoint, null,
+                Sms._ID + " ASC LIMIT " + CHUNK_SIZE);
+        if (c == null) {
+            return chunk;
+        }
+        try {
+            while (c.moveToNext()) {
+                chunk.add(new Row(c.getLong(COLUMN_ID), c.getString(COLUMN_ADDRESS),
+                        c.getString(COLUMN_BODY)));
+            }
+        } finally {
+            c.close();
+        }
+        return chunk;
+    }
+
+    private static long getCheckpoint(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return prefs.getLong(CHECKPOINT_KEY, -1);
+    }
+
+    private static void setCheckpoint(Context context, long checkpoint) {
+        SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(context).edit();
+        if (checkpoint < 0) {
+            editor.remove(CHECKPOINT_KEY);
+        } else {
+            editor.putLong(CHECKPOINT_KEY, checkpoint);
+        }
+        editor.commit();
+    }
+}
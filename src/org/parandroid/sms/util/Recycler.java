@@ -17,10 +17,11 @@
 package org.parandroid.sms.util;
 
 import org.parandroid.sms.MmsConfig;
-import org.parandroid.sms.ui.MessageUtils;
 import org.parandroid.sms.ui.MessagingPreferenceActivity;
 import com.google.android.mms.util.SqliteWrapper;
 
+import java.util.HashMap;
+
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
@@ -28,7 +29,6 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
 import android.preference.PreferenceManager;
-import android.provider.BaseColumns;
 import android.provider.Telephony;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.Sms;
@@ -37,6 +37,11 @@ import android.util.Log;
 
 /**
  * The recycler is responsible for deleting old messages.
+ *
+ * Threads are checked with aggregate count queries and pruned with one delete per
+ * thread, which removes every unlocked message older than the newest ones to keep.
+ * When a message is added to a thread, the recycler only counts it in memory and
+ * prunes the thread once that count goes over the limit.
  */
 public abstract class Recycler {
     private static final boolean LOCAL_DEBUG = false;
@@ -48,6 +53,9 @@ public abstract class Recycler {
     private static SmsRecycler sSmsRecycler;
     private static MmsRecycler sMmsRecycler;
 
+    // Number of unlocked messages by thread id, as far as we know
+    private final HashMap<Long, Integer> mThreadCounts = new HashMap<Long, Integer>();
+
     public static SmsRecycler getSmsRecycler() {
         if (sSmsRecycler == null) {
             sSmsRecycler = new SmsRecycler();
@@ -77,12 +85,22 @@ public abstract class Recycler {
             return;
         }
 
+        synchronized (mThreadCounts) {
+            mThreadCounts.clear();
+        }
+
         Cursor cursor = getAllThreads(context);
+        if (cursor == null) {
+            return;
+        }
         int limit = getMessageLimit(context);
         try {
             while (cursor.moveToNext()) {
-                long threadId = getThreadId(cursor);
-                deleteMessagesForThread(context, threadId, limit);
+                // The count includes locked messages, so a thread that isn't over the
+                // limit with them can't be over it without them either.
+                if (getMessageCount(cursor) > limit) {
+                    deleteMessagesForThread(context, getThreadId(cursor), limit);
+                }
             }
         } finally {
             cursor.close();
@@ -94,11 +112,30 @@ public abstract class Recycler {
             Log.v(TAG, "Recycler.deleteOldMessagesByThreadId this: " + this +
                     " threadId: " + threadId);
         }
-        if (!isAutoDeleteEnabled(context)) {
+        if (!isAutoDeleteEnabled(context) || threadId <= 0) {
             return;
         }
 
-        deleteMessagesForThread(context, threadId, getMessageLimit(context));
+        int limit = getMessageLimit(context);
+        synchronized (mThreadCounts) {
+            Integer count = mThreadCounts.get(threadId);
+            if (count == null) {
+                count = countMessagesForThread(context, threadId);
+            } else {
+                // One message was added since the thread was last counted
+                count++;
+            }
+
+            if (count > limit) {
+                if (deleteMessagesForThread(context, threadId, limit) > 0) {
+                    count = limit;
+                } else {
+                    // Our count was off, e.g. because messages were deleted or locked
+                    count = countMessagesForThread(context, threadId);
+                }
+            }
+            mThreadCounts.put(threadId, count);
+        }
     }
 
     public static boolean isAutoDeleteEnabled(Context context) {
@@ -119,13 +156,57 @@ public abstract class Recycler {
         return MmsConfig.getMaxMessageCountPerThread();
     }
 
+    /**
+     * Returns a selection for the date of the keep'th newest message that matches
+     * where, which is null if there are no more than keep messages. Everything older
+     * than that has to go.
+     */
+    protected static String selectThresholdDate(String table, String where, int keep) {
+        return "(SELECT date FROM " + table + " WHERE " + where +
+                " ORDER BY date DESC LIMIT 1 OFFSET " + Math.max(keep - 1, 0) + ")";
+    }
+
+    /**
+     * Returns a selection for the threads with at least limit unlocked messages.
+     */
+    protected static String selectThreadsOverLimit(String table, int limit) {
+        return "(SELECT thread_id FROM " + table + " WHERE locked=0" +
+                " GROUP BY thread_id HAVING COUNT(*)>=" + limit + ")";
+    }
+
+    /**
+     * Returns the first column of a single row query, or 0 if there is no such row.
+     */
+    protected static int queryCount(Context context, Uri uri, String selection) {
+        Cursor cursor = SqliteWrapper.query(context, context.getContentResolver(),
+                uri, new String[] { "COUNT(*)" }, selection, null, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
     abstract protected long getThreadId(Cursor cursor);
 
+    /**
+     * Returns the number of messages, locked or not, of a row of getAllThreads().
+     */
+    abstract protected int getMessageCount(Cursor cursor);
+
     abstract protected Cursor getAllThreads(Context context);
 
-    abstract protected void deleteMessagesForThread(Context context, long threadId, int keep);
+    abstract protected int countMessagesForThread(Context context, long threadId);
 
-    abstract protected void dumpMessage(Cursor cursor, Context context);
+    /**
+     * Deletes all but the newest keep unlocked messages of a thread.
+     *
+     * @return the number of messages deleted
+     */
+    abstract protected int deleteMessagesForThread(Context context, long threadId, int keep);
 
     abstract protected boolean anyThreadOverLimit(Context context);
 
@@ -137,28 +218,6 @@ public abstract class Recycler {
         private static final int ID             = 0;
         private static final int MESSAGE_COUNT  = 1;
 
-        static private final String[] SMS_MESSAGE_PROJECTION = new String[] {
-            BaseColumns._ID,
-            Conversations.THREAD_ID,
-            Sms.ADDRESS,
-            Sms.BODY,
-            Sms.DATE,
-            Sms.READ,
-            Sms.TYPE,
-            Sms.STATUS,
-        };
-
-        // The indexes of the default columns which must be consistent
-        // with above PROJECTION.
-        static private final int COLUMN_ID                  = 0;
-        static private final int COLUMN_THREAD_ID           = 1;
-        static private final int COLUMN_SMS_ADDRESS         = 2;
-        static private final int COLUMN_SMS_BODY            = 3;
-        static private final int COLUMN_SMS_DATE            = 4;
-        static private final int COLUMN_SMS_READ            = 5;
-        static private final int COLUMN_SMS_TYPE            = 6;
-        static private final int COLUMN_SMS_STATUS          = 7;
-
         private final String MAX_SMS_MESSAGES_PER_THREAD = "MaxSmsMessagesPerThread";
 
         public int getMessageLimit(Context context) {
@@ -178,6 +237,10 @@ public abstract class Recycler {
             return cursor.getLong(ID);
         }
 
+        protected int getMessageCount(Cursor cursor) {
+            return cursor.getInt(MESSAGE_COUNT);
+        }
+
         protected Cursor getAllThreads(Context context) {
             ContentResolver resolver = context.getContentResolver();
             Cursor cursor = SqliteWrapper.query(context, resolver,
@@ -187,79 +250,28 @@ public abstract class Recycler {
             return cursor;
         }
 
-        protected void deleteMessagesForThread(Context context, long threadId, int keep) {
-            if (LOCAL_DEBUG) {
-                Log.v(TAG, "SMS: deleteMessagesForThread");
-            }
-            ContentResolver resolver = context.getContentResolver();
-            Cursor cursor = SqliteWrapper.query(context, resolver,
-                    ContentUris.withAppendedId(Sms.Conversations.CONTENT_URI, threadId),
-                    SMS_MESSAGE_PROJECTION,
-                    "locked=0",
-                    null, "date DESC");     // get in newest to oldest order
-
-            int count = cursor.getCount();
-            int numberToDelete = count - keep;
-            if (LOCAL_DEBUG) {
-                Log.v(TAG, "SMS: deleteMessagesForThread keep: " + keep +
-                        " count: " + count +
-                        " numberToDelete: " + numberToDelete);
-            }
-            if (numberToDelete <= 0) {
-                return;
-            }
-            try {
-                // Move to the keep limit and then delete everything older than that one.
-                cursor.move(keep);
-                long latestDate = cursor.getLong(COLUMN_SMS_DATE);
-
-                long cntDeleted = SqliteWrapper.delete(context, resolver,
-                        ContentUris.withAppendedId(Sms.Conversations.CONTENT_URI, threadId),
-                        "locked=0 AND date<" + latestDate,
-                        null);
-                if (LOCAL_DEBUG) {
-                    Log.v(TAG, "SMS: deleteMessagesForThread cntDeleted: " + cntDeleted);
-                }
-            } finally {
-                cursor.close();
-            }
+        protected int countMessagesForThread(Context context, long threadId) {
+            return queryCount(context, Sms.CONTENT_URI,
+                    "thread_id=" + threadId + " AND locked=0");
         }
 
-        protected void dumpMessage(Cursor cursor, Context context) {
-            long date = cursor.getLong(COLUMN_SMS_DATE);
-            String dateStr = MessageUtils.formatTimeStampString(context, date, true);
+        protected int deleteMessagesForThread(Context context, long threadId, int keep) {
+            String where = "thread_id=" + threadId + " AND locked=0";
+            int cntDeleted = SqliteWrapper.delete(context, context.getContentResolver(),
+                    ContentUris.withAppendedId(Sms.Conversations.CONTENT_URI, threadId),
+                    "locked=0 AND date<" + selectThresholdDate("sms", where, keep),
+                    null);
             if (LOCAL_DEBUG) {
-                Log.v(TAG, "Recycler message " +
-                        "\n    address: " + cursor.getString(COLUMN_SMS_ADDRESS) +
-                        "\n    body: " + cursor.getString(COLUMN_SMS_BODY) +
-                        "\n    date: " + dateStr +
-                        "\n    date: " + date +
-                        "\n    read: " + cursor.getInt(COLUMN_SMS_READ));
+                Log.v(TAG, "SMS: deleteMessagesForThread keep: " + keep +
+                        " cntDeleted: " + cntDeleted);
             }
+            return cntDeleted;
         }
 
         @Override
         protected boolean anyThreadOverLimit(Context context) {
-            Cursor cursor = getAllThreads(context);
-            int limit = getMessageLimit(context);
-            try {
-                while (cursor.moveToNext()) {
-                    long threadId = getThreadId(cursor);
-                    ContentResolver resolver = context.getContentResolver();
-                    Cursor msgs = SqliteWrapper.query(context, resolver,
-                            ContentUris.withAppendedId(Sms.Conversations.CONTENT_URI, threadId),
-                            SMS_MESSAGE_PROJECTION,
-                            "locked=0",
-                            null, "date DESC");     // get in newest to oldest order
-
-                    if (msgs.getCount() >= limit) {
-                        return true;
-                    }
-                }
-            } finally {
-                cursor.close();
-            }
-            return false;
+            return queryCount(context, Sms.CONTENT_URI, "thread_id IN " +
+                    selectThreadsOverLimit("sms", getMessageLimit(context))) > 0;
         }
     }
 
@@ -271,19 +283,6 @@ public abstract class Recycler {
         private static final int ID             = 0;
         private static final int MESSAGE_COUNT  = 1;
 
-        static private final String[] MMS_MESSAGE_PROJECTION = new String[] {
-            BaseColumns._ID,
-            Conversations.THREAD_ID,
-            Mms.DATE,
-        };
-
-        // The indexes of the default columns which must be consistent
-        // with above PROJECTION.
-        static private final int COLUMN_ID                  = 0;
-        static private final int COLUMN_THREAD_ID           = 1;
-        static private final int COLUMN_MMS_DATE            = 2;
-        static private final int COLUMN_MMS_READ            = 3;
-
         private final String MAX_MMS_MESSAGES_PER_THREAD = "MaxMmsMessagesPerThread";
 
         public int getMessageLimit(Context context) {
@@ -303,6 +302,10 @@ public abstract class Recycler {
             return cursor.getLong(ID);
         }
 
+        protected int getMessageCount(Cursor cursor) {
+            return cursor.getInt(MESSAGE_COUNT);
+        }
+
         protected Cursor getAllThreads(Context context) {
             ContentResolver resolver = context.getContentResolver();
             Cursor cursor = SqliteWrapper.query(context, resolver,
@@ -316,126 +319,44 @@ public abstract class Recycler {
             if (LOCAL_DEBUG) {
                 Log.v(TAG, "MMS: deleteOldMessagesByUri");
             }
-            Cursor cursor = null;
-            long latestDate = 0;
-            long threadId = 0;
-            try {
-                String msgId = uri.getLastPathSegment();
-                ContentResolver resolver = context.getContentResolver();
-                cursor = SqliteWrapper.query(context, resolver,
-                        Telephony.Mms.CONTENT_URI,
-                        MMS_MESSAGE_PROJECTION,
-                        "thread_id in (select thread_id from pdu where _id=" + msgId +
-                            ") AND locked=0",
-                        null, "date DESC");     // get in newest to oldest order
-
-                int count = cursor.getCount();
-                int keep = getMessageLimit(context);
-                int numberToDelete = count - keep;
-                if (LOCAL_DEBUG) {
-                    Log.v(TAG, "MMS: deleteOldMessagesByUri keep: " + keep +
-                            " count: " + count +
-                            " numberToDelete: " + numberToDelete);
-                }
-                if (numberToDelete <= 0) {
-                    return;
-                }
-                // Move to the keep limit and then delete everything older than that one.
-                cursor.move(keep);
-                latestDate = cursor.getLong(COLUMN_MMS_DATE);
-                threadId = cursor.getLong(COLUMN_THREAD_ID);
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
-            }
-            if (threadId != 0) {
-                deleteMessagesOlderThanDate(context, threadId, latestDate);
-            }
+            String msgId = uri.getLastPathSegment();
+            deleteMessagesOlderThanThreshold(context,
+                    "thread_id in (select thread_id from pdu where _id=" + msgId + ")",
+                    getMessageLimit(context));
         }
 
-        protected void deleteMessagesForThread(Context context, long threadId, int keep) {
+        protected int countMessagesForThread(Context context, long threadId) {
+            return queryCount(context, Telephony.Mms.CONTENT_URI,
+                    "thread_id=" + threadId + " AND locked=0");
+        }
+
+        protected int deleteMessagesForThread(Context context, long threadId, int keep) {
             if (LOCAL_DEBUG) {
                 Log.v(TAG, "MMS: deleteMessagesForThread");
             }
             if (threadId == 0) {
-                return;
+                return 0;
             }
-            Cursor cursor = null;
-            long latestDate = 0;
-            try {
-                ContentResolver resolver = context.getContentResolver();
-                cursor = SqliteWrapper.query(context, resolver,
-                        Telephony.Mms.CONTENT_URI,
-                        MMS_MESSAGE_PROJECTION,
-                        "thread_id=" + threadId + " AND locked=0",
-                        null, "date DESC");     // get in newest to oldest order
-
-                int count = cursor.getCount();
-                int numberToDelete = count - keep;
-                if (LOCAL_DEBUG) {
-                    Log.v(TAG, "MMS: deleteMessagesForThread keep: " + keep +
-                            " count: " + count +
-                            " numberToDelete: " + numberToDelete);
-                }
-                if (numberToDelete <= 0) {
-                    return;
-                }
-                // Move to the keep limit and then delete everything older than that one.
-                cursor.move(keep);
-                latestDate = cursor.getLong(COLUMN_MMS_DATE);
-            } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
-            }
-            deleteMessagesOlderThanDate(context, threadId, latestDate);
+            return deleteMessagesOlderThanThreshold(context, "thread_id=" + threadId, keep);
         }
 
-        private void deleteMessagesOlderThanDate(Context context, long threadId,
-                long latestDate) {
-            long cntDeleted = SqliteWrapper.delete(context, context.getContentResolver(),
+        private int deleteMessagesOlderThanThreshold(Context context, String thread, int keep) {
+            String where = thread + " AND locked=0";
+            int cntDeleted = SqliteWrapper.delete(context, context.getContentResolver(),
                     Telephony.Mms.CONTENT_URI,
-                    "thread_id=" + threadId + " AND locked=0 AND date<" + latestDate,
+                    where + " AND date<" + selectThresholdDate("pdu", where, keep),
                     null);
             if (LOCAL_DEBUG) {
-                Log.v(TAG, "MMS: deleteMessagesOlderThanDate cntDeleted: " + cntDeleted);
-            }
-        }
-
-        protected void dumpMessage(Cursor cursor, Context context) {
-            long id = cursor.getLong(COLUMN_ID);
-            if (LOCAL_DEBUG) {
-                Log.v(TAG, "Recycler message " +
-                        "\n    id: " + id
-                );
+                Log.v(TAG, "MMS: deleteMessagesOlderThanThreshold keep: " + keep +
+                        " cntDeleted: " + cntDeleted);
             }
+            return cntDeleted;
         }
 
         @Override
         protected boolean anyThreadOverLimit(Context context) {
-            Cursor cursor = getAllThreads(context);
-            int limit = getMessageLimit(context);
-            try {
-                while (cursor.moveToNext()) {
-                    long threadId = getThreadId(cursor);
-                    ContentResolver resolver = context.getContentResolver();
-                    Cursor msgs = SqliteWrapper.query(context, resolver,
-                            Telephony.Mms.CONTENT_URI,
-                            MMS_MESSAGE_PROJECTION,
-                            "thread_id=" + threadId + " AND locked=0",
-                            null, "date DESC");     // get in newest to oldest order
-
-                    if (msgs.getCount() >= limit) {
-                        msgs.close();
-                        return true;
-                    }
-                    msgs.close();
-                }
-            } finally {
-                cursor.close();
-            }
-            return false;
+            return queryCount(context, Telephony.Mms.CONTENT_URI, "thread_id IN " +
+                    selectThreadsOverLimit("pdu", getMessageLimit(context))) > 0;
         }
     }
 
@@ -0,0 +1,69 @@
+package org.parandroid.encoding;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class DeflateCodecTest extends AndroidTestCase {
+
+    private final DeflateCodec mCodec = new DeflateCodec();
+
+    private void assertRoundTrip(byte[] data) throws IOException {
+        assertTrue(Arrays.equals(data, mCodec.decompress(mCodec.compress(data))));
+    }
+
+    @SmallTest
+    public void testRoundTripText() throws IOException {
+        assertRoundTrip(new byte[0]);
+        assertRoundTrip("a".getBytes());
+        assertRoundTrip("Where are you? I'm on my way, be there in 5 minutes.".getBytes());
+        assertRoundTrip("hoe gaat het met je? \u00e9\u00e8\u00fc".getBytes("UTF-8"));
+    }
+
+    @SmallTest
+    public void testRoundTripRandomData() throws IOException {
+        Random random = new Random(42);
+        for (int length = 0; length <= 1000; length += 50) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            assertRoundTrip(data);
+        }
+    }
+
+    @SmallTest
+    public void testDictionaryShortensCommonText() {
+        byte[] text = "Sorry, I'll be late. See you later!".getBytes();
+        assertTrue(mCodec.compress(text).length < text.length);
+    }
+
+    @SmallTest
+    public void testDecompressionCap() throws IOException {
+        // Up to the limit is fine
+        assertRoundTrip(new byte[CompressionCodec.MAX_DECOMPRESSED_LENGTH]);
+
+        // A few bytes that expand beyond it are rejected
+        byte[] bomb = mCodec.compress(new byte[CompressionCodec.MAX_DECOMPRESSED_LENGTH + 1]);
+        assertTrue(bomb.length < 1024);
+        try {
+            mCodec.decompress(bomb);
+            fail("Decompressed beyond the limit");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @SmallTest
+    public void testCorruptedDataIsRejected() {
+        // A final block of the reserved block type. Truncation can't be detected by raw
+        // DEFLATE, the authenticated frame around it catches that.
+        try {
+            mCodec.decompress(new byte[] { (byte) 0xFF, 0x00 });
+            fail("Decompressed corrupted data");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
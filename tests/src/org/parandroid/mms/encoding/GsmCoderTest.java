@@ -0,0 +1,80 @@
+package org.parandroid.encoding;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import android.telephony.SmsMessage;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class GsmCoderTest extends AndroidTestCase {
+
+    // Characters the alphabet leaves out on purpose, see GsmCoder
+    private static final String EXCLUDED = "@$ \n\r\u001b";
+
+    private static void assertRoundTrip(byte[] data) {
+        String text = GsmCoder.encode(data);
+        assertTrue("Not encoded in the alphabet: " + text, isInAlphabet(text));
+        assertTrue(Arrays.equals(data, GsmCoder.decode(text)));
+    }
+
+    private static boolean isInAlphabet(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (EXCLUDED.indexOf(text.charAt(i)) != -1) {
+                return false;
+            }
+        }
+
+        // Every character must be a single septet of the basic character set
+        int[] length = SmsMessage.calculateLength(text, false);
+        return length[3] == SmsMessage.ENCODING_7BIT && length[1] == text.length();
+    }
+
+    @SmallTest
+    public void testRoundTripLengths() {
+        Random random = new Random(42);
+        for (int length = 0; length <= 20; length++) {
+            for (int i = 0; i < 10; i++) {
+                byte[] data = new byte[length];
+                random.nextBytes(data);
+                assertRoundTrip(data);
+            }
+        }
+    }
+
+    @SmallTest
+    public void testRoundTripLeadingZeros() {
+        for (int length = 0; length <= 20; length++) {
+            // All zeros
+            assertRoundTrip(new byte[length]);
+
+            // Zeros followed by a value
+            byte[] data = new byte[length + 1];
+            data[length] = 1;
+            assertRoundTrip(data);
+        }
+    }
+
+    @SmallTest
+    public void testRoundTripAllByteValues() {
+        byte[] all = new byte[256];
+        for (int b = 0; b < 256; b++) {
+            assertRoundTrip(new byte[] { (byte) b });
+            assertRoundTrip(new byte[] { (byte) b, (byte) (255 - b) });
+            all[b] = (byte) b;
+        }
+        assertRoundTrip(all);
+    }
+
+    @SmallTest
+    public void testDecodeRejectsOtherCharacters() {
+        for (char c : EXCLUDED.toCharArray()) {
+            try {
+                GsmCoder.decode("AB" + c);
+                fail("Decoded '" + c + "'");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
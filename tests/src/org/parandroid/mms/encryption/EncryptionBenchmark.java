@@ -0,0 +1,170 @@
+package org.parandroid.encryption;
+
+import java.security.KeyPair;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.parandroid.sms.transaction.MultipartDataMessage;
+
+import android.os.Debug;
+import android.telephony.SmsMessage;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Benchmarks of the encryption layer: throughput and allocations of the real code paths,
+ * and the number of parts encrypted messages take compared to plain text.
+ *
+ * Keys are generated in memory instead of being read from the keyring, so running this
+ * leaves the keys and the session of the user alone. Results are logged with the tag below:
+ * "adb logcat -s EncryptionBenchmark".
+ */
+@LargeTest
+public class EncryptionBenchmark extends AndroidTestCase {
+    private static final String TAG = "EncryptionBenchmark";
+
+    private static final String PASSWORD = "benchmark";
+
+    private static final String SAMPLE = "Hi! Where are you? I'm on my way, be there in 5 minutes. " +
+            "Don't forget the tickets, see you later. Lorem ipsum dolor sit amet, consectetur " +
+            "adipiscing elit. Nunc in massa sit amet odio iaculis ultrices porta at velit. ";
+
+    private static final int[] MESSAGE_SIZES = new int[] { 16, 140, 500, 2000 };
+
+    private KeyPair mAlice;
+    private KeyPair mBob;
+    private SecretKeySpec mSecretKeySpec;
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mAlice = MessageEncryptionFactory.createKeyPair();
+        mBob = MessageEncryptionFactory.createKeyPair();
+        mSecretKeySpec = MessageEncryptionFactory.getSecretKeySpec(
+                MessageEncryptionFactory.generateSecretKey(mAlice.getPrivate(), mBob.getPublic()));
+    }
+
+    public void testKeyPairGeneration() throws Exception {
+        measure("createKeyPair", 10, new Operation() {
+            public void run() throws Exception {
+                MessageEncryptionFactory.createKeyPair();
+            }
+        });
+    }
+
+    public void testSecretKeyAgreement() throws Exception {
+        measure("generateSecretKey", 50, new Operation() {
+            public void run() throws Exception {
+                MessageEncryptionFactory.generateSecretKey(mAlice.getPrivate(), mBob.getPublic());
+            }
+        });
+    }
+
+    public void testPrivateKeyUnlock() throws Exception {
+        final byte[] locked = MessageEncryptionFactory.lockPrivateKey(mAlice.getPrivate(), PASSWORD);
+
+        measure("unlockPrivateKey", 20, new Operation() {
+            public void run() throws Exception {
+                MessageEncryptionFactory.unlockPrivateKey(locked, PASSWORD);
+            }
+        });
+    }
+
+    public void testEncrypt() throws Exception {
+        for (int size : MESSAGE_SIZES) {
+            final String text = getText(size);
+
+            measure("encrypt " + size, 500, new Operation() {
+                public void run() throws Exception {
+                    MessageEncryption.encrypt(mSecretKeySpec, text);
+                }
+            });
+        }
+    }
+
+    public void testDecrypt() throws Exception {
+        for (int size : MESSAGE_SIZES) {
+            final String text = getText(size);
+            final String body = MultipartDataMessage.getMessageBody(mSecretKeySpec, text);
+            assertEquals(text, MessageEncryption.decrypt(mSecretKeySpec, body));
+
+            measure("decrypt " + size, 500, new Operation() {
+                public void run() throws Exception {
+                    MessageEncryption.decrypt(mSecretKeySpec, body);
+                }
+            });
+        }
+    }
+
+    public void testFraming() throws Exception {
+        for (int size : MESSAGE_SIZES) {
+            final String text = getText(size);
+
+            measure("createEncrypted " + size, 200, new Operation() {
+                public void run() throws Exception {
+                    MultipartDataMessage.createEncrypted(mSecretKeySpec, null, text, null, null);
+                }
+            });
+        }
+    }
+
+    public void testHeaderParsing() throws Exception {
+        final String body = MultipartDataMessage.getMessageBody(mSecretKeySpec, getText(140));
+
+        measure("stripHeader/getProcolVersion", 10000, new Operation() {
+            public void run() throws Exception {
+                MessageEncryptionFactory.stripHeader(body);
+                MessageEncryptionFactory.getProcolVersion(body);
+                MessageEncryptionFactory.getCompressionType(body);
+            }
+        });
+    }
+
+    public void testPartCountOverhead() throws Exception {
+        for (int size = 20; size <= 1000; size += 20) {
+            String text = getText(size);
+            int plainParts = SmsMessage.calculateLength(text, false)[0];
+            int encryptedParts = MultipartDataMessage.createEncrypted(mSecretKeySpec, null, text,
+                    null, null).getPartCount();
+
+            Log.i(TAG, "parts " + size + ": " + plainParts + " plain, " + encryptedParts + " encrypted");
+        }
+    }
+
+    private static String getText(int size) {
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) {
+            text.append(SAMPLE);
+        }
+        text.setLength(size);
+        return text.toString();
+    }
+
+    /**
+     * Run an operation a number of times after warming up, and log the number of
+     * operations per second and the bytes allocated per operation.
+     */
+    private static void measure(String name, int iterations, Operation operation) throws Exception {
+        for (int i = 0; i < Math.max(1, iterations / 10); i++) {
+            operation.run();
+        }
+
+        Debug.resetGlobalAllocSize();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+
+        Log.i(TAG, name + ": " + (iterations * 1000000000L / Math.max(1, elapsed)) + " ops/s, " +
+                (Debug.getGlobalAllocSize() / iterations) + " bytes/op");
+    }
+}
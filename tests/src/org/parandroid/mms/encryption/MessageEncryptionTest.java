@@ -0,0 +1,115 @@
+package org.parandroid.encryption;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.Arrays;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.parandroid.encoding.CompressionCodec;
+import org.parandroid.encoding.GsmCoder;
+import org.parandroid.sms.transaction.MultipartDataMessage;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * The authenticated message frame: messages survive the round trip, modified or
+ * truncated frames are rejected.
+ */
+public class MessageEncryptionTest extends AndroidTestCase {
+
+    private static final String TEXT = "Where are you? I'm on my way, be there in 5 minutes.";
+
+    private SecretKeySpec mSecretKeySpec;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        KeyPair alice = MessageEncryptionFactory.createKeyPair();
+        KeyPair bob = MessageEncryptionFactory.createKeyPair();
+        mSecretKeySpec = MessageEncryptionFactory.getSecretKeySpec(
+                MessageEncryptionFactory.generateSecretKey(alice.getPrivate(), bob.getPublic()));
+    }
+
+    /**
+     * A message body, as sent, with the given frame
+     */
+    private static String getBody(byte[] frame) {
+        return MultipartDataMessage.MESSAGE_HEADER + MultipartDataMessage.PROTOCOL_VERSION +
+                MultipartDataMessage.HEADER_SEPERATOR + GsmCoder.encode(frame);
+    }
+
+    private void assertRejected(byte[] frame) throws Exception {
+        try {
+            MessageEncryption.decrypt(mSecretKeySpec, getBody(frame));
+            fail("Accepted frame " + Arrays.toString(frame));
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+    }
+
+    @SmallTest
+    public void testRoundTrip() throws Exception {
+        String body = MultipartDataMessage.getMessageBody(mSecretKeySpec, TEXT);
+        assertEquals(TEXT, MessageEncryption.decrypt(mSecretKeySpec, body));
+
+        byte[] frame = MessageEncryption.encrypt(mSecretKeySpec, TEXT);
+        assertEquals(TEXT, MessageEncryption.decrypt(mSecretKeySpec, getBody(frame)));
+    }
+
+    @SmallTest
+    public void testModifiedTagIsRejected() throws Exception {
+        byte[] frame = MessageEncryption.encrypt(mSecretKeySpec, TEXT);
+        for (int i = 1; i <= 8; i++) {
+            byte[] modified = frame.clone();
+            modified[modified.length - i] ^= 0x01;
+            assertRejected(modified);
+        }
+    }
+
+    @SmallTest
+    public void testModifiedCompressionTypeIsRejected() throws Exception {
+        CompressionCodec deflate = CompressionCodec.getCodec(CompressionCodec.TYPE_DEFLATE);
+        byte[] frame = MessageEncryption.encrypt(mSecretKeySpec, CompressionCodec.TYPE_DEFLATE,
+                deflate.compress(TEXT.getBytes()));
+        assertEquals(TEXT, MessageEncryption.decrypt(mSecretKeySpec, getBody(frame)));
+
+        frame[1] = (byte) CompressionCodec.TYPE_NONE;
+        assertRejected(frame);
+    }
+
+    @SmallTest
+    public void testModifiedTextIsRejected() throws Exception {
+        byte[] frame = MessageEncryption.encrypt(mSecretKeySpec, TEXT);
+        frame[frame.length / 2] ^= 0x01;
+        assertRejected(frame);
+    }
+
+    @SmallTest
+    public void testTruncatedFrameIsRejected() throws Exception {
+        byte[] frame = MessageEncryption.encrypt(mSecretKeySpec, TEXT);
+        for (int length = 1; length < frame.length; length++) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(frame, 0, truncated, 0, length);
+            assertRejected(truncated);
+        }
+    }
+
+    @SmallTest
+    public void testOtherKeyIsRejected() throws Exception {
+        byte[] frame = MessageEncryption.encrypt(mSecretKeySpec, TEXT);
+
+        KeyPair eve = MessageEncryptionFactory.createKeyPair();
+        SecretKeySpec other = MessageEncryptionFactory.getSecretKeySpec(
+                MessageEncryptionFactory.generateSecretKey(eve.getPrivate(),
+                        MessageEncryptionFactory.createKeyPair().getPublic()));
+        try {
+            MessageEncryption.decrypt(other, getBody(frame));
+            fail("Decrypted with another key");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.parandroid.sms.transaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import com.google.android.mms.pdu.GenericPdu;
+import com.google.android.mms.pdu.PduBody;
+import com.google.android.mms.pdu.RetrieveConf;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+public class PduStreamReaderTest extends AndroidTestCase {
+
+    /**
+     * An M-Retrieve.conf of type multipart/alternative with two text/plain parts.
+     */
+    private static byte[] makeAlternativeRetrieveConf() {
+        ByteArrayOutputStream pdu = new ByteArrayOutputStream();
+        pdu.write(0x8C); pdu.write(0x84);   // X-Mms-Message-Type: m-retrieve-conf
+        pdu.write(0x8D); pdu.write(0x92);   // X-Mms-MMS-Version: 1.2
+        pdu.write(0x85); pdu.write(0x01); pdu.write(0x01);  // Date: 1
+        pdu.write(0x84); pdu.write(0xA6);   // Content-Type: multipart/alternative
+
+        pdu.write(0x02);                    // Two parts
+        addTextPart(pdu, "hello");
+        addTextPart(pdu, "world");
+        return pdu.toByteArray();
+    }
+
+    private static void addTextPart(ByteArrayOutputStream pdu, String text) {
+        byte[] data = text.getBytes();
+        pdu.write(0x01);                    // Headers length
+        pdu.write(data.length);             // Data length
+        pdu.write(0x83);                    // Content-Type: text/plain
+        pdu.write(data, 0, data.length);
+    }
+
+    @SmallTest
+    public void testAlternativeIsReadToTheEnd() throws Exception {
+        ByteArrayInputStream in = new ByteArrayInputStream(makeAlternativeRetrieveConf());
+        PduStreamReader reader = new PduStreamReader(getContext());
+        try {
+            GenericPdu pdu = reader.read(in);
+            assertTrue(pdu instanceof RetrieveConf);
+
+            // Only the first alternative is kept
+            PduBody body = ((RetrieveConf) pdu).getBody();
+            assertEquals(1, body.getPartsNum());
+            assertEquals("hello", new String(body.getPart(0).getData()));
+
+            // The other one was consumed, so nothing follows the PDU
+            assertEquals(-1, in.read());
+        } finally {
+            reader.close();
+        }
+    }
+}